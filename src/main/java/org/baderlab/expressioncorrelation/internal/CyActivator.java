@@ -2,8 +2,12 @@ package org.baderlab.expressioncorrelation.internal;
 
 import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.BUILD_NETWORK;
 import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.COND_NET_DEF;
+import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.COND_NET_KNN;
+import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.COND_NET_TOP;
 import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.COND_NET_PREVIEW;
 import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.GENE_NET_DEF;
+import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.GENE_NET_KNN;
+import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.GENE_NET_TOP;
 import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.GENE_NET_PREVIEW;
 
 import java.util.Properties;
@@ -11,6 +15,7 @@ import java.util.Properties;
 import org.baderlab.expressioncorrelation.internal.action.AboutAction;
 import org.baderlab.expressioncorrelation.internal.action.CorrelateAction;
 import org.baderlab.expressioncorrelation.internal.action.HelpAction;
+import org.baderlab.expressioncorrelation.internal.action.MetricAction;
 import org.cytoscape.service.util.AbstractCyActivator;
 import org.cytoscape.service.util.CyServiceRegistrar;
 import org.osgi.framework.BundleContext;
@@ -80,6 +85,31 @@ public class CyActivator extends AbstractCyActivator {
 		correlateAction5.setPreferredMenu(ADVANCED_OPTIONS_MENU);
 		correlateAction5.setMenuGravity(2.4f);
 		registerAllServices(bc, correlateAction5, new Properties());
+		
+		final CorrelateAction correlateAction6 = new CorrelateAction(COND_NET_KNN, serviceRegistrar);
+		correlateAction6.setPreferredMenu(ADVANCED_OPTIONS_MENU);
+		correlateAction6.setMenuGravity(2.5f);
+		registerAllServices(bc, correlateAction6, new Properties());
+		
+		final CorrelateAction correlateAction7 = new CorrelateAction(GENE_NET_KNN, serviceRegistrar);
+		correlateAction7.setPreferredMenu(ADVANCED_OPTIONS_MENU);
+		correlateAction7.setMenuGravity(2.6f);
+		registerAllServices(bc, correlateAction7, new Properties());
+		
+		final CorrelateAction correlateAction8 = new CorrelateAction(COND_NET_TOP, serviceRegistrar);
+		correlateAction8.setPreferredMenu(ADVANCED_OPTIONS_MENU);
+		correlateAction8.setMenuGravity(2.7f);
+		registerAllServices(bc, correlateAction8, new Properties());
+		
+		final CorrelateAction correlateAction9 = new CorrelateAction(GENE_NET_TOP, serviceRegistrar);
+		correlateAction9.setPreferredMenu(ADVANCED_OPTIONS_MENU);
+		correlateAction9.setMenuGravity(2.8f);
+		registerAllServices(bc, correlateAction9, new Properties());
+        
+		final MetricAction metricAction = new MetricAction("Correlation Metric...", serviceRegistrar);
+		metricAction.setPreferredMenu(ADVANCED_OPTIONS_MENU);
+		metricAction.setMenuGravity(2.9f);
+		registerAllServices(bc, metricAction, new Properties());
         
         final HelpAction helpAction = new HelpAction("Help", serviceRegistrar);
 		helpAction.setPreferredMenu(APP_MENU);
@@ -2,8 +2,12 @@ package org.baderlab.expressioncorrelation.internal.action;
 
 import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.BUILD_NETWORK;
 import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.COND_NET_DEF;
+import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.COND_NET_KNN;
+import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.COND_NET_TOP;
 import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.COND_NET_PREVIEW;
 import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.GENE_NET_DEF;
+import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.GENE_NET_KNN;
+import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.GENE_NET_TOP;
 import static org.baderlab.expressioncorrelation.internal.model.CorrelateActionType.GENE_NET_PREVIEW;
 
 import java.awt.event.ActionEvent;
@@ -15,6 +19,7 @@ import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
 import org.baderlab.expressioncorrelation.internal.model.CorrelateActionType;
+import org.baderlab.expressioncorrelation.internal.model.CorrelateCutoffStorage;
 import org.baderlab.expressioncorrelation.internal.model.CorrelateSimilarityNetwork;
 import org.baderlab.expressioncorrelation.internal.model.ExpressionData;
 import org.baderlab.expressioncorrelation.internal.task.CorrelateTask;
@@ -28,7 +33,6 @@ import org.cytoscape.service.util.CyServiceRegistrar;
 import org.cytoscape.task.read.LoadTableFileTaskFactory;
 import org.cytoscape.work.FinishStatus;
 import org.cytoscape.work.ObservableTask;
-import org.cytoscape.work.Task;
 import org.cytoscape.work.TaskIterator;
 import org.cytoscape.work.TaskObserver;
 import org.cytoscape.work.swing.DialogTaskManager;
@@ -195,7 +199,8 @@ public class CorrelateAction extends AbstractCyAction {
         int rowNumber = csNetwork.getNumberOfRows();
         int selectedOption = JOptionPane.OK_OPTION;
 
-        if (rowNumber < 4 && (type == BUILD_NETWORK || type == COND_NET_PREVIEW || type == COND_NET_DEF)) {
+        if (rowNumber < 4 && (type == BUILD_NETWORK || type == COND_NET_PREVIEW || type == COND_NET_DEF || type == COND_NET_KNN
+        		|| type == COND_NET_TOP)) {
         	// Must only come up in case when < 4 genes and try to do condition matrix
             // the vectors for condition matrix will be of length < 4 not enough
             Object[] msg = {
@@ -210,7 +215,8 @@ public class CorrelateAction extends AbstractCyAction {
             		JOptionPane.OK_CANCEL_OPTION,
             		JOptionPane.WARNING_MESSAGE
             );
-        } else if (colNumber < 4 && (type == BUILD_NETWORK || type == GENE_NET_PREVIEW || type == GENE_NET_DEF)) {
+        } else if (colNumber < 4 && (type == BUILD_NETWORK || type == GENE_NET_PREVIEW || type == GENE_NET_DEF || type == GENE_NET_KNN
+        		|| type == GENE_NET_TOP)) {
         	// Must only come up in case when < 4 conditions and try to do gene matrix
             // the vectors for condition matrix will be of length < 4 not enough
             Object[] msg = {
@@ -228,10 +234,42 @@ public class CorrelateAction extends AbstractCyAction {
             );
         }
         
+        // Nearest-neighbour networks: ask how many neighbours to keep per node
+        if (selectedOption == JOptionPane.OK_OPTION && (type == COND_NET_KNN || type == GENE_NET_KNN)) {
+        	final Integer k = askCount(parentFrame, "Number of strongest correlations to keep for each node:",
+        			csNetwork.getNeighbourCount());
+        	
+        	if (k == null)
+        		return;
+        	
+        	csNetwork.setNeighbourCount(k);
+        }
+        
+        // Strongest edges networks: ask for the number of edges
+        if (selectedOption == JOptionPane.OK_OPTION && (type == COND_NET_TOP || type == GENE_NET_TOP)) {
+        	final Integer n = askCount(parentFrame, "Number of edges (the strongest correlations) to keep:",
+        			csNetwork.getEdgeBudget());
+        	
+        	if (n == null)
+        		return;
+        	
+        	csNetwork.setEdgeBudget(n);
+        }
+        
+        // Previews: keep the similarity matrix in memory, so the networks built from the histogram dialog
+        // do not have to calculate it again, whatever cutoffs are chosen
+        if (type == COND_NET_PREVIEW || type == GENE_NET_PREVIEW)
+        	csNetwork.setMatrixCache(true);
+        
         // Continue if not canceled
         if (selectedOption == JOptionPane.OK_OPTION) {
             // Create a Correlate Task
-            final Task task = new CorrelateTask(type, csNetwork, serviceRegistrar);
+            final CorrelateTask task = new CorrelateTask(type, csNetwork, serviceRegistrar);
+            task.setMetric(CorrelateCutoffStorage.getInstance().getMetric());
+            
+            // Previews open with a histogram estimated from a sample of the pairs; the histogram dialog
+            // can then calculate the exact one
+            task.setEstimate(type == COND_NET_PREVIEW || type == GENE_NET_PREVIEW);
 
             // Execute Task via TaskManager
             final DialogTaskManager taskMgr = serviceRegistrar.getService(DialogTaskManager.class);
@@ -275,6 +313,44 @@ public class CorrelateAction extends AbstractCyAction {
         }
 	}
 	
+	/**
+	 * @return the number entered by the user, or null if cancelled
+	 */
+	private Integer askCount(final JFrame parentFrame, final String message, final int defaultValue) {
+		String input = Integer.toString(defaultValue);
+		
+		while (true) {
+			input = (String) JOptionPane.showInputDialog(
+					parentFrame,
+					message,
+					type.toString(),
+					JOptionPane.QUESTION_MESSAGE,
+					null,
+					null,
+					input
+			);
+			
+			if (input == null)
+				return null;
+			
+			try {
+				final int k = Integer.parseInt(input.trim());
+				
+				if (k > 0)
+					return k;
+			} catch (NumberFormatException e) {
+				// Ask again
+			}
+			
+			JOptionPane.showMessageDialog(
+					parentFrame,
+					"Please enter a whole number greater than 0.",
+					"ExpressionCorrelation Error",
+					JOptionPane.ERROR_MESSAGE
+			);
+		}
+	}
+	
 	private Set<CyTable> getValidGlobalTables() {
 		final Set<CyTable> tables = new HashSet<>();
 		final CyTableManager tblMgr = serviceRegistrar.getService(CyTableManager.class);
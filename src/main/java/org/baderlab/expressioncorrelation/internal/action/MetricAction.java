@@ -0,0 +1,75 @@
+package org.baderlab.expressioncorrelation.internal.action;
+
+import java.awt.event.ActionEvent;
+
+import javax.swing.JOptionPane;
+
+import org.baderlab.expressioncorrelation.internal.model.CorrelateCutoffStorage;
+import org.baderlab.expressioncorrelation.internal.model.CorrelationMetric;
+import org.cytoscape.application.swing.AbstractCyAction;
+import org.cytoscape.application.swing.CySwingApplication;
+import org.cytoscape.service.util.CyServiceRegistrar;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * The action to choose the similarity measure (e.g. Pearson or Spearman rank correlation)
+ * used by the correlation networks and histograms created afterwards.
+ */
+public class MetricAction extends AbstractCyAction {
+
+	private static final long serialVersionUID = -3372815065512090157L;
+
+	private final CyServiceRegistrar serviceRegistrar;
+	
+	public MetricAction(final String name, final CyServiceRegistrar serviceRegistrar) {
+		super(name);
+		this.serviceRegistrar = serviceRegistrar;
+	}
+	
+    @Override
+    public void actionPerformed(final ActionEvent e) {
+    	final CorrelateCutoffStorage storage = CorrelateCutoffStorage.getInstance();
+    	final Object metric = JOptionPane.showInputDialog(
+    			serviceRegistrar.getService(CySwingApplication.class).getJFrame(),
+    			"Similarity measure of new correlation networks:",
+    			"Correlation Metric",
+    			JOptionPane.QUESTION_MESSAGE,
+    			null,
+    			CorrelationMetric.values(),
+    			storage.getMetric()
+    	);
+    	
+    	// Cancelled?
+    	if (metric != null)
+    		storage.setMetric((CorrelationMetric) metric);
+    }
+}
@@ -0,0 +1,177 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * Biweight midcorrelation (bicor), a correlation that is robust to outliers.
+ * <p/>
+ * Each value x of a vector gets the weight
+ * <pre>
+ * w = (1 - u^2)^2 if |u| < 1, 0 otherwise, where u = (x - median) / (9 * MAD)
+ * </pre>
+ * and MAD is the median absolute deviation of the vector. The bicor of two vectors is then the cosine of their
+ * weighted deviations (x - median) * w, so weightVectors() replaces every vector by its weighted deviations once,
+ * and the pairs are calculated by the same dot product kernel as Pearson (see DotProductMetric.BIWEIGHT).
+ * <p/>
+ * Vectors with MAD = 0 (more than half of their values are equal) keep their deviations from the mean instead,
+ * so they are correlated as with Pearson.
+ */
+final class BiweightMidcorrelation {
+
+	/** Number of MADs from the median where the weights drop to 0 */
+	static final double TUNING_CONSTANT = 9.0;
+
+	private static final ThreadLocal<double[][]> SCRATCH = new ThreadLocal<double[][]>() {
+		@Override
+		protected double[][] initialValue() {
+			return new double[2][0];
+		}
+	};
+
+	private BiweightMidcorrelation() {
+	}
+
+	/**
+	 * Replaces the values of the given vector by their weighted deviations from the median.
+	 *
+	 * @param values  - the vector, from offset to offset + length - 1
+	 * @param scratch - at least length values, overwritten
+	 */
+	static void weight(final double[] values, final int offset, final int length, final double[] scratch) {
+		if (length == 0)
+			return;
+
+		System.arraycopy(values, offset, scratch, 0, length);
+		final double median = median(scratch, length);
+
+		for (int k = 0; k < length; k++)
+			scratch[k] = Math.abs(values[offset + k] - median);
+
+		final double mad = median(scratch, length);
+
+		if (mad > 0.0) {
+			final double scale = 1.0 / (TUNING_CONSTANT * mad);
+
+			for (int k = offset; k < offset + length; k++) {
+				final double deviation = values[k] - median;
+				final double u = deviation * scale;
+				final double v = 1.0 - u * u;
+				values[k] = v > 0.0 ? deviation * v * v : 0.0;
+			}
+		} else {
+			double sum = 0.0;
+
+			for (int k = offset; k < offset + length; k++)
+				sum += values[k];
+
+			final double mean = sum / length;
+
+			for (int k = offset; k < offset + length; k++)
+				values[k] -= mean;
+		}
+	}
+
+	/**
+	 * Sorts the first length values.
+	 *
+	 * @return their median
+	 */
+	private static double median(final double[] values, final int length) {
+		Arrays.sort(values, 0, length);
+
+		final int half = length / 2;
+
+		return length % 2 == 1 ? values[half] : 0.5 * (values[half - 1] + values[half]);
+	}
+
+	/**
+	 * Weights every vector of the expression data (see weight()). Missing values (NaN) stay missing, and
+	 * do not count for the median and MAD.
+	 *
+	 * @param parallelism - number of threads to use
+	 * @return a matrix with the weighted deviations of vector i in row i
+	 */
+	static ExpressionMatrix weightVectors(final ExpressionMatrix.Vectors vectors, final int parallelism) {
+		final int size = vectors.size();
+		final int length = vectors.length();
+		final ExpressionMatrix weighted = new ExpressionMatrix(size, length, vectors.isSinglePrecision());
+		// A few ranges per thread, so threads that finish early can take over the remaining ones
+		final int units = Math.max(1, Math.min(size, parallelism > 1 ? parallelism * 4 : 1));
+		final List<RecursiveAction> tasks = new ArrayList<>(units);
+
+		for (int u = 0; u < units; u++) {
+			final int from = (int) ((long) size * u / units);
+			final int to = (int) ((long) size * (u + 1) / units);
+
+			tasks.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					double[][] scratch = SCRATCH.get();
+
+					if (scratch[0].length < length) {
+						scratch = new double[][] { new double[length], new double[length] };
+						SCRATCH.set(scratch);
+					}
+
+					final double[] values = scratch[0];
+
+					for (int i = from; i < to; i++) {
+						// Missing values are left out of the weighting, and stay missing
+						int present = 0;
+
+						for (int k = 0; k < length; k++) {
+							final double value = vectors.get(i, k);
+
+							if (!Double.isNaN(value))
+								values[present++] = value;
+						}
+
+						weight(values, 0, present, scratch[1]);
+						present = 0;
+
+						for (int k = 0; k < length; k++)
+							weighted.set(i, k, Double.isNaN(vectors.get(i, k)) ? Double.NaN : values[present++]);
+					}
+				}
+			});
+		}
+
+		ParallelTasks.invoke(tasks, parallelism);
+
+		return weighted;
+	}
+}
@@ -0,0 +1,427 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.util.Random;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * The kernel of the dot product metrics (see DotProductMetric): Pearson correlation, cosine similarity, and
+ * the metrics that transform the vectors first.
+ * <p/>
+ * Each vector is standardized once (centered if required and scaled to unit length) into one contiguous
+ * row-major array, so the similarity of two vectors is just the dot product of their standardized values.
+ * The lower triangle of the similarity matrix is then calculated one tile at a time, like a blocked
+ * matrix multiply, so that both blocks of vectors stay in the CPU cache while their products are taken.
+ * <p/>
+ * If the expression matrix is stored in single precision, the standardized vectors are floats too, so twice
+ * as many fit in the cache. Means and lengths are still calculated in double precision, and the float
+ * products are added up in short runs whose sums are accumulated in doubles, which keeps the rounding
+ * error of long vectors small.
+ */
+final class BlockedCorrelation implements SimilarityMetric.TiledKernel, SimilarityMetric.ShuffledKernel {
+
+	/** Default number of vectors per tile side */
+	static final int DEFAULT_TILE_SIZE = 64;
+
+	/** Number of float products added up in single precision before they are accumulated in a double */
+	private static final int FLOAT_RUN = 256;
+
+	private final int size;           // Number of vectors
+	private final int length;         // Number of values in each vector
+	private final double[] z;         // Standardized vectors, vector i starts at i * length (null in single precision)
+	private final float[] zf;         // Same layout, used instead of z in single precision
+	private final boolean[] valid;    // false if the vector has no variance (correlation undefined)
+	private Object prepared;          // Copy of z or zf in the prepared order, made by the first shuffle (see restore())
+
+	/**
+	 * @param vectors  - expression data, as gene or condition vectors
+	 * @param centered - true to subtract the mean of each vector (Pearson), false to only scale it (cosine)
+	 */
+	BlockedCorrelation(final ExpressionMatrix.Vectors vectors, final boolean centered) {
+		this.size = vectors.size();
+		this.length = vectors.length();
+		this.valid = new boolean[size];
+
+		if (vectors.isSinglePrecision()) {
+			this.z = null;
+			this.zf = new float[size * length];
+			vectors.copyTo(zf);
+
+			for (int i = 0; i < size; i++)
+				standardizeSingle(i * length, centered, i);
+		} else {
+			this.z = new double[size * length];
+			this.zf = null;
+			vectors.copyTo(z);
+
+			for (int i = 0; i < size; i++) {
+				final int offset = i * length;
+				double sum = 0.0;
+
+				if (centered) {
+					for (int k = offset; k < offset + length; k++)
+						sum += z[k];
+				}
+
+				standardize(offset, sum / length, i);
+			}
+		}
+	}
+
+	/**
+	 * Centers the vector starting at offset and scales it to unit length.
+	 */
+	private void standardize(final int offset, final double mean, final int i) {
+		double sumOfSquares = 0.0;
+
+		for (int k = offset; k < offset + length; k++) {
+			final double centered = z[k] - mean;
+			z[k] = centered;
+			sumOfSquares += centered * centered;
+		}
+
+		valid[i] = sumOfSquares > 0.0;
+
+		if (valid[i]) {
+			final double scale = 1.0 / Math.sqrt(sumOfSquares);
+
+			for (int k = offset; k < offset + length; k++)
+				z[k] *= scale;
+		}
+	}
+
+	/**
+	 * Same as standardize(), for single precision vectors. The mean and length are calculated in double precision.
+	 */
+	private void standardizeSingle(final int offset, final boolean center, final int i) {
+		double sum = 0.0;
+
+		if (center) {
+			for (int k = offset; k < offset + length; k++)
+				sum += zf[k];
+		}
+
+		final double mean = sum / length;
+		double sumOfSquares = 0.0;
+
+		for (int k = offset; k < offset + length; k++) {
+			final double centered = zf[k] - mean;
+			sumOfSquares += centered * centered;
+		}
+
+		valid[i] = sumOfSquares > 0.0;
+
+		final double scale = valid[i] ? 1.0 / Math.sqrt(sumOfSquares) : 1.0;
+
+		for (int k = offset; k < offset + length; k++)
+			zf[k] = (float) ((zf[k] - mean) * scale);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isValid(final int i) {
+		return valid[i];
+	}
+
+	@Override
+	public double similarity(final int i, final int j) {
+		final int a = i * length;
+		final int b = j * length;
+		double s = 0.0;
+
+		if (zf != null) {
+			for (int from = 0; from < length; from += FLOAT_RUN) {
+				final int to = Math.min(from + FLOAT_RUN, length);
+				float f = 0f;
+
+				for (int k = from; k < to; k++)
+					f += zf[a + k] * zf[b + k];
+
+				s += f;
+			}
+		} else {
+			for (int k = 0; k < length; k++)
+				s += z[a + k] * z[b + k];
+		}
+
+		return clamp(s);
+	}
+
+	/**
+	 * Shuffles the standardized values of each vector (Fisher-Yates), which are then still standardized.
+	 */
+	@Override
+	public void shuffle(final Random random) {
+		if (prepared == null)
+			prepared = zf != null ? zf.clone() : z.clone();
+
+		for (int i = 0; i < size; i++) {
+			final int offset = i * length;
+
+			for (int k = length - 1; k > 0; k--) {
+				final int r = offset + random.nextInt(k + 1);
+
+				if (zf != null) {
+					final float value = zf[offset + k];
+					zf[offset + k] = zf[r];
+					zf[r] = value;
+				} else {
+					final double value = z[offset + k];
+					z[offset + k] = z[r];
+					z[r] = value;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void restore() {
+		if (prepared == null)
+			return; // Never shuffled
+
+		if (zf != null)
+			System.arraycopy(prepared, 0, zf, 0, zf.length);
+		else
+			System.arraycopy(prepared, 0, z, 0, z.length);
+	}
+
+	/**
+	 * Calculates the tile [iStart, iEnd) x [jStart, jEnd), restricted to j < i.
+	 * Two rows and four columns are taken at once (eight running sums), so every value that is loaded
+	 * is used two or four times. The correlations of the second row are held in a scratch array until
+	 * the first row is done, so they reach the visitor in the same order as one row at a time.
+	 */
+	@Override
+	public void computeTile(final int iStart, final int iEnd, final int jStart, final int jEnd,
+			final CorrelationSource.PairVisitor visitor) {
+		if (zf != null) {
+			computeTileSingle(iStart, iEnd, jStart, jEnd, visitor);
+			return;
+		}
+
+		final double[] scratch = new double[jEnd - jStart];
+		int i = iStart;
+
+		for (; i + 1 < iEnd; i += 2) {
+			if (!valid[i] || !valid[i + 1]) {
+				computeRow(i, jStart, jEnd, visitor);
+				computeRow(i + 1, jStart, jEnd, visitor);
+				continue;
+			}
+
+			final int a0 = i * length;
+			final int a1 = a0 + length;
+			final int stop = Math.max(jStart, Math.min(i, jEnd));   // Both rows need every j < stop
+			int j = jStart;
+
+			for (; j + 3 < stop; j += 4) {
+				final int b0 = j * length;
+				final int b1 = b0 + length;
+				final int b2 = b1 + length;
+				final int b3 = b2 + length;
+				double s00 = 0.0, s01 = 0.0, s02 = 0.0, s03 = 0.0;
+				double s10 = 0.0, s11 = 0.0, s12 = 0.0, s13 = 0.0;
+
+				for (int k = 0; k < length; k++) {
+					final double x0 = z[a0 + k];
+					final double x1 = z[a1 + k];
+					final double y0 = z[b0 + k];
+					final double y1 = z[b1 + k];
+					final double y2 = z[b2 + k];
+					final double y3 = z[b3 + k];
+					s00 += x0 * y0;
+					s01 += x0 * y1;
+					s02 += x0 * y2;
+					s03 += x0 * y3;
+					s10 += x1 * y0;
+					s11 += x1 * y1;
+					s12 += x1 * y2;
+					s13 += x1 * y3;
+				}
+
+				emit(i, j, s00, visitor);
+				emit(i, j + 1, s01, visitor);
+				emit(i, j + 2, s02, visitor);
+				emit(i, j + 3, s03, visitor);
+				scratch[j - jStart] = s10;
+				scratch[j - jStart + 1] = s11;
+				scratch[j - jStart + 2] = s12;
+				scratch[j - jStart + 3] = s13;
+			}
+
+			for (; j < stop; j++) {
+				final int b = j * length;
+				double s0 = 0.0, s1 = 0.0;
+
+				for (int k = 0; k < length; k++) {
+					final double y = z[b + k];
+					s0 += z[a0 + k] * y;
+					s1 += z[a1 + k] * y;
+				}
+
+				emit(i, j, s0, visitor);
+				scratch[j - jStart] = s1;
+			}
+
+			for (j = jStart; j < stop; j++)
+				emit(i + 1, j, scratch[j - jStart], visitor);
+
+			// The second row also pairs with the first one (j = i) if it lies in this tile
+			computeRow(i + 1, stop, jEnd, visitor);
+		}
+
+		if (i < iEnd)
+			computeRow(i, jStart, jEnd, visitor);
+	}
+
+	/**
+	 * Calculates the pairs (i, j) with jFrom <= j < min(i, jTo), four columns at a time.
+	 */
+	private void computeRow(final int i, final int jFrom, final int jTo,
+			final CorrelationSource.PairVisitor visitor) {
+		if (!valid[i])
+			return;
+
+		final int a = i * length;
+		final int stop = Math.min(i, jTo);
+		int j = jFrom;
+
+		for (; j + 3 < stop; j += 4) {
+			final int b0 = j * length;
+			final int b1 = b0 + length;
+			final int b2 = b1 + length;
+			final int b3 = b2 + length;
+			double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+
+			for (int k = 0; k < length; k++) {
+				final double x = z[a + k];
+				s0 += x * z[b0 + k];
+				s1 += x * z[b1 + k];
+				s2 += x * z[b2 + k];
+				s3 += x * z[b3 + k];
+			}
+
+			emit(i, j, s0, visitor);
+			emit(i, j + 1, s1, visitor);
+			emit(i, j + 2, s2, visitor);
+			emit(i, j + 3, s3, visitor);
+		}
+
+		for (; j < stop; j++) {
+			final int b = j * length;
+			double s = 0.0;
+
+			for (int k = 0; k < length; k++)
+				s += z[a + k] * z[b + k];
+
+			emit(i, j, s, visitor);
+		}
+	}
+
+	/**
+	 * Same as computeTile(), for single precision vectors.
+	 */
+	private void computeTileSingle(final int iStart, final int iEnd, final int jStart, final int jEnd,
+			final CorrelationSource.PairVisitor visitor) {
+		for (int i = iStart; i < iEnd; i++) {
+			if (!valid[i])
+				continue;
+
+			final int a = i * length;
+			final int stop = Math.min(i, jEnd);
+			int j = jStart;
+
+			for (; j + 3 < stop; j += 4) {
+				final int b0 = j * length;
+				final int b1 = b0 + length;
+				final int b2 = b1 + length;
+				final int b3 = b2 + length;
+				double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+
+				for (int from = 0; from < length; from += FLOAT_RUN) {
+					final int to = Math.min(from + FLOAT_RUN, length);
+					float f0 = 0f, f1 = 0f, f2 = 0f, f3 = 0f;
+
+					for (int k = from; k < to; k++) {
+						final float x = zf[a + k];
+						f0 += x * zf[b0 + k];
+						f1 += x * zf[b1 + k];
+						f2 += x * zf[b2 + k];
+						f3 += x * zf[b3 + k];
+					}
+
+					s0 += f0;
+					s1 += f1;
+					s2 += f2;
+					s3 += f3;
+				}
+
+				emit(i, j, s0, visitor);
+				emit(i, j + 1, s1, visitor);
+				emit(i, j + 2, s2, visitor);
+				emit(i, j + 3, s3, visitor);
+			}
+
+			for (; j < stop; j++) {
+				final int b = j * length;
+				double s = 0.0;
+
+				for (int from = 0; from < length; from += FLOAT_RUN) {
+					final int to = Math.min(from + FLOAT_RUN, length);
+					float f = 0f;
+
+					for (int k = from; k < to; k++)
+						f += zf[a + k] * zf[b + k];
+
+					s += f;
+				}
+
+				emit(i, j, s, visitor);
+			}
+		}
+	}
+
+	private void emit(final int i, final int j, final double corr, final CorrelationSource.PairVisitor visitor) {
+		if (valid[j])
+			visitor.visit(i, j, clamp(corr));
+	}
+
+	/**
+	 * Rounding can push the correlation of (anti)identical vectors just past +/-1.
+	 */
+	private static double clamp(final double corr) {
+		return corr > 1.0 ? 1.0 : (corr < -1.0 ? -1.0 : corr);
+	}
+}
@@ -0,0 +1,68 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * Calculates the correlations with another CorrelationSource and keeps them in a PackedTriangle on the way,
+ * so that later calculations can read them from it (see StoredCorrelation).
+ * The visitor receives the values as stored, rounding included, so both passes see exactly the same correlations.
+ */
+final class CachingCorrelation extends CorrelationSource {
+
+	private final CorrelationSource source;
+	private final PackedTriangle triangle;
+
+	/**
+	 * @param triangle - receives every correlation of the source; must have as many vectors
+	 */
+	CachingCorrelation(final CorrelationSource source, final PackedTriangle triangle) {
+		super(source.size(), source.tileSize);
+		this.source = source;
+		this.triangle = triangle;
+	}
+
+	@Override
+	boolean isValid(final int i) {
+		return source.isValid(i);
+	}
+
+	@Override
+	void computeBlockRow(final int block, final PairVisitor visitor) {
+		source.computeBlockRow(block, new PairVisitor() {
+			@Override
+			public void visit(int i, int j, double corr) {
+				final long index = PackedTriangle.index(i, j);
+				triangle.set(index, corr);
+				visitor.visit(i, j, triangle.get(index));
+			}
+		});
+	}
+}
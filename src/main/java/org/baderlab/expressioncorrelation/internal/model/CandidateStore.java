@@ -0,0 +1,150 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.util.List;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * The strongest correlations found while calculating a similarity histogram, kept so that a network
+ * can later be built from them without calculating the similarity matrix again.
+ * <p/>
+ * Only pairs with |correlation| > floor are kept. They are stored in three flat arrays, bucket-sorted by
+ * correlation into the same kind of bins as the histogram, so any pair of cutoffs only has to
+ * check the values of the (at most two) bins that contain the cutoffs.
+ */
+final class CandidateStore {
+
+	private final double floor;
+	private final int bins;
+	private final int[] binStart;     // Candidates in bin b are at [binStart[b], binStart[b + 1])
+	private final int[] sources;
+	private final int[] targets;
+	private final double[] values;
+
+	/**
+	 * @param buffers - the candidates, all with |correlation| > floor
+	 * @param floor   - the smallest |correlation| kept
+	 * @param bins    - number of bins between -1 and 1
+	 */
+	CandidateStore(final List<EdgeBuffer> buffers, final double floor, final int bins) {
+		this.floor = floor;
+		this.bins = bins;
+		this.binStart = new int[bins + 1];
+
+		int size = 0;
+
+		for (final EdgeBuffer buffer : buffers) {
+			size += buffer.size();
+
+			for (int k = 0; k < buffer.size(); k++)
+				binStart[getBin(buffer.getValue(k)) + 1]++;
+		}
+
+		for (int b = 0; b < bins; b++)
+			binStart[b + 1] += binStart[b];
+
+		sources = new int[size];
+		targets = new int[size];
+		values = new double[size];
+
+		final int[] next = new int[bins];
+		System.arraycopy(binStart, 0, next, 0, bins);
+
+		for (final EdgeBuffer buffer : buffers) {
+			for (int k = 0; k < buffer.size(); k++) {
+				final int pos = next[getBin(buffer.getValue(k))]++;
+				sources[pos] = buffer.getSource(k);
+				targets[pos] = buffer.getTarget(k);
+				values[pos] = buffer.getValue(k);
+			}
+		}
+	}
+
+	private int getBin(final double corr) {
+		return SimilarityHistogram.getBin(corr, bins);
+	}
+
+	/**
+	 * @return the number of stored pairs
+	 */
+	int size() {
+		return values.length;
+	}
+
+	double getFloor() {
+		return floor;
+	}
+
+	/**
+	 * @return true if every pair selected by the given cutoffs is in this store
+	 */
+	boolean covers(final double lowCutoff, final double highCutoff, final boolean useNeg, final boolean usePos) {
+		return (!useNeg || lowCutoff <= -floor) && (!usePos || highCutoff >= floor);
+	}
+
+	/**
+	 * Requires covers() to be true for the same arguments.
+	 *
+	 * @return the pairs with correlation below lowCutoff (if useNeg) or above highCutoff (if usePos)
+	 */
+	EdgeBuffer select(final double lowCutoff, final double highCutoff, final boolean useNeg, final boolean usePos) {
+		final EdgeBuffer edges = new EdgeBuffer();
+
+		if (useNeg) {
+			// Every bin below the one holding the cutoff is selected as a whole
+			final int last = getBin(Math.max(lowCutoff, -1.0));
+			add(edges, 0, binStart[last]);
+
+			for (int k = binStart[last]; k < binStart[last + 1]; k++) {
+				if (values[k] < lowCutoff)
+					edges.add(sources[k], targets[k], values[k]);
+			}
+		}
+
+		if (usePos) {
+			final int first = getBin(Math.min(highCutoff, 1.0));
+
+			for (int k = binStart[first]; k < binStart[first + 1]; k++) {
+				if (values[k] > highCutoff)
+					edges.add(sources[k], targets[k], values[k]);
+			}
+
+			add(edges, binStart[first + 1], values.length);
+		}
+
+		return edges;
+	}
+
+	private void add(final EdgeBuffer edges, final int from, final int to) {
+		for (int k = from; k < to; k++)
+			edges.add(sources[k], targets[k], values[k]);
+	}
+}
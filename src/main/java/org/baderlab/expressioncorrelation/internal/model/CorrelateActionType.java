@@ -41,7 +41,15 @@ public enum CorrelateActionType {
 	// construct row similarity matrix using defaults
 	GENE_NET_DEF("Gene Network: Using Defaults"),
 	// construct histogram + row
-	GENE_NET_PREVIEW("Gene Network: Preview Histogram");
+	GENE_NET_PREVIEW("Gene Network: Preview Histogram"),
+	// construct col nearest-neighbour network (top k correlations per condition)
+	COND_NET_KNN("Condition Network: Top Neighbours"),
+	// construct row nearest-neighbour network (top k correlations per gene)
+	GENE_NET_KNN("Gene Network: Top Neighbours"),
+	// construct col network of the N strongest correlations
+	COND_NET_TOP("Condition Network: Strongest Edges"),
+	// construct row network of the N strongest correlations
+	GENE_NET_TOP("Gene Network: Strongest Edges");
 	
 	private final String name;
 
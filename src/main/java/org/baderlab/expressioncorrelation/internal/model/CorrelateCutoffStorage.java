@@ -31,7 +31,7 @@ package org.baderlab.expressioncorrelation.internal.model;
 */
 
 /**
- * Stores the cuttoffs selected between plugin executions for the same session of Cytoscape.
+ * Stores the cuttoffs (and the correlation metric) selected between plugin executions for the same session of Cytoscape.
  */
 public class CorrelateCutoffStorage {
 	
@@ -40,6 +40,7 @@ public class CorrelateCutoffStorage {
     private static double rowNegCutoff = -0.95;
     private static double colPosCutoff = 0.95;
     private static double colNegCutoff = -0.95;
+    private static CorrelationMetric metric = CorrelationMetric.PEARSON;
 
     private CorrelateCutoffStorage() {
     }
@@ -61,6 +62,14 @@ public class CorrelateCutoffStorage {
     }
 
 
+    public CorrelationMetric getMetric() {
+        return metric;
+    }
+
+    public void setMetric(CorrelationMetric metric) {
+        CorrelateCutoffStorage.metric = metric;
+    }
+
     public void setCutoffs(boolean isRowNetwork, double[] cutoffs) {
         if (isRowNetwork) {
             rowNegCutoff = cutoffs[0];
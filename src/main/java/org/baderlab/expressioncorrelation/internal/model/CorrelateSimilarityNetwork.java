@@ -1,17 +1,20 @@
 package org.baderlab.expressioncorrelation.internal.model;
 
-import java.util.Collection;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.cytoscape.application.CyApplicationManager;
-import org.cytoscape.model.CyEdge;
-import org.cytoscape.model.CyIdentifiable;
 import org.cytoscape.model.CyNetwork;
 import org.cytoscape.model.CyNetworkFactory;
 import org.cytoscape.model.CyNetworkManager;
-import org.cytoscape.model.CyNode;
-import org.cytoscape.model.CyRow;
-import org.cytoscape.model.subnetwork.CyRootNetwork;
 import org.cytoscape.property.CyProperty;
 import org.cytoscape.service.util.CyServiceRegistrar;
 import org.cytoscape.view.layout.CyLayoutAlgorithm;
@@ -23,11 +26,6 @@ import org.cytoscape.work.TaskIterator;
 import org.cytoscape.work.TaskMonitor;
 import org.cytoscape.work.swing.DialogTaskManager;
 
-import cern.colt.matrix.DoubleMatrix1D;
-import cern.colt.matrix.DoubleMatrix2D;
-import cern.colt.matrix.impl.DenseDoubleMatrix1D;
-import cern.colt.matrix.impl.DenseDoubleMatrix2D;
-import cern.colt.matrix.linalg.Algebra;
 
 /*
  * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
@@ -65,6 +63,20 @@ import cern.colt.matrix.linalg.Algebra;
  */
 public class CorrelateSimilarityNetwork {
 
+    /** Maximum number of bars returned by getHistogram() */
+    public static final int DISPLAY_BINS = 2000;
+    
+    /** Seed of the permutations of significance mode, so that the same data always gets the same cutoffs */
+    private static final long PERMUTATION_SEED = 20150101L;
+    /** Number of candidates a work unit of the strongest-edges networks collects before it takes the shared heap */
+    private static final int STRONGEST_BATCH = 1024;
+    /** Seed of the pairs drawn by the estimated histograms */
+    private static final long SAMPLE_SEED = 20150102L;
+    /** Seed of the order of the tile rows of a histogram with a listener */
+    private static final long SNAPSHOT_SEED = 20150103L;
+    /** Fraction of the pairs between two snapshots sent to the histogram listener */
+    private static final double SNAPSHOT_INTERVAL = 0.05;
+
     // Variables for the Row  Similarity Matrix (rows usually represent genes)
     private String rowNetName = "Gene Network"; //Default name of the network
     private int rowTotalSteps = 0;                //The number rowCurrentStep will reach when the calculations are done
@@ -74,7 +86,8 @@ public class CorrelateSimilarityNetwork {
     private double rowNegCutoff = -0.95;         //Default value. Rows with Correlation below this value will be used to
     //      construct the row similarity network if rowUseNeg is true
     //      To work properly: -1 <= rowNegCutoff <= 0
-    private int[] rowHistogram;                //Similarity matrix histogram values (-1.0 = first bin = 0  to 1.0 = last bin)
+    private volatile HistogramState rowState;  //Current row histogram, with its sample and null distribution
+    private CandidateStore rowCandidates;      //Strongest row correlations, saved by the last row histogram (fused mode)
     private boolean rowUsePos = true;           //True if positive interactions are to be used
     private boolean rowUseNeg = true;           //True if negative interactions are to be used
     private int numberOfRows = 0;
@@ -87,13 +100,52 @@ public class CorrelateSimilarityNetwork {
     private double colNegCutoff = -0.95;         //Default value. Columns with Correlation below this value will be used to
     //      construct the column similarity network if colUseNeg is true
     //      To work properly: -1 <= colNegCutoff <= 0
-    private int[] colHistogram;                //Similarity matrix histogram values (-1.0 = first bin = 0  to 1.0 = last bin)
+    private volatile HistogramState colState;  //Current column histogram, with its sample and null distribution
+    private CandidateStore colCandidates;      //Strongest column correlations, saved by the last column histogram (fused mode)
     private boolean colUsePos = true;           //True if positive interactions are to be used
     private boolean colUseNeg = true;           //True if negative interactions are to be used
     private int numberOfCols = 0;
 
-    private boolean cancel;     //This will cancel the current loop in calc() or histogram(). To use call cancel().
+    private volatile boolean cancel; //This will cancel the current loop in calc() or histogram(). To use call cancel().
     							//      The cancel value will automatically be reset to false
+    private int tileSize = BlockedCorrelation.DEFAULT_TILE_SIZE; //Number of vectors per side of each correlation tile
+    private int parallelism = Runtime.getRuntime().availableProcessors(); //Number of threads used by calc() and histogram()
+    private CorrelationMetric metric = CorrelationMetric.PEARSON; //Similarity measure of the networks and histograms
+    private int minOverlap = 3; //With missing values, pairs that share fewer values get no correlation
+    private int histogramBins = 20000; //Number of histogram bins between -1 and 1 (bin size = 2/histogramBins)
+    private int cutoffScale = 10000;   //Cutoffs are kept to 1/cutoffScale, about the size of one histogram bin
+    
+    // Fused mode: histogram() keeps every pair with |correlation| > candidateFloor (up to candidateCapacity pairs),
+    //  so that calc() can build the network from them instead of calculating the similarity matrix again
+    private boolean fused = true;
+    private double candidateFloor = 0.5;
+    private int candidateCapacity = 10000000;
+    
+    // Stored similarity matrices (see saveRowMatrix() and loadRowMatrix()): when set, every calculation reads
+    //  the correlations from them instead of calculating them again
+    private PackedTriangle rowMatrix;
+    private PackedTriangle colMatrix;
+    
+    // Matrix cache: if enabled, the first calculation keeps every correlation (rounded to 1/32767) in memory,
+    //  and later calculations read them from there
+    private boolean matrixCache = false;
+    private long matrixCacheCapacity = 100000000; //Maximum number of pairs (2 bytes each) cached per matrix
+    private PackedTriangle rowCache;
+    private PackedTriangle colCache;
+    
+    // Significance mode: histogram() also correlates permuted copies of a sample of the vectors, which gives
+    //  the p-values and q-values of the correlations and cutoffs at a false discovery rate (see setCutoffsFdr)
+    private boolean significance = false;
+    private int permutations = 10;          //Number of permutations of the sample
+    private int permutationSample = 1000;   //Number of vectors sampled for the permutations
+    private boolean analyticSignificance = false; //true to take the null distribution of Pearson from the t-distribution
+    
+    // Estimated histograms (see rowHistogramEstimate): the histogram is estimated from a random sample of the pairs
+    private int previewSample = 1000000;  //Number of pairs drawn
+    private HistogramListener histogramListener; //Told about the snapshots of the histogram (null if none)
+    
+    private int neighbourCount = 10; //Number of strongest correlations kept per node by the nearest-neighbour networks
+    private int edgeBudget = 10000;  //Number of strongest correlations kept by the strongest-edges networks
     
     private String warningMessage;
     
@@ -116,6 +168,358 @@ public class CorrelateSimilarityNetwork {
 		return warningMessage;
 	}
 	
+	public int getTileSize() {
+		return tileSize;
+	}
+	
+	/**
+	 * Sets the number of vectors per side of the tiles in which the similarity matrix is calculated.
+	 * Larger tiles reuse more data per load, but must still fit in the CPU cache
+	 * (tileSize * number of values per vector * 8 bytes).
+	 */
+	public void setTileSize(final int tileSize) {
+		if (tileSize < 1)
+			throw new IllegalArgumentException("'tileSize' must be at least 1");
+		
+		this.tileSize = tileSize;
+	}
+	
+	public int getParallelism() {
+		return parallelism;
+	}
+	
+	/**
+	 * Sets the number of threads used to calculate the similarity matrix in calc() and histogram().
+	 * Use 1 to run the calculation on the calling thread only.
+	 */
+	public void setParallelism(final int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("'parallelism' must be at least 1");
+		
+		this.parallelism = parallelism;
+	}
+	
+	public int getHistogramBins() {
+		return histogramBins;
+	}
+	
+	/**
+	 * Sets the number of bins of the histograms calculated by histogram(), which is also how precisely
+	 * cutoffs can be chosen from them (e.g. 20000 bins -> 0.0001). The histogram queries do not get slower
+	 * with more bins, and getHistogram() merges neighbouring bins for display.
+	 */
+	public void setHistogramBins(final int histogramBins) {
+		if (histogramBins < 2)
+			throw new IllegalArgumentException("'histogramBins' must be at least 2");
+		
+		this.histogramBins = histogramBins;
+		
+		cutoffScale = 1000;
+		
+		while (cutoffScale < histogramBins / 2 && cutoffScale < 100000000)
+			cutoffScale *= 10;
+	}
+	
+	/**
+	 * @return the number of decimals kept in the cutoffs
+	 */
+	public int getCutoffDecimals() {
+		return Integer.toString(cutoffScale).length() - 1;
+	}
+	
+	public boolean isSinglePrecision() {
+		return data.isSinglePrecision();
+	}
+	
+	/**
+	 * Single precision mode: if true, the expression values are stored and correlated as floats, which halves
+	 * the memory needed and speeds up the calculations. Correlations are then accurate to about 1e-6.
+	 * Correlations kept by an earlier histogram (or the matrix cache) are discarded, so that networks always match
+	 * the current mode.
+	 */
+	public void setSinglePrecision(final boolean singlePrecision) {
+		if (data.isSinglePrecision() != singlePrecision) {
+			data.setSinglePrecision(singlePrecision);
+			rowCandidates = null;
+			colCandidates = null;
+			rowCache = null;
+			colCache = null;
+		}
+	}
+	
+	public CorrelationMetric getMetric() {
+		return metric;
+	}
+	
+	/**
+	 * Sets the similarity measure used by all networks and histograms. SPEARMAN ranks every vector once and
+	 * then correlates the ranks like PEARSON, so it takes about as long. KENDALL takes O(m log m) per pair
+	 * for vectors of m values, instead of O(m).
+	 * Correlations kept by an earlier histogram, the matrix cache and stored matrices are dropped when it changes.
+	 */
+	public void setMetric(final CorrelationMetric metric) {
+		if (metric == null)
+			throw new IllegalArgumentException("'metric' argument is null");
+		
+		if (this.metric != metric) {
+			this.metric = metric;
+			rowCandidates = null;
+			colCandidates = null;
+			rowCache = null;
+			colCache = null;
+			rowMatrix = null;
+			colMatrix = null;
+		}
+	}
+	
+	public boolean isMissingValues() {
+		return data.isMissingValues();
+	}
+	
+	/**
+	 * Missing-value mode: if true, empty cells of the expression table are missing values instead of 0, and
+	 * every pair of vectors is correlated over the values both have. Pairs of complete vectors are calculated
+	 * as fast as before, so the mode only costs time for the pairs that actually miss values.
+	 * Correlations kept by an earlier histogram, the matrix cache and stored matrices are dropped when it changes.
+	 */
+	public void setMissingValues(final boolean missingValues) {
+		if (data.isMissingValues() != missingValues) {
+			data.setMissingValues(missingValues);
+			rowCandidates = null;
+			colCandidates = null;
+			rowCache = null;
+			colCache = null;
+			rowMatrix = null;
+			colMatrix = null;
+		}
+	}
+	
+	public int getMinOverlap() {
+		return minOverlap;
+	}
+	
+	/**
+	 * Sets the number of values two vectors must share to be correlated in missing-value mode.
+	 * Pairs that share fewer values get no edge. Correlations kept by an earlier histogram and the matrix cache are
+	 * dropped when it changes, and so are stored matrices in missing-value mode.
+	 */
+	public void setMinOverlap(final int minOverlap) {
+		if (minOverlap < 2)
+			throw new IllegalArgumentException("'minOverlap' must be at least 2");
+		
+		if (this.minOverlap != minOverlap) {
+			this.minOverlap = minOverlap;
+			rowCandidates = null;
+			colCandidates = null;
+			rowCache = null;
+			colCache = null;
+			
+			// Stored matrices only depend on it in missing-value mode
+			if (data.isMissingValues()) {
+				rowMatrix = null;
+				colMatrix = null;
+			}
+		}
+	}
+	
+	public boolean isFused() {
+		return fused;
+	}
+	
+	/**
+	 * Fused mode: if true, histogram() also keeps the strongest correlations (see setCandidateFloor),
+	 * and calc() builds the network from them, as long as the cutoffs are not weaker than the floor.
+	 * The similarity matrix is then only calculated once for the "Preview Histogram" workflow.
+	 */
+	public void setFused(final boolean fused) {
+		this.fused = fused;
+		
+		if (!fused) {
+			rowCandidates = null;
+			colCandidates = null;
+		}
+	}
+	
+	public double getCandidateFloor() {
+		return candidateFloor;
+	}
+	
+	/**
+	 * Sets the smallest |correlation| that histogram() keeps in fused mode.
+	 * Takes effect the next time the histogram is calculated.
+	 */
+	public void setCandidateFloor(final double candidateFloor) {
+		if (candidateFloor < 0 || candidateFloor > 1)
+			throw new IllegalArgumentException("'candidateFloor' must be between 0 and 1");
+		
+		this.candidateFloor = candidateFloor;
+	}
+	
+	public int getCandidateCapacity() {
+		return candidateCapacity;
+	}
+	
+	/**
+	 * Sets the maximum number of correlations histogram() keeps in fused mode.
+	 * If more pairs than this are above the floor, none are kept and calc() calculates the matrix again.
+	 */
+	public void setCandidateCapacity(final int candidateCapacity) {
+		if (candidateCapacity < 0)
+			throw new IllegalArgumentException("'candidateCapacity' must not be negative");
+		
+		this.candidateCapacity = candidateCapacity;
+	}
+	
+	public boolean isMatrixCache() {
+		return matrixCache;
+	}
+	
+	/**
+	 * Matrix cache: if true, the first calculation of a similarity matrix (by histogram(), calc() or any other
+	 * network) keeps every correlation in memory, rounded to a multiple of 1/32767 (2 bytes per pair), and all
+	 * later calculations read the correlations from there. All of them then use the rounded values, so the
+	 * histogram and the networks always agree. Matrices with more pairs than the capacity are not cached.
+	 */
+	public void setMatrixCache(final boolean matrixCache) {
+		this.matrixCache = matrixCache;
+		
+		if (!matrixCache) {
+			rowCache = null;
+			colCache = null;
+		}
+	}
+	
+	public long getMatrixCacheCapacity() {
+		return matrixCacheCapacity;
+	}
+	
+	/**
+	 * Sets the maximum number of pairs of a cached similarity matrix (n * (n - 1) / 2 for n genes or conditions).
+	 * Takes effect the next time a matrix is calculated.
+	 */
+	public void setMatrixCacheCapacity(final long matrixCacheCapacity) {
+		if (matrixCacheCapacity < 0)
+			throw new IllegalArgumentException("'matrixCacheCapacity' must not be negative");
+		
+		this.matrixCacheCapacity = matrixCacheCapacity;
+	}
+	
+	public int getPreviewSample() {
+		return previewSample;
+	}
+	
+	/**
+	 * Sets the number of pairs drawn by rowHistogramEstimate() and colHistogramEstimate().
+	 */
+	public void setPreviewSample(final int previewSample) {
+		if (previewSample < 1)
+			throw new IllegalArgumentException("'previewSample' must be at least 1");
+		
+		this.previewSample = previewSample;
+	}
+	
+	public HistogramListener getHistogramListener() {
+		return histogramListener;
+	}
+	
+	/**
+	 * Sets the listener of the histogram snapshots (null to remove it). With a listener, histogram() takes the tile rows
+	 * in random order, and publishes the histogram of the pairs done so far every few percent of the pairs,
+	 * as an estimated histogram (see isHistogramEstimated() and getInteractionBounds()). A snapshot only replaces
+	 * an estimated histogram drawn from fewer pairs, or a missing one, never an exact one.
+	 * Takes effect the next time the histogram is calculated.
+	 */
+	public void setHistogramListener(final HistogramListener histogramListener) {
+		this.histogramListener = histogramListener;
+	}
+	
+	public int getNeighbourCount() {
+		return neighbourCount;
+	}
+	
+	/**
+	 * Sets the number of strongest correlations (largest |r|) that calcRowsNeighbours() and calcColsNeighbours()
+	 * keep for each node.
+	 */
+	public void setNeighbourCount(final int neighbourCount) {
+		if (neighbourCount < 1)
+			throw new IllegalArgumentException("'neighbourCount' must be at least 1");
+		
+		this.neighbourCount = neighbourCount;
+	}
+	
+	public int getEdgeBudget() {
+		return edgeBudget;
+	}
+	
+	/**
+	 * Sets the exact number of edges of the networks created by calcRowsStrongest() and calcColsStrongest().
+	 */
+	public void setEdgeBudget(final int edgeBudget) {
+		if (edgeBudget < 0)
+			throw new IllegalArgumentException("'edgeBudget' must not be negative");
+		
+		this.edgeBudget = edgeBudget;
+	}
+	
+	public boolean isSignificance() {
+		return significance;
+	}
+	
+	/**
+	 * Significance mode: if true, histogram() also estimates the distribution of the correlations of unrelated
+	 * vectors, by shuffling the values of each vector of a random sample (see setPermutations() and
+	 * setPermutationSample()). Cutoffs can then be set at a false discovery rate (see setCutoffsFdr()), and
+	 * the edges of new networks get "P-value" and "Q-value" columns. calc() calculates the histogram first
+	 * if it is missing.
+	 */
+	public void setSignificance(final boolean significance) {
+		this.significance = significance;
+	}
+	
+	public boolean isAnalyticSignificance() {
+		return analyticSignificance;
+	}
+	
+	/**
+	 * Sets whether significance mode takes the null distribution of Pearson correlations from the t-distribution
+	 * with n - 2 degrees of freedom (n = number of values per vector) instead of permutations, which costs nothing
+	 * beyond the histogram. Other metrics, and data with missing values (where n differs between pairs), are still
+	 * permuted. Takes effect the next time the histogram is calculated.
+	 */
+	public void setAnalyticSignificance(final boolean analyticSignificance) {
+		this.analyticSignificance = analyticSignificance;
+	}
+	
+	public int getPermutations() {
+		return permutations;
+	}
+	
+	/**
+	 * Sets the number of permutations of the sample. Every permutation calculates all pairs of the sample,
+	 * so the null distribution has permutations * sample * (sample - 1) / 2 values.
+	 */
+	public void setPermutations(final int permutations) {
+		if (permutations < 1)
+			throw new IllegalArgumentException("'permutations' must be at least 1");
+		
+		this.permutations = permutations;
+	}
+	
+	public int getPermutationSample() {
+		return permutationSample;
+	}
+	
+	/**
+	 * Sets the number of vectors sampled for the permutations (all of them if there are fewer).
+	 */
+	public void setPermutationSample(final int permutationSample) {
+		if (permutationSample < 2)
+			throw new IllegalArgumentException("'permutationSample' must be at least 2");
+		
+		this.permutationSample = permutationSample;
+	}
+	
     /**
      * This gives the network the name of the expression data file.
      */
@@ -173,7 +577,7 @@ public class CorrelateSimilarityNetwork {
      */
     private CyNetwork calcRows(String networkName, double lowCutoff, double highCutoff, final TaskMonitor tm) {
         String[] geneNames = data.getGeneNames();
-        DoubleMatrix2D inputMatrix = getExpressionMatrix();
+        ExpressionMatrix inputMatrix = getExpressionMatrix();
         
         return calcRows(networkName, inputMatrix, lowCutoff, highCutoff, geneNames, tm);
     }
@@ -190,14 +594,14 @@ public class CorrelateSimilarityNetwork {
      * </pre>
      *
      * @param networkName - The name of the row network (e.g. "Genes of" + the data set name ).
-     * @param inputMatrix - This DoubleMatrix2D will be used to construct the network.
+     * @param inputMatrix - This ExpressionMatrix will be used to construct the network.
      * @param lowCutoff   - Rows with Correlation below this value will be used to construct the row similarity network if rowUseNeg is true.
      * @param highCutoff  - Rows with Correlation above this value will be used to construct the row similarity network if rowUsePos is true.
      * @return
      */
     private CyNetwork calcRows(
     		String networkName,
-    		DoubleMatrix2D inputMatrix,
+    		ExpressionMatrix inputMatrix,
     		double lowCutoff,
     		double highCutoff,
     		String[] rowNames,
@@ -251,7 +655,7 @@ public class CorrelateSimilarityNetwork {
      */
     private CyNetwork calcCols(String networkName, double lowCutoff, double highCutoff, final TaskMonitor tm) {
         String[] condNames = data.getConditionNames();
-        DoubleMatrix2D inputMatrix = getExpressionMatrix();
+        ExpressionMatrix inputMatrix = getExpressionMatrix();
         
         return calc(false, networkName, inputMatrix, lowCutoff, highCutoff, condNames, tm);
     }
@@ -269,7 +673,7 @@ public class CorrelateSimilarityNetwork {
 	private CyNetwork calc(
 			boolean isRowNetwork,
 			String networkName,
-			DoubleMatrix2D inputMatrix,
+			ExpressionMatrix inputMatrix,
 			double lowCutoff,
 			double highCutoff,
 			String[] names,
@@ -277,27 +681,30 @@ public class CorrelateSimilarityNetwork {
 	) {
         // When creating the network, don't automatically create the network view
 		final CyNetwork net = createNetwork(networkName);
-
-        // Does some initial calculations and stores all the calculation data
-        final InitiationData initData = new InitiationData(isRowNetwork, inputMatrix, true);
+		
+		// The q-values of the edges need the distribution of all the correlations
+		if (significance && getSignificance(isRowNetwork) == null) {
+			histogram(isRowNetwork, inputMatrix, tm);
+			
+			if (cancel)
+				return net;
+		}
 
         // Checks to see that cutoffs make sense
         double[] cutoffs = cutoffCheck(isRowNetwork, lowCutoff, highCutoff);
         lowCutoff = cutoffs[0];
         highCutoff = cutoffs[1];
 
-        // A calculation needed for the command line/text progress bar
-        int mod = initData.columns % 10;
-        if (initData.columns <= 10) mod = 0;
-
-        // The loop below is the main step. Here the Pearson Correlation Coefficient is calculated
+        // The network is built in two phases.
+        // 1. The loop below is the main step. Here the Pearson Correlation Coefficient is calculated
         //  note: only the top half of the rectangle is calculated since the matrix is symmetric
-        // The Similarity Matrix is never stored. Instead, at each point in the Similarity Matrix,
-        //  the correlation is calculated, and if its above the threshold then an edge is created
-        //  connecting the nodes involved. The correlation value is then erased.
+        // The Similarity Matrix is never stored. Instead, it is calculated one tile at a time,
+        //  and if a correlation is above the threshold then the indices of the two nodes and the
+        //  correlation are saved in an edge buffer. The correlation value is then erased.
         //  Information about values below the threshold is lost.
         // This loop is set up to calculate the column correlations, so for the row
         //  network the matrix has been transposed
+        // 2. All nodes and edges in the buffers are then created in the network at once.
         if (tm != null) {
             String type = "condition";
             
@@ -308,17 +715,50 @@ public class CorrelateSimilarityNetwork {
             tm.setStatusMessage("Constructing " + type + " correlation network from " + data.getName() +  "...");
         }
 
-        // Goes through each column
-        for (int i = 0; i < initData.columns; i++) {
-            // Calculates the correlations for a single column
-            core(net, initData, i, lowCutoff, highCutoff, names, false);
-            
-            if (cancel)
-                return net;
-
-            if (tm != null && (i * 10) % (initData.columns - mod) == 0)
-            	tm.setProgress((double) i / initData.columns);
+        final List<EdgeBuffer> buffers;
+        final CandidateStore candidates = isRowNetwork ? rowCandidates : colCandidates;
+        final boolean[] uses = getUses(isRowNetwork);
+        
+        if (candidates != null && candidates.covers(lowCutoff, highCutoff, uses[0], uses[1])) {
+        	// The histogram pass already kept every correlation this network needs
+        	buffers = Collections.singletonList(candidates.select(lowCutoff, highCutoff, uses[0], uses[1]));
+        } else {
+	        // Does some initial calculations and stores all the calculation data
+	        final InitiationData initData = new InitiationData(isRowNetwork, inputMatrix, true);
+	        
+	        // Each work unit collects its own edges
+	        final double low = lowCutoff;
+	        final double high = highCutoff;
+	        buffers = computeUnits(initData, new UnitWork<EdgeBuffer>() {
+				@Override
+				public EdgeBuffer create() {
+					return new EdgeBuffer();
+				}
+				@Override
+				public void compute(InitiationData data, int block, EdgeBuffer edges) {
+					// Calculates the correlations for a single row of tiles
+					core(edges, data, block, low, high);
+				}
+			}, tm);
+	        
+	        if (cancel)
+	            return net;
         }
+        
+        return materialize(net, names, buffers, getSignificance(isRowNetwork), tm);
+    }
+
+    /**
+     * Creates the nodes and edges of the collected correlations in the network, and registers the network.
+     *
+     * @param significance - p-values and q-values of the edges (null if not known)
+     */
+    private CyNetwork materialize(final CyNetwork net, final String[] names, final List<EdgeBuffer> buffers,
+    		final Significance significance, final TaskMonitor tm) {
+        if (tm != null)
+        	tm.setStatusMessage("Creating nodes and edges...");
+        
+        new NetworkMaterializer(net, names, significance).materialize(buffers);
 
         serviceRegistrar.getService(CyNetworkManager.class).addNetwork(net);
         maybeCreateNetworkView(net);
@@ -332,63 +772,434 @@ public class CorrelateSimilarityNetwork {
     }
 
     /**
-     * Creates the two nodes if they don't exist, and creates an edge between them
+     * <pre>
+     * This creates the row (gene) nearest-neighbour network: every gene is connected to the genes with
+     * its neighbourCount strongest correlations (positive and/or negative, see rowUsePos and rowUseNeg).
+     * The cutoffs are not used.
+     * <p/>
+     * A gene can have more than neighbourCount edges, when it is among the strongest correlations of
+     * other genes, but the network never has more than neighbourCount edges per gene.
+     * </pre>
      *
-     * @param network    - network to create edge
-     * @param i          - index of the first node
-     * @param j          - index of the second node
-     * @param names      - array of names of the nodes
-     * @param corr       - correlation value (edge strength)
-     */
-    public void createEdge(final CyNetwork network, int i, int j, String[] names, double corr) {
-        final CyNode source = getNode(network, names[i]);
-        final CyNode target = getNode(network, names[j]);
-        final CyEdge edge = network.addEdge(source, target, true);
-        
-        final String VALUE_COL_NAME = "Strength";
-		
-		if (network.getDefaultEdgeTable().getColumn(VALUE_COL_NAME) == null)
-			network.getTable(CyEdge.class, CyNetwork.LOCAL_ATTRS).createColumn(VALUE_COL_NAME, Double.class, false);
+     * @return Returns the CyNetwork for the row (gene) nearest-neighbour network.
+     */
+    public CyNetwork calcRowsNeighbours(final TaskMonitor tm) {
+        if (rowNetName.equals("Gene Network"))
+            nameNetwork();
         
-        final String edgeName = names[i] + "_interaction_" + names[j];
-        final String interaction = corr > 0 ? "pos_interaction" : "neg_interaction";
+        return calcNeighbours(true, rowNetName + ": top " + neighbourCount + " neighbours", data.getGeneNames(), tm);
+    }
 
-        final CyRow row = network.getRow(edge);
-		row.set(CyNetwork.NAME, edgeName);
-		row.set(CyRootNetwork.SHARED_NAME, edgeName);
-		row.set(CyEdge.INTERACTION, interaction);
-		row.set(CyEdge.INTERACTION, interaction);
-		row.set(VALUE_COL_NAME, corr);
+    /**
+     * <pre>
+     * This creates the column (condition) nearest-neighbour network: every condition is connected to the
+     * conditions with its neighbourCount strongest correlations (positive and/or negative, see colUsePos and colUseNeg).
+     * The cutoffs are not used.
+     * </pre>
+     *
+     * @return Returns the CyNetwork for the column (condition) nearest-neighbour network.
+     */
+    public CyNetwork calcColsNeighbours(final TaskMonitor tm) {
+        if (colNetName.equals("Cond Network"))
+            nameNetwork();
+        
+        return calcNeighbours(false, colNetName + ": top " + neighbourCount + " neighbours", data.getConditionNames(),
+        		tm);
     }
-    
+
     /**
-     * Get a node by name or create one if it does not exist.
-     * @param network
-     * @param name The node name
-     * @return An existing or a new node
+     * <pre>
+     * Writes the edges of the row (gene) similarity network to a file instead of creating a CyNetwork,
+     * so networks too large for Cytoscape can be calculated and filtered or loaded later.
+     * The current cutoffs and positive/negative settings are used, as in calcRows().
+     * </pre>
+     *
+     * @param file   - The edge list file (replaced if it exists)
+     * @param format - TSV or BINARY (see EdgeListFormat)
+     * @return the number of edges written (incomplete if cancelled)
      */
-    private CyNode getNode(final CyNetwork network, final String name) {
-    	CyNode node = null;
-    	final Collection<CyRow> matchingRows = network.getDefaultNodeTable().getMatchingRows(CyNetwork.NAME, name);
-    	
-    	if (matchingRows != null && !matchingRows.isEmpty()) {
-    		final CyRow row = matchingRows.iterator().next();
-    		final Long suid = row.get(CyIdentifiable.SUID, Long.class);
-    		
-    		if (suid != null)
-    			node = network.getNode(suid);
-    	}
+    public long exportRows(final File file, final EdgeListFormat format, final TaskMonitor tm) throws IOException {
+        return export(true, file, format, rowNegCutoff, rowPosCutoff, data.getGeneNames(), tm);
+    }
+
+    /**
+     * Writes the edges of the column (condition) similarity network to a file instead of creating a CyNetwork.
+     * The current cutoffs and positive/negative settings are used, as in calcCols().
+     *
+     * @param file   - The edge list file (replaced if it exists)
+     * @param format - TSV or BINARY (see EdgeListFormat)
+     * @return the number of edges written (incomplete if cancelled)
+     */
+    public long exportCols(final File file, final EdgeListFormat format, final TaskMonitor tm) throws IOException {
+        return export(false, file, format, colNegCutoff, colPosCutoff, data.getConditionNames(), tm);
+    }
+
+    /**
+     * Streams all column or row correlations beyond the cutoffs to an edge list file. No nodes, edges or
+     * table rows are created, and only a small buffer per work unit is held in memory.
+     */
+    private long export(
+    		boolean isRowNetwork,
+    		File file,
+    		EdgeListFormat format,
+    		double lowCutoff,
+    		double highCutoff,
+    		String[] names,
+    		final TaskMonitor tm
+    ) throws IOException {
+        final double[] cutoffs = cutoffCheck(isRowNetwork, lowCutoff, highCutoff);
+        final double low = cutoffs[0];
+        final double high = cutoffs[1];
+        
+        if (tm != null) {
+            final String type = isRowNetwork ? "gene" : "condition";
+            
+            tm.setProgress(0.0);
+            tm.setStatusMessage("Writing " + type + " correlation edges from " + data.getName() + " to " + file.getName() + "...");
+        }
+        
+        final InitiationData initData = new InitiationData(isRowNetwork, getExpressionMatrix(), true);
+        
+        try (final EdgeListWriter writer = new EdgeListWriter(file, format, names)) {
+	        final List<EdgeListWriter.Sink> sinks = computeUnits(initData, new UnitWork<EdgeListWriter.Sink>() {
+				@Override
+				public EdgeListWriter.Sink create() {
+					return writer.newSink();
+				}
+				@Override
+				public void compute(final InitiationData data, int block, final EdgeListWriter.Sink sink) {
+					if (writer.getError() != null) {
+						// Stops the other work units too (the error is thrown when the writer is closed)
+						cancel = true;
+						return;
+					}
+					
+					data.correlation.computeBlockRow(block, new CorrelationSource.PairVisitor() {
+						@Override
+						public void visit(int i, int j, double corr) {
+							if ((corr > high && data.usePos) || (corr < low && data.useNeg))
+								sink.add(i, j, corr);
+						}
+					});
+				}
+			}, tm);
+	        
+	        if (writer.getError() != null)
+	        	cancel = false;
+	        
+	        // The work units are done, so their remaining edges can be written from this thread
+	        for (final EdgeListWriter.Sink sink : sinks)
+	        	sink.flush();
+	        
+	        if (tm != null)
+	            tm.setProgress(1.0);
+	        
+	        return writer.getEdgeCount();
+        }
+    }
+
+    /**
+     * Calculates the row (gene) similarity matrix once and writes it to a file, which is then used instead of
+     * calculating the correlations again by histogram(), calc() and the other network and export methods.
+     * The file can be used again later with loadRowMatrix().
+     *
+     * @param file     - The matrix file (replaced if it exists). It needs encoding.getBytes() * n * (n - 1) / 2
+     *                 bytes for n genes.
+     * @param encoding - FLOAT32 keeps about 7 significant digits of each correlation, INT16 rounds them to
+     *                 1/32767 in half the space
+     * @return false if cancelled (the incomplete file is not used)
+     */
+    public boolean saveRowMatrix(final File file, final CorrelationEncoding encoding, final TaskMonitor tm)
+    		throws IOException {
+        return saveMatrix(true, file, encoding, tm);
+    }
+
+    /**
+     * Calculates the column (condition) similarity matrix once and writes it to a file, which is then used
+     * instead of calculating the correlations again (see saveRowMatrix()).
+     *
+     * @return false if cancelled (the incomplete file is not used)
+     */
+    public boolean saveColMatrix(final File file, final CorrelationEncoding encoding, final TaskMonitor tm)
+    		throws IOException {
+        return saveMatrix(false, file, encoding, tm);
+    }
+
+    /**
+     * Uses a row (gene) similarity matrix written earlier by saveRowMatrix() for the same expression data,
+     * instead of calculating the correlations.
+     *
+     * @throws IOException if the file cannot be read, does not hold one vector per gene, or was calculated
+     *                     with another metric, missing-value mode or minimum overlap
+     */
+    public void loadRowMatrix(final File file) throws IOException {
+        loadMatrix(true, file);
+    }
+
+    /**
+     * Uses a column (condition) similarity matrix written earlier by saveColMatrix() for the same expression
+     * data, instead of calculating the correlations.
+     *
+     * @throws IOException if the file cannot be read, does not hold one vector per condition, or was calculated
+     *                     with another metric, missing-value mode or minimum overlap
+     */
+    public void loadColMatrix(final File file) throws IOException {
+        loadMatrix(false, file);
+    }
+
+    /**
+     * @return true if the correlations of the row (or column) network are read from a stored similarity matrix
+     */
+    public boolean hasStoredMatrix(final boolean isRowNetwork) {
+        return (isRowNetwork ? rowMatrix : colMatrix) != null;
+    }
+
+    /**
+     * Stops using the stored similarity matrices, so correlations are calculated again.
+     */
+    public void clearStoredMatrices() {
+        rowMatrix = null;
+        colMatrix = null;
+    }
+
+    private boolean saveMatrix(
+    		boolean isRowNetwork,
+    		File file,
+    		CorrelationEncoding encoding,
+    		final TaskMonitor tm
+    ) throws IOException {
+        if (tm != null) {
+            final String type = isRowNetwork ? "gene" : "condition";
+            
+            tm.setProgress(0.0);
+            tm.setStatusMessage("Writing " + type + " similarity matrix from " + data.getName() + " to " + file.getName() + "...");
+        }
+        
+        // The matrix is replaced, so it must be calculated (at full precision, not from the cache)
+        setStoredMatrix(isRowNetwork, null);
+        
+        final InitiationData initData = new InitiationData(isRowNetwork, getExpressionMatrix(), true, true);
+        
+        // Every work unit writes its own rows of the triangle
+        final MappedTriangle triangle =
+        		MappedTriangle.create(file, encoding, getMatrixSettings(), initData.correlation.getValidity());
+        boolean complete = false;
+        
+        try {
+            computeUnits(initData, new UnitWork<Object>() {
+				@Override
+				public Object create() {
+					return null;
+				}
+				@Override
+				public void compute(final InitiationData data, int block, Object result) {
+					data.correlation.computeBlockRow(block, new CorrelationSource.PairVisitor() {
+						@Override
+						public void visit(int i, int j, double corr) {
+							triangle.set(PackedTriangle.index(i, j), corr);
+						}
+					});
+				}
+			}, tm);
+            
+            if (cancel)
+            	return false;
+            
+            triangle.complete();
+            complete = true;
+        } finally {
+            // A partial matrix must not be left behind (open() rejects it anyway)
+            if (!complete) {
+                triangle.close();
+                file.delete();
+            }
+        }
+        
+        setStoredMatrix(isRowNetwork, triangle);
+        
+        if (tm != null)
+            tm.setProgress(1.0);
+        
+        return true;
+    }
+
+    private void loadMatrix(boolean isRowNetwork, File file) throws IOException {
+        final MappedTriangle triangle = MappedTriangle.open(file);
+        final ExpressionMatrix matrix = getExpressionMatrix();
+        final int size = isRowNetwork ? matrix.getRows() : matrix.getColumns();
+        
+        if (triangle.size() != size)
+        	throw new IOException(file.getName() + " holds " + triangle.size() + " vectors, but the expression data has "
+        			+ size + (isRowNetwork ? " genes" : " conditions"));
+        if (!triangle.getSettings().equals(getMatrixSettings()))
+        	throw new IOException(file.getName() + " holds " + triangle.getSettings() + " correlations, but the current"
+        			+ " settings are " + getMatrixSettings());
+        
+        setStoredMatrix(isRowNetwork, triangle);
+    }
+
+    /**
+     * @return the current settings that change the correlations of a stored similarity matrix
+     */
+    private MappedTriangle.Settings getMatrixSettings() {
+        return new MappedTriangle.Settings(metric, data.isMissingValues(), minOverlap);
+    }
+
+    private void setStoredMatrix(boolean isRowNetwork, PackedTriangle triangle) {
+        if (isRowNetwork)
+        	rowMatrix = triangle;
+        else
+        	colMatrix = triangle;
+    }
+
+    /**
+     * <pre>
+     * This creates the row (gene) network of the edgeBudget strongest correlations (largest |r|, positive
+     * and/or negative, see rowUsePos and rowUseNeg), in a single pass and without a histogram.
+     * The cutoffs are not used.
+     * </pre>
+     *
+     * @return Returns the CyNetwork for the row (gene) similarity network.
+     */
+    public CyNetwork calcRowsStrongest(final TaskMonitor tm) {
+        if (rowNetName.equals("Gene Network"))
+            nameNetwork();
+        
+        return calcStrongest(true, rowNetName + ": top " + edgeBudget + " edges", data.getGeneNames(), tm);
+    }
+
+    /**
+     * <pre>
+     * This creates the column (condition) network of the edgeBudget strongest correlations (largest |r|, positive
+     * and/or negative, see colUsePos and colUseNeg), in a single pass and without a histogram.
+     * The cutoffs are not used.
+     * </pre>
+     *
+     * @return Returns the CyNetwork for the column (condition) similarity network.
+     */
+    public CyNetwork calcColsStrongest(final TaskMonitor tm) {
+        if (colNetName.equals("Cond Network"))
+            nameNetwork();
+        
+        return calcStrongest(false, colNetName + ": top " + edgeBudget + " edges", data.getConditionNames(), tm);
+    }
+
+    /**
+     * Creates the CyNetwork of the edgeBudget strongest column or row correlations.
+     * All threads share one heap bounded by edgeBudget. Each work unit collects the correlations that pass its
+     * threshold in a batch of STRONGEST_BATCH and offers the batch to the heap under its lock, then takes the
+     * heap's new threshold (the strength a correlation must reach to be kept) as its own. The threshold is also
+     * published for the other units, which may read a stale value; it only rises, so a stale one is too low and
+     * lets a few more correlations into the batches, but never drops one that belongs to the strongest.
+     */
+    private CyNetwork calcStrongest(boolean isRowNetwork, String networkName, String[] names, final TaskMonitor tm) {
+    	final CyNetwork net = createNetwork(networkName);
     	
-    	if (node == null) {
-    		node = network.addNode();
-    		final CyRow row = network.getRow(node);
-    		row.set(CyNetwork.NAME, name);
-    		row.set(CyRootNetwork.SHARED_NAME, name);
-    	}
+        if (tm != null) {
+            final String type = isRowNetwork ? "gene" : "condition";
+            
+            tm.setProgress(0.0);
+            tm.setStatusMessage("Constructing " + type + " strongest correlation network from " + data.getName() +  "...");
+        }
+        
+        final InitiationData initData = new InitiationData(isRowNetwork, getExpressionMatrix(), true);
+        // One heap for all threads, so at most edgeBudget correlations are kept, however many threads there are
+        final StrongestEdges strongest = new StrongestEdges(edgeBudget);
+        final AtomicLong threshold = new AtomicLong(Double.doubleToLongBits(-1.0));
+        
+        computeUnits(initData, new UnitWork<EdgeBuffer>() {
+			@Override
+			public EdgeBuffer create() {
+				return new EdgeBuffer(); // Candidates of the work unit, offered to the heap in batches
+			}
+			@Override
+			public void compute(final InitiationData data, int block, final EdgeBuffer batch) {
+				data.correlation.computeBlockRow(block, new CorrelationSource.PairVisitor() {
+					// Correlations weaker than this cannot be among the strongest ones (a stale value is too low, never too high)
+					double min = Double.longBitsToDouble(threshold.get());
+					
+					@Override
+					public void visit(int i, int j, double corr) {
+						if (Math.abs(corr) >= min && (corr >= 0 ? data.usePos : data.useNeg)) {
+							batch.add(i, j, corr);
+							
+							if (batch.size() == STRONGEST_BATCH)
+								min = offer(batch);
+						}
+					}
+				});
+				
+				offer(batch);
+			}
+			
+			/**
+			 * Offers the batch to the shared heap and empties it.
+			 *
+			 * @return the new threshold of the heap
+			 */
+			private double offer(final EdgeBuffer batch) {
+				final double own;
+				
+				synchronized (strongest) {
+					strongest.addAll(batch);
+					own = strongest.getThreshold();
+					threshold.set(Double.doubleToLongBits(own));
+				}
+				
+				batch.clear();
+				
+				return own;
+			}
+		}, tm);
+        
+        if (cancel)
+        	return net;
+        
+        return materialize(net, names, Collections.singletonList(strongest.toEdges()), getSignificance(isRowNetwork), tm);
+    }
+
+    /**
+     * Creates the CyNetwork that connects every column or row to its neighbourCount most similar ones.
+     * Each correlation is offered to the fixed-size heaps of both of its nodes as soon as it is calculated,
+     * so the similarity matrix is never stored.
+     */
+    private CyNetwork calcNeighbours(boolean isRowNetwork, String networkName, String[] names, final TaskMonitor tm) {
+    	final CyNetwork net = createNetwork(networkName);
     	
-    	return node;
+        if (tm != null) {
+            final String type = isRowNetwork ? "gene" : "condition";
+            
+            tm.setProgress(0.0);
+            tm.setStatusMessage("Constructing " + type + " nearest-neighbour network from " + data.getName() +  "...");
+        }
+        
+        final InitiationData initData = new InitiationData(isRowNetwork, getExpressionMatrix(), true);
+        final NeighbourHeaps heaps = new NeighbourHeaps(initData.correlation.size(), neighbourCount);
+        
+        // All work units share the heaps, which can take offers from several threads
+        computeUnits(initData, new UnitWork<NeighbourHeaps>() {
+			@Override
+			public NeighbourHeaps create() {
+				return heaps;
+			}
+			@Override
+			public void compute(final InitiationData data, int block, final NeighbourHeaps result) {
+				data.correlation.computeBlockRow(block, new CorrelationSource.PairVisitor() {
+					@Override
+					public void visit(int i, int j, double corr) {
+						if (corr >= 0 ? data.usePos : data.useNeg)
+							result.offer(i, j, corr);
+					}
+				});
+			}
+		}, tm);
+        
+        if (cancel)
+        	return net;
+        
+        return materialize(net, names, Collections.singletonList(heaps.toEdges()), getSignificance(isRowNetwork), tm);
     }
-    
+
     /**
      * This class does some initial calculations and stores all the calculation data.
      * Once an instance of InitiationData is created, the necessary calculations will be automatically done
@@ -397,16 +1208,16 @@ public class CorrelateSimilarityNetwork {
     private class InitiationData {
     	
         //Variables stored by this class
-        public DoubleMatrix2D inputMatrix; //Expression data
+        public ExpressionMatrix.Vectors vectors; //Expression data, as the vectors to correlate
         public boolean isRowNetwork;       //true for row network calculation, false for column network calculation
         public int columns;                //Number fo colmns
         public int rows;                   //Number of rows
-        public double[] sums;              //Column sums
-        public DoubleMatrix1D[] cols;      //Different form of expression data
-        public DenseDoubleMatrix1D stdDev; //Standard Deviation
+        public CorrelationSource correlation; //Prepared vectors of the metric (or a stored matrix), used to get the correlations
         public boolean usePos = true;        //true if positive cutoffs are to be considered
         public boolean useNeg = true;        //true if positive cutoffs are to be considered
         boolean fullNetwork;               //true if the full network is being calculated, false if only for one gene or condition
+        boolean calculate;                 //true to calculate the correlations even if they are stored or cached
+        PackedTriangle cacheFill;          //Receives the correlations for the matrix cache (null if not caching)
 
         /**
          * Creating an instance of InitiationData will automatically do all the initial calculations
@@ -417,12 +1228,25 @@ public class CorrelateSimilarityNetwork {
          */
         InitiationData(
         		final boolean isRowNetwork,
-        		final DoubleMatrix2D inputMatrix,
+        		final ExpressionMatrix inputMatrix,
         		final boolean fullNetwork
         ) {
-            this.inputMatrix = inputMatrix;
+            this(isRowNetwork, inputMatrix, fullNetwork, false);
+        }
+
+        /**
+         * @param calculate - true to calculate the correlations, without using the stored matrix or the matrix cache
+         */
+        InitiationData(
+        		final boolean isRowNetwork,
+        		final ExpressionMatrix inputMatrix,
+        		final boolean fullNetwork,
+        		final boolean calculate
+        ) {
+            this.vectors = isRowNetwork ? inputMatrix.getRowVectors() : inputMatrix.getColumnVectors();
             this.isRowNetwork = isRowNetwork;
             this.fullNetwork = fullNetwork;
+            this.calculate = calculate;
             tempSetup(); //Does initial calculations
         }
 
@@ -430,45 +1254,40 @@ public class CorrelateSimilarityNetwork {
          * Does the initial calculations and deals with the relative global variables
          */
         private void tempSetup() {
-            //This sets up the done/step variables and inverts the row matrix
+            //This sets up the done/step variables (the row network correlates the rows, so no transpose is needed)
             if (isRowNetwork) {
                 usePos = rowUsePos;
                 useNeg = rowUseNeg;
-                Algebra A = new Algebra();
-                inputMatrix = A.transpose(inputMatrix);
                 
                 if (fullNetwork)
-                    rowTotalSteps = calcTimeFull(inputMatrix);
+                    rowTotalSteps = calcTimeFull(vectors);
                 else
-                    rowTotalSteps = calcTimeSingle(inputMatrix);
+                    rowTotalSteps = calcTimeSingle(vectors);
             } else {
                 usePos = colUsePos;
                 useNeg = colUseNeg;
             }
 
-            // Converts the data into a more accessable form
-            rows = inputMatrix.rows();
-            columns = inputMatrix.columns();
-            sums = new double[columns];
-            cols = new DoubleMatrix1D[columns];
+            // Converts the data into a more accessable form: the metric prepares every vector once,
+            // so each correlation only needs its pairwise kernel (unless the similarity matrix is stored)
+            rows = vectors.length();
+            columns = vectors.size();
             
-            for (int i = 0; i < columns; i++) {
-                cols[i] = inputMatrix.viewColumn(i);
-                sums[i] = cols[i].zSum();
-                
-                if (cancel)
-                    return;
-            }
-
-            // Calculates the standard deviation for each column
-            stdDev = new DenseDoubleMatrix1D(columns);
+            final PackedTriangle stored = isRowNetwork ? rowMatrix : colMatrix;
+            final PackedTriangle cached = isRowNetwork ? rowCache : colCache;
             
-            for (int i = 0; i < columns; i++) {
-                double sumOfProducts = cols[i].zDotProduct(cols[i]);
-                stdDev.set(i, Math.sqrt((sumOfProducts - sums[i] * sums[i] / rows) / rows));
-                
-                if (cancel)
-                    return;
+            if (stored != null && !calculate) {
+            	correlation = new StoredCorrelation(stored, tileSize);
+            } else if (cached != null && !calculate) {
+            	correlation = new StoredCorrelation(cached, tileSize);
+            } else {
+            	final SimilarityMetric.Kernel kernel = metric.getSimilarity().prepare(vectors, minOverlap, parallelism);
+            	correlation = new MetricCorrelation(kernel, tileSize);
+            	
+            	if (matrixCache && !calculate && PackedTriangle.getPairCount(columns) <= matrixCacheCapacity) {
+            		cacheFill = new QuantizedTriangle(correlation.getValidity());
+            		correlation = new CachingCorrelation(correlation, cacheFill);
+            	}
             }
         }
     }
@@ -506,49 +1325,120 @@ public class CorrelateSimilarityNetwork {
     }
 
     /**
-     * This calculates the correlation for a single column and creates the necessary nodes and edges
+     * This calculates the correlations for a single row of tiles and collects the edges that should be created
      *
-     * @param net - the network where the nodes/egdes should be created
+     * @param edges      - receives the edges (indices of both nodes and the correlation value)
      * @param data       - this InitiationData should contain much of the necessary information
-     * @param i          - the column for which the correlation should be calculated
+     * @param block      - the row of tiles for which the correlations should be calculated
      * @param lowCutoff  - To work properly: -1 <= lowCutoff <= 0  (default = -0.9)
      * @param highCutoff - To work properly: 0 <= highCutoff <= 1 (default = 0.9)
-     * @param names      - String of column names with the corresponding index for the expression matrix
-     * @param fullColumn - if false, only the top triangle of the correlation matrix will be calculated
      */
-    private void core(final CyNetwork net, final InitiationData data, int i, double lowCutoff, double highCutoff,
-    		String[] names, boolean fullColumn) {
-        // Calculates the entire column
-        int stop = i;
-        if (fullColumn) stop = data.columns;
-
-        for (int j = 0; j < stop; j++) {
-            double corr = calcPearsonCorr(data, i, j);
-
-            if (corr < -1.0)
-                continue;
-
-            // Creates nodes and edges if its above the positive cutoff
-            if (corr > highCutoff && i != j && data.usePos)
-                createEdge(net, i, j, names, corr);
+    private void core(final EdgeBuffer edges, final InitiationData data, int block, final double lowCutoff,
+    		final double highCutoff) {
+    	final boolean usePos = data.usePos;
+    	final boolean useNeg = data.useNeg;
+    	
+    	data.correlation.computeBlockRow(block, new CorrelationSource.PairVisitor() {
+			@Override
+			public void visit(int i, int j, double corr) {
+	            // Creates an edge if its above the positive cutoff
+	            if (corr > highCutoff && usePos)
+	                edges.add(i, j, corr);
+
+	            // Creates an edge if its below the negative cutoff
+	            if (corr < lowCutoff && useNeg)
+	                edges.add(i, j, corr);
+			}
+		});
+    }
+    
+    /**
+     * Work done on the similarity matrix by calc() or histogram(), one row of tiles at a time.
+     * Every work unit gets its own result object, so units can run on different threads.
+     */
+    private interface UnitWork<R> {
+    	
+    	/**
+    	 * @return a new, empty result for one work unit
+    	 */
+    	R create();
+    	
+    	/**
+    	 * Calculates one row of tiles and adds it to the result of the work unit.
+    	 */
+    	void compute(InitiationData data, int block, R result);
+    }
+    
+    /**
+     * Splits the rows of tiles into work units with about the same number of correlations each,
+     * and runs them on a ForkJoinPool (or on the calling thread if parallelism is 1).
+     *
+     * @return the results of all work units, in row order; incomplete if the calculation was cancelled
+     */
+    private <R> List<R> computeUnits(final InitiationData data, final UnitWork<R> work, final TaskMonitor tm) {
+    	return computeUnits(data, null, work, tm);
+    }
 
-            // Creates nodes and edges if its below the negative cutoff
-            if (corr < lowCutoff && data.useNeg)
-                createEdge(net, i, j, names, corr);
-            
-            if (cancel)
-                return;
-        }
+    /**
+     * Same as computeUnits(InitiationData, UnitWork, TaskMonitor), with the rows of tiles taken in the given order
+     * (null for top to bottom). Each work unit calculates a range of the order.
+     */
+    private <R> List<R> computeUnits(final InitiationData data, final int[] order, final UnitWork<R> work,
+    		final TaskMonitor tm) {
+    	final CorrelationSource correlation = data.correlation;
+    	// A few units per thread, so threads that finish early can take over the remaining units
+    	final int units = parallelism > 1 ? parallelism * 4 : 1;
+    	final int[] bounds = order != null ? correlation.split(order, units) : correlation.split(units);
+    	final int count = bounds.length - 1;
+    	final List<R> results = new ArrayList<>(count);
+    	final AtomicLong pairsDone = new AtomicLong();
+    	final double totalPairs = Math.max(1, correlation.getPairCount(0, correlation.getBlockCount()));
+    	
+    	final List<RecursiveAction> tasks = new ArrayList<>(count);
+    	
+    	for (int u = 0; u < count; u++) {
+    		final R result = work.create();
+    		final int from = bounds[u];
+    		final int to = bounds[u + 1];
+    		results.add(result);
+    		
+    		tasks.add(new RecursiveAction() {
+    			private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					for (int k = from; k < to && !cancel; k++) {
+						final int b = order != null ? order[k] : k;
+						work.compute(data, b, result);
+						final long done = pairsDone.addAndGet(correlation.getPairCount(b, b + 1));
+						
+						if (tm != null)
+							tm.setProgress(done / totalPairs);
+					}
+				}
+			});
+    	}
+    	
+    	ParallelTasks.invoke(tasks, parallelism);
+    	
+    	if (data.cacheFill != null && !cancel) {
+    		// Every correlation has been calculated, so the next calculations can read them from the cache
+    		if (data.isRowNetwork)
+    			rowCache = data.cacheFill;
+    		else
+    			colCache = data.cacheFill;
+    	}
+    	
+    	return results;
     }
 
     /**
      * Returns the number of steps to complete the entire column network
      *
-     * @param inputMatrix
-     * @return To calculate rows, input the transpose matrix
+     * @param vectors
+     * @return To calculate rows, input the row vectors
      */
-    private int calcTimeFull(DoubleMatrix2D inputMatrix) {
-        double columns = (double) inputMatrix.columns();
+    private int calcTimeFull(ExpressionMatrix.Vectors vectors) {
+        double columns = (double) vectors.size();
         double steps = (columns * columns) / 2 + 5 * columns / 2;
         
         return (int) steps;
@@ -557,12 +1447,12 @@ public class CorrelateSimilarityNetwork {
     /**
      * Returns the number of steps  to complete the column interactions for one column
      *
-     * @param inputMatrix
+     * @param vectors
      * @return total number of steps needed to complete calc() or histogram() for a single column
-     *         To calculate rows, input the transpose matrix
+     *         To calculate rows, input the row vectors
      */
-    private int calcTimeSingle(DoubleMatrix2D inputMatrix) {
-        int columns = inputMatrix.columns();
+    private int calcTimeSingle(ExpressionMatrix.Vectors vectors) {
+        int columns = vectors.size();
         int steps = 3 * columns;
         
         return steps;
@@ -575,9 +1465,7 @@ public class CorrelateSimilarityNetwork {
      */
     public int getRowTotalSteps() {
         if (rowTotalSteps == 0) {
-            Algebra A = new Algebra();
-            DoubleMatrix2D matrix = A.transpose(getExpressionMatrix());
-            rowTotalSteps = calcTimeFull(matrix);
+            rowTotalSteps = calcTimeFull(getExpressionMatrix().getRowVectors());
         }
         
         return rowTotalSteps;
@@ -595,7 +1483,7 @@ public class CorrelateSimilarityNetwork {
      * Calculates the row histogram for the given Expression data<br>
      * The histogram is required for the getCutoffs functions
      */
-    private void rowHistogram(final DoubleMatrix2D inputMatrix, final TaskMonitor tm) {
+    private void rowHistogram(final ExpressionMatrix inputMatrix, final TaskMonitor tm) {
         histogram(true, inputMatrix, tm);
     }
 
@@ -613,30 +1501,10 @@ public class CorrelateSimilarityNetwork {
      * The top half of the entire similarity matrix is calculated here, but
      * only the histogram is stored
      */
-    private void colHistogram(final DoubleMatrix2D inputMatrix, final TaskMonitor tm) {
+    private void colHistogram(final ExpressionMatrix inputMatrix, final TaskMonitor tm) {
         histogram(false, inputMatrix, tm);
     }
 
-    /**
-     * Calculates the Pearson Correlation
-     * r = Sxx/SQRT(Sxx x Syy)
-     *
-     * @param data - The gene expression data
-     * @param i, j - Calculate the correlation between data vectors data.cols[i] and data.cols[j]
-     * @return The Pearson correlation value between -1 and 1.  If the correlation calculation contains an error
-     * (i.e. divide by zero), return -2.0
-     */
-    private double calcPearsonCorr(InitiationData data,int i, int j) {
-        double sumOfProducts = data.cols[i].zDotProduct(data.cols[j]);
-        double cov = (sumOfProducts - data.sums[i] * data.sums[j] / data.rows) / data.rows;
-        double corr = cov / (data.stdDev.get(i) * data.stdDev.get(j));
-
-        if (data.stdDev.get(i) == 0 || data.stdDev.get(j) == 0 )
-            return -2.0;
-        else
-            return corr;
-    }
-    
     /**
      * This calculates either the row or column histogram (a class double array) which is used by other
      * methods to determine the correct cutoffs given a desired number of interactions or vice-versa
@@ -645,16 +1513,10 @@ public class CorrelateSimilarityNetwork {
      * @param isRowNetwork - true for row network calculation, false for column network calculation
      * @param inputMatrix  - The expression data
      */
-    private void histogram(boolean isRowNetwork, DoubleMatrix2D inputMatrix, final TaskMonitor tm) {
+    private void histogram(boolean isRowNetwork, ExpressionMatrix inputMatrix, final TaskMonitor tm) {
         final InitiationData initData = new InitiationData(isRowNetwork, inputMatrix, true);
 
-        int bins = 2000;      //Adjust this number to change the histogram accuracy
-        //  bins size = 2/bins (e.g. 2000 bins -> bin size = 0.001)
-        int[] histo = new int[bins];
-
-        //A calculation needed for the command line/text progress bar
-        int mod = initData.columns % 10;
-        if (initData.columns <= 10) mod = 0;
+        final int bins = histogramBins; //bins size = 2/bins (e.g. 20000 bins -> bin size = 0.0001)
 
         if (tm != null) {
             String type = "condition";
@@ -666,57 +1528,409 @@ public class CorrelateSimilarityNetwork {
             tm.setStatusMessage("Constructing " + type + " correlation histogram from " + data.getName() +  "...");
         }
 
-        for (int i = 0; i < initData.columns; i++) {
-            for (int j = 0; j < i; j++) {
-                double corr = calcPearsonCorr(initData,i,j);
+        // Each work unit fills its own histogram (and candidate list); they are added up at the end
+        final boolean keepCandidates = fused;
+        final double floor = candidateFloor;
+        final int capacity = candidateCapacity;
+        // Candidates reserved by all units, counted once per row of tiles so the workers do not share a counter per pair
+        final AtomicLong candidateCount = new AtomicLong();
+        final AtomicBoolean overflow = new AtomicBoolean();
+        
+        // With a listener, the units move their counts into the snapshots after every row of tiles
+        final HistogramListener listener = histogramListener;
+        final Snapshots snapshots = listener != null ? new Snapshots(isRowNetwork, initData.correlation, bins, listener) : null;
+        final int[] order = snapshots != null ? shuffle(initData.correlation.getBlockCount(), SNAPSHOT_SEED) : null;
+        
+        final List<HistogramUnit> units = computeUnits(initData, order, new UnitWork<HistogramUnit>() {
+			@Override
+			public HistogramUnit create() {
+				return new HistogramUnit(bins, keepCandidates);
+			}
+			@Override
+			public void compute(InitiationData data, int block, final HistogramUnit unit) {
+				// Once the candidates overflow, no unit keeps any (nor the memory of those it kept)
+				if (unit.candidates != null && overflow.get())
+					unit.candidates = null;
+				
+				final EdgeBuffer candidates = unit.candidates;
+				final int kept = candidates != null ? candidates.size() : 0;
+				
+				data.correlation.computeBlockRow(block, new CorrelationSource.PairVisitor() {
+					@Override
+					public void visit(int i, int j, double corr) {
+						unit.histo[SimilarityHistogram.getBin(corr, bins)]++;
+						
+						if (candidates != null && Math.abs(corr) > floor)
+							candidates.add(i, j, corr);
+					}
+				});
+				
+				if (candidates != null && candidateCount.addAndGet(candidates.size() - kept) > capacity) {
+					overflow.set(true);
+					unit.candidates = null;
+				}
+				
+				if (snapshots != null)
+					snapshots.add(block, unit.histo);
+			}
+		}, tm);
+        
+        if (cancel)
+        	return;
+        
+        final long[] histo = snapshots != null ? snapshots.histo : new long[bins];
+        final List<EdgeBuffer> candidates = new ArrayList<>(units.size());
+        
+        for (final HistogramUnit unit : units) {
+        	for (int i = 0; i < bins; i++)
+        		histo[i] += unit.histo[i];
+        	
+        	if (unit.candidates != null)
+        		candidates.add(unit.candidates);
+        }
+        
+        final CandidateStore store =
+        		keepCandidates && !overflow.get() ? new CandidateStore(candidates, floor, bins) : null;
+        
+        if (isRowNetwork)
+        	rowCandidates = store;
+        else
+        	colCandidates = store;
+
+        // Significance mode: the null distribution of the same metric, with the same bins
+        //  (or just the number of values per vector, for the t-distribution)
+        final ExpressionMatrix.Vectors vectors = initData.vectors;
+        final boolean tDistribution = significance && analyticSignificance && metric == CorrelationMetric.PEARSON
+        		&& vectors.length() >= 3 && !vectors.hasMissingValues();
+        final SimilarityHistogram permuted = significance && !tDistribution ? permute(vectors, bins, tm) : null;
+        final int nullLength = tDistribution ? vectors.length() : 0;
+        
+        if (cancel)
+        	return;
+        
+        if (tm != null)
+            tm.setProgress(1.0);
 
-                if (corr < -1.0)
-                    continue;
+        setState(isRowNetwork, new HistogramState(new SimilarityHistogram(histo), null, 0, permuted, nullLength));
+        
+        if (listener != null)
+        	listener.histogramUpdated(isRowNetwork, 1.0);
+    }
 
-                if (i != j) {
-                    int binNumber = (int) ((corr + 1) * (((double) bins - 1) / 2));
-                    histo[binNumber]++;
-                }
-                
-                if (cancel)
-                    return;
-            }
+    /**
+     * @return the numbers 0 to count - 1 in a random order (Fisher-Yates) that only depends on the seed
+     */
+    private static int[] shuffle(final int count, final long seed) {
+    	final Random random = new Random(seed);
+    	final int[] order = new int[count];
+    	
+    	for (int k = 0; k < count; k++)
+    		order[k] = k;
+    	
+    	for (int k = count - 1; k > 0; k--) {
+    		final int other = random.nextInt(k + 1);
+    		final int value = order[k];
+    		order[k] = order[other];
+    		order[other] = value;
+    	}
+    	
+    	return order;
+    }
+
+    /**
+     * Estimates the row histogram from a random sample of previewSample pairs, in a fraction of the time of
+     * rowHistogram() on large data sets. The cutoffs and numbers of interactions are then estimates too
+     * (see getInteractionBounds()), until rowHistogram() is called.
+     */
+    public void rowHistogramEstimate(final TaskMonitor tm) {
+        histogramEstimate(true, getExpressionMatrix(), tm);
+    }
+
+    /**
+     * Estimates the column histogram from a random sample of previewSample pairs (see rowHistogramEstimate()).
+     */
+    public void colHistogramEstimate(final TaskMonitor tm) {
+        histogramEstimate(false, getExpressionMatrix(), tm);
+    }
+
+    /**
+     * Estimates the row or column histogram from a random sample of the pairs (see SampledHistogram).
+     * The histogram is calculated in full instead if the matrix has no more pairs than the sample,
+     * or if its correlations are stored or cached.
+     */
+    private void histogramEstimate(boolean isRowNetwork, ExpressionMatrix inputMatrix, final TaskMonitor tm) {
+        final ExpressionMatrix.Vectors vectors = isRowNetwork ? inputMatrix.getRowVectors() : inputMatrix.getColumnVectors();
+        final long pairs = PackedTriangle.getPairCount(vectors.size());
+        final long sampleSize = previewSample;
+        final boolean stored = isRowNetwork ? rowMatrix != null || rowCache != null : colMatrix != null || colCache != null;
+        
+        if (pairs <= sampleSize || stored) {
+        	histogram(isRowNetwork, inputMatrix, tm);
+        	return;
+        }
+        
+        final int bins = histogramBins;
+        
+        if (tm != null) {
+            final String type = isRowNetwork ? "gene" : "condition";
             
-            if (tm != null && (i * 10) % (initData.columns - mod) == 0)
-            	tm.setProgress((double) i / initData.columns);
+            tm.setProgress(0.0);
+            tm.setStatusMessage("Estimating " + type + " correlation histogram from " + sampleSize + " pairs of "
+            		+ data.getName() + "...");
         }
-
+        
+        final SimilarityMetric.Kernel kernel = metric.getSimilarity().prepare(vectors, minOverlap, parallelism);
+        final int chunks = SampledHistogram.getChunkCount(sampleSize);
+        final int workers = Math.min(parallelism, chunks);
+        final AtomicLong done = new AtomicLong();
+        final List<long[]> histos = new ArrayList<>(workers);
+        final List<RecursiveAction> tasks = new ArrayList<>(workers);
+        
+        for (int w = 0; w < workers; w++) {
+        	final long[] histo = new long[bins];
+        	final int first = w;
+        	histos.add(histo);
+        	
+        	tasks.add(new RecursiveAction() {
+        		private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					for (int c = first; c < chunks && !cancel; c += workers) {
+						SampledHistogram.draw(kernel, c, sampleSize, SAMPLE_SEED, histo);
+						
+						if (tm != null)
+							tm.setProgress(done.incrementAndGet() / (double) chunks);
+					}
+				}
+			});
+        }
+        
+        ParallelTasks.invoke(tasks, parallelism);
+        
+        if (cancel)
+        	return;
+        
+        final long[] histo = new long[bins];
+        
+        for (final long[] part : histos) {
+        	for (int i = 0; i < bins; i++)
+        		histo[i] += part[i];
+        }
+        
+        final SampledHistogram sample = new SampledHistogram(histo, sampleSize, pairs);
+        
         if (tm != null)
             tm.setProgress(1.0);
         
-        String[] labels = new String[bins];
+        // The significance needs the exact histogram, so calc() calculates it again in significance mode
+        setState(isRowNetwork, new HistogramState(sample.getEstimate(), sample, sampleSize, null, 0));
+    }
 
-        for (int i = 0; i < bins; i++) {
-            labels[i] = "" + format(-1 + ((double) i) / (((double) bins) / 2));
+    /**
+     * Calculates the histogram of the correlations of permuted vectors (see PermutationNull).
+     * Each thread runs its share of the permutations on its own copy of the sample; every permutation has its
+     * own seed, so the result does not depend on the number of threads.
+     *
+     * @return the histogram, or null if the calculation was cancelled
+     */
+    private SimilarityHistogram permute(final ExpressionMatrix.Vectors vectors, final int bins, final TaskMonitor tm) {
+    	final PermutationNull permutationNull = new PermutationNull(vectors, metric.getSimilarity(), minOverlap,
+    			permutationSample, tileSize, PERMUTATION_SEED);
+    	final int count = permutations;
+    	final int workers = Math.min(parallelism, count);
+    	final AtomicLong done = new AtomicLong();
+    	
+        if (tm != null) {
+            tm.setProgress(0.0);
+            tm.setStatusMessage("Permuting " + permutationNull.getSampleSize() + " vectors " + count + " times...");
         }
-
-        if (isRowNetwork)
-            rowHistogram = histo;
-        else
-            colHistogram = histo;
+    	
+    	final List<long[]> histos = new ArrayList<>(workers);
+    	final List<RecursiveAction> tasks = new ArrayList<>(workers);
+    	
+    	for (int w = 0; w < workers; w++) {
+    		final long[] histo = new long[bins];
+    		final int first = w;
+    		histos.add(histo);
+    		
+    		tasks.add(new RecursiveAction() {
+    			private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					final PermutationNull.Worker worker = permutationNull.createWorker();
+					
+					for (int p = first; p < count && !cancel; p += workers) {
+						worker.count(p, histo);
+						
+						if (tm != null)
+							tm.setProgress(done.incrementAndGet() / (double) count);
+					}
+				}
+			});
+    	}
+    	
+    	ParallelTasks.invoke(tasks, parallelism);
+    	
+    	if (cancel)
+    		return null;
+    	
+    	final long[] total = new long[bins];
+    	
+    	for (final long[] histo : histos) {
+    		for (int i = 0; i < bins; i++)
+    			total[i] += histo[i];
+    	}
+    	
+    	return new SimilarityHistogram(total);
     }
 
+    /**
+     * Receives the snapshots of a histogram while it is being calculated (see setHistogramListener()).
+     * It is called on the calculation threads, one snapshot at a time.
+     */
+    public interface HistogramListener {
+    	
+    	/**
+    	 * The row or column histogram (and the cutoffs and numbers of interactions taken from it) now includes
+    	 * the given fraction of the pairs; 1.0 when it is exact.
+    	 */
+    	void histogramUpdated(boolean isRowNetwork, double fraction);
+    }
+    
+    /**
+     * Adds up the rows of tiles done by all work units of a histogram, and publishes a snapshot every
+     * SNAPSHOT_INTERVAL of the pairs. The tile rows are done in random order, so a snapshot is an estimate of the
+     * histogram, but from whole rows of tiles rather than independent pairs, so it has no confidence bounds
+     * (see getInteractionBounds()).
+     */
+    private class Snapshots {
+    	
+    	final boolean isRowNetwork;
+    	final CorrelationSource correlation;
+    	final HistogramListener listener;
+    	final long[] histo;      //Counts of all the rows of tiles done so far
+    	final long totalPairs;
+    	final long minPairs;     //Snapshots of fewer pairs are not published (the current histogram is better)
+    	long pairs;
+    	long nextPairs;
+    	
+    	Snapshots(final boolean isRowNetwork, final CorrelationSource correlation, final int bins,
+    			final HistogramListener listener) {
+    		final HistogramState current = getState(isRowNetwork);
+    		
+    		this.isRowNetwork = isRowNetwork;
+    		this.correlation = correlation;
+    		this.listener = listener;
+    		this.histo = new long[bins];
+    		this.totalPairs = correlation.getPairCount(0, correlation.getBlockCount());
+    		this.minPairs = current == null ? 0 : (current.estimatePairs > 0 ? current.estimatePairs : Long.MAX_VALUE);
+    		this.nextPairs = (long) (totalPairs * SNAPSHOT_INTERVAL);
+    	}
+    	
+    	/**
+    	 * Moves the counts of the given row of tiles from the histogram of a work unit into the snapshots.
+    	 * The listener is called after the lock is released, so work units do not wait for it.
+    	 */
+    	void add(final int block, final long[] unitHisto) {
+    		final long published;
+    		
+    		synchronized (this) {
+    			for (int i = 0; i < histo.length; i++) {
+    				histo[i] += unitHisto[i];
+    				unitHisto[i] = 0;
+    			}
+    			
+    			pairs += correlation.getPairCount(block, block + 1);
+    			
+    			// The last snapshot would be the exact histogram, which histogram() sets itself
+    			if (pairs < nextPairs || pairs >= totalPairs || cancel)
+    				return;
+    			
+    			nextPairs = pairs + (long) (totalPairs * SNAPSHOT_INTERVAL);
+    			
+    			if (pairs <= minPairs)
+    				return;
+    			
+    			// Published under the lock, so a snapshot is never replaced by an earlier one
+    			final SampledHistogram sample = new SampledHistogram(histo.clone(), pairs, totalPairs);
+    			setState(isRowNetwork, new HistogramState(sample.getEstimate(), null, pairs, null, 0));
+    			published = pairs;
+    		}
+    		
+    		listener.histogramUpdated(isRowNetwork, (double) published / totalPairs);
+    	}
+    }
+    
+    /**
+     * A row or column histogram, with what was calculated along with it. It is immutable and replaced as a whole
+     * (see setState()), so other threads never see a histogram with the sample or null distribution of another one.
+     */
+    private static final class HistogramState {
+    	
+    	final SimilarityHistogram histogram; //Similarity matrix histogram values (-1.0 = first bin = 0 to 1.0 = last bin)
+    	final SampledHistogram sample;       //Random sample of pairs the histogram was estimated from (null if none)
+    	final long estimatePairs;            //Number of pairs an estimated histogram was taken from (0 if exact)
+    	final SimilarityHistogram permuted;  //Histogram of the permuted correlations (null if none)
+    	final int nullLength;                //Values per vector of the t-distribution null (0 = permutations)
+    	
+    	HistogramState(final SimilarityHistogram histogram, final SampledHistogram sample, final long estimatePairs,
+    			final SimilarityHistogram permuted, final int nullLength) {
+    		this.histogram = histogram;
+    		this.sample = sample;
+    		this.estimatePairs = estimatePairs;
+    		this.permuted = permuted;
+    		this.nullLength = nullLength;
+    	}
+    }
+    
+    /**
+     * @return the current row or column histogram, or null if it has not been calculated
+     */
+    private HistogramState getState(boolean isRowNetwork) {
+    	return isRowNetwork ? rowState : colState;
+    }
+    
+    private void setState(boolean isRowNetwork, HistogramState state) {
+    	if (isRowNetwork)
+    		rowState = state;
+    	else
+    		colState = state;
+    }
+    
+    /**
+     * The part of a histogram calculated by one work unit of histogram()
+     */
+    private static class HistogramUnit {
+    	
+    	final long[] histo;
+    	EdgeBuffer candidates; // null if the unit keeps no candidates
+    	
+    	HistogramUnit(final int bins, final boolean keepCandidates) {
+    		histo = new long[bins];
+    		candidates = keepCandidates ? new EdgeBuffer() : null;
+    	}
+    }
+    
     /**
      * Gives the current histogram values (assumes histogram() has been called)
      *
-     * @return rowHistogram
+     * @return the row histogram, or null
      */
-    private int[] getRowHistogram() {
-        return rowHistogram;
+    private SimilarityHistogram getRowHistogram() {
+        final HistogramState state = rowState;
+        
+        return state != null ? state.histogram : null;
     }
 
     /**
      * Gives the current histogram values (assumes histogram() has been called)
      *
-     * @return colHistogram
+     * @return the column histogram, or null
      */
-    private int[] getColHistogram() {
-        return colHistogram;
+    private SimilarityHistogram getColHistogram() {
+        final HistogramState state = colState;
+        
+        return state != null ? state.histogram : null;
     }
 
     /**
@@ -728,11 +1942,11 @@ public class CorrelateSimilarityNetwork {
         double[] cutoff = new double[2];
         
         if (isRowNetwork) {
-            cutoff[0] = format(rowNegCutoff);
-            cutoff[1] = format(rowPosCutoff);
+            cutoff[0] = formatCutoff(rowNegCutoff);
+            cutoff[1] = formatCutoff(rowPosCutoff);
         } else {
-            cutoff[0] = format(colNegCutoff);
-            cutoff[1] = format(colPosCutoff);
+            cutoff[0] = formatCutoff(colNegCutoff);
+            cutoff[1] = formatCutoff(colPosCutoff);
         }
         
         return cutoff;
@@ -751,17 +1965,9 @@ public class CorrelateSimilarityNetwork {
      * @return returns the cutoffs needed to produce a network with the desired number of edges
      */
     private double[] getCutoffs(boolean isRowNetwork, boolean negative, boolean positive, double percentOfEdges) {
-        int total = 0;
-        
-        if (isRowNetwork) {
-            for (int i = 0; i < rowHistogram.length; i++)
-                total += rowHistogram[i];
-        } else {
-            for (int i = 0; i < colHistogram.length; i++)
-                total += colHistogram[i];
-        }
+        final long total = getState(isRowNetwork).histogram.getTotal();
         
-        int number = (int) (((double) percentOfEdges) * ((double) total));
+        long number = (long) (((double) percentOfEdges) * ((double) total));
         
         return getCutoffs(isRowNetwork, number, negative, positive);
     }
@@ -778,29 +1984,22 @@ public class CorrelateSimilarityNetwork {
      * @param numberOfEdges - number of edges in the new network
      * @return returns the cutoffs needed to produce a network with the desired number of edges
      */
-    private double[] getCutoffs(boolean isRowNetwork, int numberOfEdges, boolean negative, boolean positive) {
+    private double[] getCutoffs(boolean isRowNetwork, long numberOfEdges, boolean negative, boolean positive) {
         double[] cutoff = new double[2];
-        int position = -1;
-        int count = 0;
-        final int[] histogram = isRowNetwork ? rowHistogram : colHistogram;
+        final SimilarityHistogram histogram = getState(isRowNetwork).histogram;
+        final int bins = histogram.getBinCount();
         final double[] oldCutoffs = getCutoffs(isRowNetwork);
         
-        while (count < numberOfEdges && position < (histogram.length / 2 - 1)) {
-            position++;
-            
-            if (negative)
-                count += histogram[position];
-            if (positive)
-                count += histogram[histogram.length - position - 1];
-        }
+        // The innermost bin, counted from the tails, that is needed to reach the number of edges
+        final int position = histogram.getPosition(numberOfEdges, negative, positive);
         
         if (negative)
-            cutoff[0] = (-1.0 + ((double) position) * 2.0 / ((double) histogram.length));
+            cutoff[0] = (-1.0 + ((double) position) * 2.0 / ((double) bins));
         else
             cutoff[0] = oldCutoffs[0];
         
         if (positive)
-            cutoff[1] = (1.0 - ((double) position) * 2.0 / ((double) histogram.length));
+            cutoff[1] = (1.0 - ((double) position) * 2.0 / ((double) bins));
         else
             cutoff[1] = oldCutoffs[1];
         
@@ -808,29 +2007,29 @@ public class CorrelateSimilarityNetwork {
     }
 
     public void setRowNegCutoff(double negative) {
-        rowNegCutoff = format(negative);
+        rowNegCutoff = formatCutoff(negative);
     }
 
     public void setColNegCutoff(double negative) {
-        colNegCutoff = format(negative);
+        colNegCutoff = formatCutoff(negative);
     }
 
     public void setRowPosCutoff(double positive) {
-        rowPosCutoff = format(positive);
+        rowPosCutoff = formatCutoff(positive);
     }
 
     public void setColPosCutoff(double positive) {
-        colPosCutoff = format(positive);
+        colPosCutoff = formatCutoff(positive);
     }
 
     private void setRowCutoffs(double[] cutoffs) {
-        rowNegCutoff = format(cutoffs[0]);
-        rowPosCutoff = format(cutoffs[1]);
+        rowNegCutoff = formatCutoff(cutoffs[0]);
+        rowPosCutoff = formatCutoff(cutoffs[1]);
     }
 
     private void setColCutoffs(double[] cutoffs) {
-        colNegCutoff = format(cutoffs[0]);
-        colPosCutoff = format(cutoffs[1]);
+        colNegCutoff = formatCutoff(cutoffs[0]);
+        colPosCutoff = formatCutoff(cutoffs[1]);
     }
 
     public void setColPosUse(boolean usePos) {
@@ -860,7 +2059,7 @@ public class CorrelateSimilarityNetwork {
      * @param isRowNetwork  - true calculates based on the row histogram, false calculates based on the column histogram
      * @param numberOfEdges - number of edges in the new network
      */
-    public void setCutoffsInteractions(boolean isRowNetwork, int numberOfEdges) {
+    public void setCutoffsInteractions(boolean isRowNetwork, long numberOfEdges) {
         boolean usePos = true;
         boolean useNeg = true;
         
@@ -875,11 +2074,11 @@ public class CorrelateSimilarityNetwork {
         double[] cutoffs = getCutoffs(isRowNetwork, numberOfEdges, useNeg, usePos);
         
         if (isRowNetwork) {
-            rowNegCutoff = format(cutoffs[0]);
-            rowPosCutoff = format(cutoffs[1]);
+            rowNegCutoff = formatCutoff(cutoffs[0]);
+            rowPosCutoff = formatCutoff(cutoffs[1]);
         } else {
-            colNegCutoff = format(cutoffs[0]);
-            colPosCutoff = format(cutoffs[1]);
+            colNegCutoff = formatCutoff(cutoffs[0]);
+            colPosCutoff = formatCutoff(cutoffs[1]);
         }
     }
 
@@ -909,14 +2108,53 @@ public class CorrelateSimilarityNetwork {
         double[] cutoffs = getCutoffs(isRowNetwork, useNeg, usePos, percentOfEdges);
         
         if (isRowNetwork) {
-            rowNegCutoff = format(cutoffs[0]);
-            rowPosCutoff = format(cutoffs[1]);
+            rowNegCutoff = formatCutoff(cutoffs[0]);
+            rowPosCutoff = formatCutoff(cutoffs[1]);
         } else {
-            colNegCutoff = format(cutoffs[0]);
-            colPosCutoff = format(cutoffs[1]);
+            colNegCutoff = formatCutoff(cutoffs[0]);
+            colPosCutoff = formatCutoff(cutoffs[1]);
         }
     }
 
+    /**
+     * Requires that the histogram() function has been called in significance mode
+     * <br>
+     * Sets the network's cutoff values to keep the most correlations whose false discovery rate
+     * (Benjamini-Hochberg q-value) is at most the given one.
+     *
+     * @param isRowNetwork - true calculates based on the row histogram, false calculates based on the column histogram
+     * @param fdr          - highest false discovery rate, between 0 (excluded) and 1
+     */
+    public void setCutoffsFdr(boolean isRowNetwork, double fdr) {
+    	if (!(fdr > 0.0 && fdr <= 1.0))
+    		throw new IllegalArgumentException("'fdr' must be greater than 0 and at most 1");
+    	
+    	final Significance significance = getSignificance(isRowNetwork);
+    	
+    	if (significance == null)
+    		throw new IllegalStateException("The histogram has not been calculated in significance mode");
+    	
+    	setCutoffsInteractions(isRowNetwork, significance.getEdgeCount(fdr));
+    }
+
+    /**
+     * @return the significance of the row or column correlations, or null if histogram() has not calculated
+     *         their null distribution
+     */
+    private Significance getSignificance(boolean isRowNetwork) {
+    	final HistogramState state = getState(isRowNetwork);
+    	final boolean[] uses = getUses(isRowNetwork);
+    	
+    	if (!significance || state == null)
+    		return null;
+    	if (state.nullLength > 0)
+    		return Significance.fromTDistribution(state.histogram, state.nullLength, uses[0], uses[1]);
+    	if (state.permuted != null)
+    		return Significance.fromPermutations(state.histogram, state.permuted, uses[0], uses[1]);
+    	
+    	return null;
+    }
+
     /**
      * Returns the number of edges that would be in a network with the given cutoff values
      *
@@ -924,27 +2162,54 @@ public class CorrelateSimilarityNetwork {
      * @param cutoffs       - [negativeCutoffValue, positiveCutoffValue]
      * @return number of edges that will be in a network with the given cutoffs
      */
-    public int getNumberOfInteractions(boolean isRowNetwork, double[] cutoffs) {
+    public long getNumberOfInteractions(boolean isRowNetwork, double[] cutoffs) {
 		if (cutoffs == null || cutoffs.length < 2)
 			return 0;
         
-        final int[] histogram = isRowNetwork ? rowHistogram : colHistogram;
-        int count = 0;
+        final SimilarityHistogram histogram = getState(isRowNetwork).histogram;
+        long count = 0;
         
         boolean[] uses = getUses(isRowNetwork);
         
-        if (uses[0]) {
-            for (int i = 0; (-1.0 + ((double) i * 2) / histogram.length) < cutoffs[0]; i++)
-                count += histogram[i];
-        }
-        if (uses[1]) {
-            for (int j = 0; (1.0 - ((double) j * 2) / histogram.length) >= cutoffs[1]; j++)
-                count += histogram[histogram.length - j - 1];
-        }
+        if (uses[0])
+            count += histogram.countNegative(cutoffs[0]);
+        if (uses[1])
+            count += histogram.countPositive(cutoffs[1]);
         
         return count;
     }
 
+    /**
+     * @return true if the row or column histogram was estimated from a sample of the pairs
+     *         (see rowHistogramEstimate()), false if it is exact
+     */
+    public boolean isHistogramEstimated(boolean isRowNetwork) {
+        final HistogramState state = getState(isRowNetwork);
+        
+        return state != null && state.estimatePairs > 0;
+    }
+
+    /**
+     * Returns the 95% confidence bounds of the number of edges that would be in a network with the given
+     * cutoff values, when the histogram is estimated from a random sample of the pairs (see rowHistogramEstimate())
+     *
+     * @param isRowNetwork- true calculates based on the row histogram, false calculates based on the column histogram
+     * @param cutoffs       - [negativeCutoffValue, positiveCutoffValue]
+     * @return [lowest, highest] number of edges, or null if the histogram is exact or a snapshot of histogram()
+     *         (see setHistogramListener())
+     */
+    public long[] getInteractionBounds(boolean isRowNetwork, double[] cutoffs) {
+        final HistogramState state = getState(isRowNetwork);
+        final SampledHistogram sample = state != null ? state.sample : null;
+        
+        if (sample == null || cutoffs == null || cutoffs.length < 2)
+            return null;
+        
+        final boolean[] uses = getUses(isRowNetwork);
+        
+        return sample.getBounds(cutoffs, uses[0], uses[1]);
+    }
+
     /**
      * Returns the percent of the total possible of edges that would be in a network with the given cutoff values
      *
@@ -953,14 +2218,10 @@ public class CorrelateSimilarityNetwork {
      * @return percent of edges that will be in a network with the given cutoffs
      */
     public double getPercentOfInteractions(boolean isRowNetwork, double[] cutoffs) {
-    	final int[] histogram = isRowNetwork ? rowHistogram : colHistogram;
+    	final SimilarityHistogram histogram = getState(isRowNetwork).histogram;
         
-        int count = getNumberOfInteractions(isRowNetwork, cutoffs);
-        int total = 0;
-        
-        for (int i = 0; i < histogram.length; i++) {
-            total += histogram[i];
-        }
+        long count = getNumberOfInteractions(isRowNetwork, cutoffs);
+        long total = histogram.getTotal();
 
         return format(((double) count) / ((double) total));
     }
@@ -1000,19 +2261,26 @@ public class CorrelateSimilarityNetwork {
     }
 
     /**
-     * Give data in a format recognizable by the jmathplot
+     * Give data in a format recognizable by the jmathplot.
+     * Neighbouring bins are added up so that at most DISPLAY_BINS bars are drawn.
      *
      * @param isRowNetwork
      * @return histogram in jmathplot format
      */
     public double[][] getHistogram(boolean isRowNetwork) {
-        final int[] histo = isRowNetwork ? getRowHistogram() : getColHistogram();
-        final double[][] histogram = new double[histo.length][3];
+        final SimilarityHistogram histo = isRowNetwork ? getRowHistogram() : getColHistogram();
+        final int bins = histo.getBinCount();
+        final int group = (bins + DISPLAY_BINS - 1) / DISPLAY_BINS; //Number of bins in each bar
+        final int bars = (bins + group - 1) / group;
+        final double[][] histogram = new double[bars][3];
         
-        for (int i = 0; i < histo.length; i++) {
-            histogram[i][0] = -1 + ((double) i) / (((double) histo.length) / 2);
-            histogram[i][1] = histo[i];
-            histogram[i][2] = 1000 / histo.length; //bar width
+        for (int i = 0; i < bars; i++) {
+            histogram[i][0] = histo.getLowerBound(i * group);
+            
+            for (int b = i * group; b < Math.min(bins, (i + 1) * group); b++)
+                histogram[i][1] += histo.getCount(b);
+            
+            histogram[i][2] = 1000 / bars; //bar width
         }
         
         return histogram;
@@ -1026,6 +2294,14 @@ public class CorrelateSimilarityNetwork {
         cancel = true;
     }
 
+    /**
+     * Clears a cancel() that no loop has picked up. This is needed after cancelling a histogram() that runs
+     * on another thread, which may have finished before it could see the cancel.
+     */
+    public void clearCancel() {
+        cancel = false;
+    }
+
     /**
      * Indicates whether or not the task was cancelled
      * @return true if cancel is true, otherwise false
@@ -1049,21 +2325,10 @@ public class CorrelateSimilarityNetwork {
     }
     
     /**
-     * Converts the given Expression Data into a DoubleMatrix2D
+     * Gives the values of the given Expression Data (shared, not copied)
      */
-    private DoubleMatrix2D getExpressionMatrix() {
-        int geneNumber = data.getNumberOfGenes();
-        int condNumber = data.getNumberOfConditions();
-        
-        final DenseDoubleMatrix2D expressionMatrix = new DenseDoubleMatrix2D(geneNumber, condNumber);
-        final double[][] allValues = data.getAllValues();
-        
-        for (int i = 0; i < geneNumber; i++) {
-            for (int j = 0; j < condNumber; j++) {
-                double value = allValues[i][j];
-                expressionMatrix.set(i, j, value);
-            }
-        }
+    private ExpressionMatrix getExpressionMatrix() {
+        final ExpressionMatrix expressionMatrix = data.getMatrix();
         
         numberOfRows = data.getNumberOfGenes();
         numberOfCols = data.getNumberOfConditions();
@@ -1078,6 +2343,13 @@ public class CorrelateSimilarityNetwork {
         return new_double;
     }
     
+    private double formatCutoff(double input) {
+        long new_long = (long) (input * cutoffScale);
+        double new_double = (double) new_long / cutoffScale;
+        
+        return new_double;
+    }
+    
     private CyNetwork createNetwork(final String name) {
     	final CyNetworkFactory netFactory = serviceRegistrar.getService(CyNetworkFactory.class);
     	final CyNetwork net = netFactory.createNetwork();
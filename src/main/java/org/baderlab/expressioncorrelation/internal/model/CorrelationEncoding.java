@@ -0,0 +1,77 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * How each correlation is stored in a packed similarity matrix (see CorrelateSimilarityNetwork.saveRowMatrix()).
+ */
+public enum CorrelationEncoding {
+	/**
+	 * 4 bytes per pair: the correlation rounded to a float (about 7 significant digits); NaN if undefined.
+	 */
+	FLOAT32(4),
+	/**
+	 * 2 bytes per pair: the correlation rounded to the nearest multiple of 1/32767; UNDEFINED if undefined.
+	 */
+	INT16(2);
+
+	/** Quantization step of INT16 is 1/SCALE */
+	static final double SCALE = Short.MAX_VALUE;
+	/** INT16 value of an undefined correlation (NaN), which no correlation between -1 and 1 rounds to */
+	static final short UNDEFINED = Short.MIN_VALUE;
+
+	private final int bytes;
+
+	private CorrelationEncoding(final int bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @return the number of bytes per stored correlation
+	 */
+	public int getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the INT16 value of a correlation between -1 and 1, or UNDEFINED for NaN
+	 */
+	static short quantize(final double corr) {
+		return Double.isNaN(corr) ? UNDEFINED : (short) Math.round(corr * SCALE);
+	}
+
+	/**
+	 * @return the correlation of an INT16 value (NaN for UNDEFINED)
+	 */
+	static double dequantize(final short value) {
+		return value == UNDEFINED ? Double.NaN : value / SCALE;
+	}
+}
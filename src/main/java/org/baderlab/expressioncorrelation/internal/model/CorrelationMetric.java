@@ -0,0 +1,67 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * The similarity measures used to correlate genes or conditions.
+ */
+public enum CorrelationMetric {
+	// Pearson correlation of the expression values
+	PEARSON("Pearson", DotProductMetric.PEARSON),
+	// Pearson correlation of the ranks of the values within each vector (ties get their average rank)
+	SPEARMAN("Spearman Rank", DotProductMetric.SPEARMAN),
+	// Kendall's tau-b: concordant minus discordant pairs of values, corrected for ties
+	KENDALL("Kendall Tau-b", KendallCorrelation.METRIC),
+	// Cosine of the angle between the vectors: Pearson correlation without centering
+	COSINE("Cosine", DotProductMetric.COSINE),
+	// Biweight midcorrelation: Pearson-like, with outliers down-weighted by their distance from the median
+	BIWEIGHT("Biweight Midcorrelation", DotProductMetric.BIWEIGHT);
+	
+	private final String name;
+	private final SimilarityMetric similarity;
+
+	private CorrelationMetric(final String name, final SimilarityMetric similarity) {
+		this.name = name;
+		this.similarity = similarity;
+	}
+
+	/**
+	 * @return the implementation of this metric
+	 */
+	SimilarityMetric getSimilarity() {
+		return similarity;
+	}
+	
+	@Override
+	public String toString() {
+		return name;
+	}
+}
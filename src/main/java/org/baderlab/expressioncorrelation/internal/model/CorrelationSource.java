@@ -0,0 +1,180 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * The lower triangle of a similarity matrix, delivered one tile row at a time.
+ * <p/>
+ * The vectors are grouped into tile rows of tileSize vectors each. Tile row b holds every pair (i, j), j < i,
+ * whose vector i belongs to it, so tile rows can be processed independently and in any order.
+ * Subclasses either calculate the correlations with a SimilarityMetric (MetricCorrelation) or read them back
+ * from a stored triangle (StoredCorrelation).
+ */
+abstract class CorrelationSource {
+
+	/**
+	 * Receives the correlations of a tile, one pair at a time.
+	 */
+	interface PairVisitor {
+		/**
+		 * @param i    - index of the first vector
+		 * @param j    - index of the second vector (always j < i)
+		 * @param corr - The correlation value between -1 and 1
+		 */
+		void visit(int i, int j, double corr);
+	}
+
+	protected final int size;         // Number of vectors
+	protected final int tileSize;
+
+	/**
+	 * @param size     - number of vectors
+	 * @param tileSize - number of vectors per tile side (values < 1 select BlockedCorrelation.DEFAULT_TILE_SIZE)
+	 */
+	protected CorrelationSource(final int size, final int tileSize) {
+		this.size = size;
+		this.tileSize = tileSize > 0 ? tileSize : BlockedCorrelation.DEFAULT_TILE_SIZE;
+	}
+
+	/**
+	 * @return the number of vectors
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return false if the correlations of vector i are undefined (e.g. it has no variance)
+	 */
+	abstract boolean isValid(int i);
+
+	/**
+	 * @return isValid() of every vector
+	 */
+	boolean[] getValidity() {
+		final boolean[] valid = new boolean[size];
+
+		for (int i = 0; i < size; i++)
+			valid[i] = isValid(i);
+
+		return valid;
+	}
+
+	/**
+	 * @return the number of tile rows needed to cover the similarity matrix
+	 */
+	int getBlockCount() {
+		return (size + tileSize - 1) / tileSize;
+	}
+
+	/**
+	 * @return the index of the first vector in the given tile row
+	 */
+	protected int getBlockStart(final int block) {
+		return block * tileSize;
+	}
+
+	/**
+	 * @return the number of pairs (i, j), j < i, whose vector i lies in the tile rows [fromBlock, toBlock)
+	 */
+	long getPairCount(final int fromBlock, final int toBlock) {
+		final long start = Math.min(getBlockStart(fromBlock), size);
+		final long end = Math.min(getBlockStart(toBlock), size);
+		
+		return (end * (end - 1) - start * (start - 1)) / 2;
+	}
+
+	/**
+	 * Splits the tile rows into at most the given number of consecutive ranges with about the same
+	 * number of pairs each. Tile row b holds about b times as many pairs as the first one,
+	 * so the ranges get shorter towards the bottom of the triangle.
+	 *
+	 * @return the boundaries of the ranges: range u is [bounds[u], bounds[u + 1])
+	 */
+	int[] split(final int units) {
+		final int blocks = getBlockCount();
+		final int count = Math.max(1, Math.min(units, blocks));
+		final int[] bounds = new int[count + 1];
+		int n = 1;
+
+		for (int u = 1; u < count; u++) {
+			// The first x rows of the triangle hold (x / blocks)^2 of all the pairs
+			final int b = (int) Math.round(blocks * Math.sqrt((double) u / count));
+
+			if (b > bounds[n - 1] && b < blocks)
+				bounds[n++] = b;
+		}
+
+		bounds[n++] = blocks;
+
+		final int[] result = new int[n];
+		System.arraycopy(bounds, 0, result, 0, n);
+
+		return result;
+	}
+
+	/**
+	 * Same as split(int), for the tile rows taken in the given order (e.g. a random one).
+	 *
+	 * @param order - every tile row once
+	 * @return the boundaries of the ranges: range u is the tile rows order[bounds[u]] to order[bounds[u + 1] - 1]
+	 */
+	int[] split(final int[] order, final int units) {
+		final int count = Math.max(1, Math.min(units, order.length));
+		final double total = getPairCount(0, getBlockCount());
+		final int[] bounds = new int[count + 1];
+		int n = 1;
+		long pairs = 0;
+
+		for (int k = 0; k < order.length - 1 && n < count; k++) {
+			pairs += getPairCount(order[k], order[k] + 1);
+
+			if (pairs >= total * n / count)
+				bounds[n++] = k + 1;
+		}
+
+		bounds[n++] = order.length;
+
+		final int[] result = new int[n];
+		System.arraycopy(bounds, 0, result, 0, n);
+
+		return result;
+	}
+
+	/**
+	 * Passes the correlation of every pair (i, j), j < i, where i belongs to the given tile row, to the visitor.
+	 * Pairs that involve an invalid vector are skipped.
+	 *
+	 * @param block   - the tile row, between 0 and getBlockCount() - 1
+	 * @param visitor - receives the correlation values
+	 */
+	abstract void computeBlockRow(int block, PairVisitor visitor);
+}
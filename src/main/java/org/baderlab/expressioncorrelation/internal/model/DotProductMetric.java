@@ -0,0 +1,88 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * Metrics that are the dot product of vectors scaled to unit length, calculated by BlockedCorrelation.
+ * Pearson centers each vector first; cosine similarity does not. Subclasses may transform the vectors
+ * before they are scaled (Spearman correlates their ranks, biweight midcorrelation their weighted deviations
+ * from the median).
+ */
+class DotProductMetric implements SimilarityMetric {
+
+	static final DotProductMetric PEARSON = new DotProductMetric(true);
+
+	static final DotProductMetric SPEARMAN = new DotProductMetric(true) {
+		@Override
+		ExpressionMatrix.Vectors transform(final ExpressionMatrix.Vectors vectors, final int parallelism) {
+			return SpearmanRank.rankVectors(vectors, parallelism).getRowVectors();
+		}
+	};
+
+	static final DotProductMetric COSINE = new DotProductMetric(false);
+
+	static final DotProductMetric BIWEIGHT = new DotProductMetric(false) {
+		@Override
+		ExpressionMatrix.Vectors transform(final ExpressionMatrix.Vectors vectors, final int parallelism) {
+			return BiweightMidcorrelation.weightVectors(vectors, parallelism).getRowVectors();
+		}
+	};
+
+	private final boolean centered;
+
+	/**
+	 * @param centered - true to subtract the mean of each vector before it is scaled
+	 */
+	DotProductMetric(final boolean centered) {
+		this.centered = centered;
+	}
+
+	/**
+	 * @return the vectors whose (centered) dot products are taken; the given ones by default.
+	 *         Missing values must stay missing.
+	 */
+	ExpressionMatrix.Vectors transform(final ExpressionMatrix.Vectors vectors, final int parallelism) {
+		return vectors;
+	}
+
+	/**
+	 * Vectors with missing values are compared over the values both have (see PairwiseCompleteCorrelation).
+	 */
+	@Override
+	public Kernel prepare(final ExpressionMatrix.Vectors vectors, final int minOverlap, final int parallelism) {
+		final ExpressionMatrix.Vectors values = transform(vectors, parallelism);
+
+		if (values.hasMissingValues())
+			return new PairwiseCompleteCorrelation(values, centered, minOverlap);
+
+		return new BlockedCorrelation(values, centered);
+	}
+}
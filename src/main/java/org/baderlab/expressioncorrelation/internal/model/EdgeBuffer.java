@@ -0,0 +1,82 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.util.Arrays;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * Growable list of (source index, target index, correlation) triples.
+ * Lets the correlation loop run without touching the (not thread-safe) CyNetwork.
+ */
+final class EdgeBuffer {
+
+	private int[] sources = new int[16];
+	private int[] targets = new int[16];
+	private double[] values = new double[16];
+	private int size;
+
+	void add(final int source, final int target, final double value) {
+		if (size == sources.length) {
+			final int capacity = size + (size >> 1);
+			sources = Arrays.copyOf(sources, capacity);
+			targets = Arrays.copyOf(targets, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+
+		sources[size] = source;
+		targets[size] = target;
+		values[size] = value;
+		size++;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Empties the buffer, keeping its arrays for the next edges.
+	 */
+	void clear() {
+		size = 0;
+	}
+
+	int getSource(final int index) {
+		return sources[index];
+	}
+
+	int getTarget(final int index) {
+		return targets[index];
+	}
+
+	double getValue(final int index) {
+		return values[index];
+	}
+}
@@ -0,0 +1,229 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * Streams edges (source, target, correlation) straight to a file, without creating any network.
+ * <p/>
+ * Every work unit writes into its own Sink, which collects the encoded edges in a small buffer and
+ * hands it to the file channel when it is full, so memory does not grow with the number of edges.
+ * Sinks may be used from different threads; the edges of different sinks are written in no particular order.
+ */
+final class EdgeListWriter implements Closeable {
+
+	static final int MAGIC = 0x4543454C; // "ECEL"
+	static final int VERSION = 1;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final long COUNT_POSITION = 8; // Binary header: magic, version, then the number of edges
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] TSV_HEADER = "source\ttarget\tcorrelation\n".getBytes(UTF8);
+
+	private final FileChannel channel;
+	private final EdgeListFormat format;
+	private final byte[][] names;     // UTF-8 encoded node names
+	private final AtomicLong count = new AtomicLong();
+	private volatile IOException error;
+
+	EdgeListWriter(final File file, final EdgeListFormat format, final String[] names) throws IOException {
+		if (file == null)
+			throw new IllegalArgumentException("'file' argument is null");
+		if (format == null)
+			throw new IllegalArgumentException("'format' argument is null");
+
+		this.format = format;
+		this.names = new byte[names.length][];
+
+		for (int n = 0; n < names.length; n++)
+			this.names[n] = String.valueOf(names[n]).getBytes(UTF8);
+
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+
+		try {
+			writeHeader();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void writeHeader() throws IOException {
+		if (format == EdgeListFormat.TSV) {
+			write(ByteBuffer.wrap(TSV_HEADER));
+			return;
+		}
+
+		int length = 20;
+
+		for (final byte[] name : names)
+			length += 4 + name.length;
+
+		final ByteBuffer header = ByteBuffer.allocate(length);
+		header.putInt(MAGIC).putInt(VERSION).putLong(0L).putInt(names.length);
+
+		for (final byte[] name : names)
+			header.putInt(name.length).put(name);
+
+		header.flip();
+		write(header);
+	}
+
+	/**
+	 * @return a new buffer for the edges of one work unit
+	 */
+	Sink newSink() {
+		return new Sink();
+	}
+
+	/**
+	 * @return the number of edges written so far
+	 */
+	long getEdgeCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the first write error, or null
+	 */
+	IOException getError() {
+		return error;
+	}
+
+	private synchronized void write(final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * Completes the binary header with the number of edges and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (format == EdgeListFormat.BINARY && error == null) {
+				final ByteBuffer edges = ByteBuffer.allocate(8);
+				edges.putLong(0, count.get());
+
+				while (edges.hasRemaining())
+					channel.write(edges, COUNT_POSITION + edges.position());
+			}
+		} finally {
+			channel.close();
+		}
+
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Collects the edges of one work unit. Call flush() when the unit is done.
+	 */
+	final class Sink {
+
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private long pending;
+
+		/**
+		 * Adds the edge between the nodes with the given indices.
+		 * Does nothing after a write error (see getError()).
+		 */
+		void add(final int source, final int target, final double corr) {
+			if (format == EdgeListFormat.TSV) {
+				final byte[] s = names[source];
+				final byte[] t = names[target];
+				final String value = Double.toString(corr);
+				final int length = s.length + t.length + value.length() + 3;
+
+				if (length > buffer.remaining())
+					flush();
+
+				if (length > buffer.capacity()) {
+					// A line that does not fit in the buffer (very long names) is written on its own
+					final ByteBuffer line = ByteBuffer.allocate(length);
+					putLine(line, s, t, value);
+					line.flip();
+					writeBuffer(line, 1);
+					return;
+				}
+
+				putLine(buffer, s, t, value);
+			} else {
+				if (buffer.remaining() < 12)
+					flush();
+
+				buffer.putInt(source).putInt(target).putFloat((float) corr);
+			}
+
+			pending++;
+		}
+
+		private void putLine(final ByteBuffer out, final byte[] s, final byte[] t, final String value) {
+			out.put(s).put((byte) '\t').put(t).put((byte) '\t');
+
+			for (int c = 0; c < value.length(); c++)
+				out.put((byte) value.charAt(c));
+
+			out.put((byte) '\n');
+		}
+
+		/**
+		 * Writes the collected edges to the file.
+		 */
+		void flush() {
+			buffer.flip();
+			writeBuffer(buffer, pending);
+			buffer.clear();
+			pending = 0;
+		}
+
+		private void writeBuffer(final ByteBuffer data, final long edges) {
+			if (error != null || !data.hasRemaining())
+				return;
+
+			try {
+				write(data);
+				count.addAndGet(edges);
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+	}
+}
@@ -45,7 +45,9 @@ public class ExpressionData {
 	private final String geneColumnName;
 	private final String[] conditionNames;
 	private String[] geneNames;
-	private double[][] allValues;
+	private ExpressionMatrix matrix;
+	private boolean singlePrecision;
+	private boolean missingValues;
 	
 	private final Object lock = new Object();
 
@@ -100,15 +102,54 @@ public class ExpressionData {
 	}
 
 	/**
-	 * @return All gene/condition values
+	 * @return All gene/condition values (rows are genes, columns are conditions)
 	 */
-	public double[][] getAllValues() {
+	public ExpressionMatrix getMatrix() {
 		synchronized (lock) {
-			if (allValues == null)
+			if (matrix == null)
 				init();
 		}
 		
-		return allValues;
+		return matrix;
+	}
+	
+	public boolean isSinglePrecision() {
+		synchronized (lock) {
+			return singlePrecision;
+		}
+	}
+	
+	/**
+	 * Sets whether the values are stored as floats (single precision) instead of doubles.
+	 * This halves the memory needed for large data sets, at the cost of about 7 significant digits.
+	 * If the values have already been loaded, they are loaded again from the table the next time they are needed.
+	 */
+	public void setSinglePrecision(final boolean singlePrecision) {
+		synchronized (lock) {
+			if (this.singlePrecision != singlePrecision) {
+				this.singlePrecision = singlePrecision;
+				matrix = null;
+			}
+		}
+	}
+	
+	public boolean isMissingValues() {
+		synchronized (lock) {
+			return missingValues;
+		}
+	}
+	
+	/**
+	 * Sets whether empty cells of the table are kept as missing values (NaN) instead of being read as 0.
+	 * If the values have already been loaded, they are loaded again from the table the next time they are needed.
+	 */
+	public void setMissingValues(final boolean missingValues) {
+		synchronized (lock) {
+			if (this.missingValues != missingValues) {
+				this.missingValues = missingValues;
+				matrix = null;
+			}
+		}
 	}
 	
 	public static boolean isValidExpressionData(final CyTable table) {
@@ -185,7 +226,7 @@ public class ExpressionData {
 		// Gene names and values
 		final List<CyRow> allRows = table.getAllRows();
 		geneNames = new String[allRows.size()];
-		allValues = new double[allRows.size()][conditionNames.length];
+		matrix = new ExpressionMatrix(allRows.size(), conditionNames.length, singlePrecision);
 		int i = 0;
 		
 		for (final CyRow row : allRows) {
@@ -195,7 +236,7 @@ public class ExpressionData {
 			for (int j = 0; j < conditionNames.length; j++) {
 				final String condition = conditionNames[j];
 				final Number value = row.get(condition, Number.class);
-				allValues[i][j] = value != null ? value.doubleValue() : 0.0;
+				matrix.set(i, j, value != null ? value.doubleValue() : (missingValues ? Double.NaN : 0.0));
 			}
 			
 			i++;
@@ -0,0 +1,260 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.util.Random;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * The expression values of all genes (rows) in all conditions (columns), stored once in a single
+ * row-major array. The genes or the conditions can be read as vectors without copying the values.
+ * <p/>
+ * In single precision the values are stored as floats, which halves the memory needed for them
+ * (and for the working copy of the correlation calculations).
+ * <p/>
+ * Missing values are stored as NaN (see ExpressionData.setMissingValues()).
+ */
+public final class ExpressionMatrix {
+
+	private final int rows;
+	private final int columns;
+	private final double[] values;    // Row r, column c is at r * columns + c (null in single precision)
+	private final float[] floatValues; // Same layout, used instead of values in single precision
+
+	private final Vectors rowVectors = new Vectors(true);
+	private final Vectors columnVectors = new Vectors(false);
+
+	public ExpressionMatrix(final int rows, final int columns) {
+		this(rows, columns, false);
+	}
+
+	/**
+	 * @param singlePrecision - true to store the values as floats
+	 */
+	public ExpressionMatrix(final int rows, final int columns, final boolean singlePrecision) {
+		if (rows < 0 || columns < 0)
+			throw new IllegalArgumentException("'rows' and 'columns' must not be negative");
+		if ((long) rows * columns > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The matrix cannot have more than " + Integer.MAX_VALUE + " values");
+
+		this.rows = rows;
+		this.columns = columns;
+		this.values = singlePrecision ? null : new double[rows * columns];
+		this.floatValues = singlePrecision ? new float[rows * columns] : null;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public boolean isSinglePrecision() {
+		return floatValues != null;
+	}
+
+	public double get(final int row, final int column) {
+		return get(row * columns + column);
+	}
+
+	void set(final int row, final int column, final double value) {
+		if (floatValues != null)
+			floatValues[row * columns + column] = (float) value;
+		else
+			values[row * columns + column] = value;
+	}
+
+	private double get(final int index) {
+		return floatValues != null ? floatValues[index] : values[index];
+	}
+
+	/**
+	 * @return a copy of the matrix, in the same precision
+	 */
+	ExpressionMatrix copy() {
+		final ExpressionMatrix copy = new ExpressionMatrix(rows, columns, isSinglePrecision());
+
+		if (floatValues != null)
+			System.arraycopy(floatValues, 0, copy.floatValues, 0, floatValues.length);
+		else
+			System.arraycopy(values, 0, copy.values, 0, values.length);
+
+		return copy;
+	}
+
+	/**
+	 * Puts the values of every row in a new random order (Fisher-Yates), independently of the other rows.
+	 */
+	void shuffleRows(final Random random) {
+		for (int r = 0; r < rows; r++) {
+			for (int c = columns - 1; c > 0; c--) {
+				final int other = random.nextInt(c + 1);
+				final double value = get(r, c);
+				set(r, c, get(r, other));
+				set(r, other, value);
+			}
+		}
+	}
+
+	/**
+	 * @return true if any value is missing (NaN)
+	 */
+	public boolean hasMissingValues() {
+		final int count = rows * columns;
+
+		for (int index = 0; index < count; index++) {
+			if (Double.isNaN(get(index)))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the number of 64-bit words of the presence mask of a vector with the given number of values
+	 */
+	static int getMaskWords(final int length) {
+		return (length + 63) >>> 6;
+	}
+
+	/**
+	 * @return the rows (genes) as vectors of their values in each condition
+	 */
+	public Vectors getRowVectors() {
+		return rowVectors;
+	}
+
+	/**
+	 * @return the columns (conditions) as vectors of the values of each gene
+	 */
+	public Vectors getColumnVectors() {
+		return columnVectors;
+	}
+
+	/**
+	 * A view of the rows or the columns of the matrix as vectors. No values are copied.
+	 */
+	public final class Vectors {
+
+		private final boolean byRow;
+
+		private Vectors(final boolean byRow) {
+			this.byRow = byRow;
+		}
+
+		/**
+		 * @return the number of vectors
+		 */
+		public int size() {
+			return byRow ? rows : columns;
+		}
+
+		/**
+		 * @return the number of values in each vector
+		 */
+		public int length() {
+			return byRow ? columns : rows;
+		}
+
+		/**
+		 * @return value k of the given vector
+		 */
+		public double get(final int vector, final int k) {
+			return ExpressionMatrix.this.get(byRow ? vector * columns + k : k * columns + vector);
+		}
+
+		public boolean isSinglePrecision() {
+			return ExpressionMatrix.this.isSinglePrecision();
+		}
+
+		public boolean hasMissingValues() {
+			return ExpressionMatrix.this.hasMissingValues();
+		}
+
+		/**
+		 * Marks the values that are present (not NaN), one bit per value: value k of vector i is bit k % 64
+		 * of word i * words + k / 64, where words = getMaskWords(length()). Unused bits of the last word are 0.
+		 */
+		long[] getPresence() {
+			final int words = getMaskWords(length());
+			final long[] presence = new long[size() * words];
+			int index = 0;
+
+			for (int r = 0; r < rows; r++) {
+				for (int c = 0; c < columns; c++, index++) {
+					if (!Double.isNaN(ExpressionMatrix.this.get(index))) {
+						final int vector = byRow ? r : c;
+						final int k = byRow ? c : r;
+						presence[vector * words + (k >>> 6)] |= 1L << k;
+					}
+				}
+			}
+
+			return presence;
+		}
+
+		/**
+		 * Copies the vectors one after the other into dest (vector i starts at i * length()).
+		 * The matrix is read in memory order, so the columns are transposed in a single pass.
+		 */
+		void copyTo(final double[] dest) {
+			if (byRow && values != null) {
+				System.arraycopy(values, 0, dest, 0, values.length);
+				return;
+			}
+
+			int index = 0;
+
+			for (int r = 0; r < rows; r++) {
+				for (int c = 0; c < columns; c++, index++)
+					dest[byRow ? index : c * rows + r] = ExpressionMatrix.this.get(index);
+			}
+		}
+
+		/**
+		 * Same as copyTo(double[]), rounding double values to single precision.
+		 */
+		void copyTo(final float[] dest) {
+			if (byRow && floatValues != null) {
+				System.arraycopy(floatValues, 0, dest, 0, floatValues.length);
+				return;
+			}
+
+			int index = 0;
+
+			for (int r = 0; r < rows; r++) {
+				for (int c = 0; c < columns; c++, index++)
+					dest[byRow ? index : c * rows + r] = (float) ExpressionMatrix.this.get(index);
+			}
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.util.Arrays;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * Calculates Kendall's tau-b of every pair of vectors, with Knight's O(m log m) algorithm.
+ * <p/>
+ * Every vector is ranked and sorted once (see SpearmanRank), so the values are compared as integer codes.
+ * For a pair (x, y), the codes of y are put in the sorted order of x, the runs of tied x values are sorted by y,
+ * and a merge sort of the result counts the discordant pairs as the number of swaps it needs.
+ * The ties within each vector are counted once; only the ties shared by both vectors are counted per pair:
+ * <pre>
+ * tau-b = (n0 - n1 - n2 + n3 - 2 * swaps) / sqrt((n0 - n1) * (n0 - n2))
+ * </pre>
+ * where n0 = m * (m - 1) / 2, n1 and n2 are the pairs tied in x and in y, and n3 the pairs tied in both.
+ * Each thread reuses its own scratch arrays.
+ * <p/>
+ * Vectors with missing values are compared over the values both have. Missing values are ranked above all the
+ * others and skipped, which leaves the order of the present values unchanged; the ties of such pairs are counted
+ * per pair, among the shared values.
+ */
+final class KendallCorrelation implements SimilarityMetric.Kernel {
+
+	static final SimilarityMetric METRIC = new SimilarityMetric() {
+		@Override
+		public Kernel prepare(final ExpressionMatrix.Vectors vectors, final int minOverlap, final int parallelism) {
+			return new KendallCorrelation(vectors, minOverlap);
+		}
+	};
+
+	/** Runs sorted by insertion before the merge passes */
+	private static final int INSERTION_SORT_LENGTH = 8;
+
+	private static final ThreadLocal<int[][]> SCRATCH = new ThreadLocal<int[][]>() {
+		@Override
+		protected int[][] initialValue() {
+			return new int[3][0];
+		}
+	};
+
+	private final int size;           // Number of vectors
+	private final int length;         // Number of values in each vector
+	private final int[] codes;        // Twice the rank of each value: vector i at [i * length, (i + 1) * length)
+	private final int[] order;        // Positions of the values of each vector sorted by value, same layout
+	private final long[] tiedPairs;   // Number of pairs of tied values in each vector
+	private final boolean[] valid;    // false if all values of the vector are tied (tau undefined)
+	private final long pairs;         // Number of pairs of values: m * (m - 1) / 2
+	private final int minOverlap;     // Pairs with missing values that share fewer values are skipped
+	private final int words;          // Number of mask words per vector
+	private final long[] presence;    // Present values of each vector (see Vectors.getPresence()), null if all are
+	private final boolean[] complete; // true if no value of the vector is missing
+
+	/**
+	 * @param vectors    - expression data, as gene or condition vectors (missing values are NaN)
+	 * @param minOverlap - if values are missing, pairs that share fewer values are skipped
+	 */
+	KendallCorrelation(final ExpressionMatrix.Vectors vectors, final int minOverlap) {
+		this.size = vectors.size();
+		this.length = vectors.length();
+		this.codes = new int[size * length];
+		this.order = new int[size * length];
+		this.tiedPairs = new long[size];
+		this.valid = new boolean[size];
+		this.pairs = (long) length * (length - 1) / 2;
+		this.minOverlap = minOverlap;
+		this.words = ExpressionMatrix.getMaskWords(length);
+		this.presence = vectors.hasMissingValues() ? vectors.getPresence() : null;
+		this.complete = new boolean[size];
+
+		final SpearmanRank ranks = new SpearmanRank(presence != null ? rankMissingLast(vectors) : vectors);
+
+		for (int i = 0; i < size; i++) {
+			final int offset = i * length;
+			int count = 0;
+
+			for (int k = 0; k < length; k++) {
+				// Ranks are multiples of 0.5
+				codes[offset + k] = (int) (2 * ranks.getRank(i, k));
+				order[offset + k] = ranks.getSortedIndex(i, k);
+
+				if (isPresent(i, k))
+					count++;
+			}
+
+			complete[i] = count == length;
+			tiedPairs[i] = countTiedPairs(i, i);
+			valid[i] = tiedPairs[i] < (long) count * (count - 1) / 2 && (presence == null || count >= minOverlap);
+		}
+	}
+
+	/**
+	 * @return a copy of the vectors, with the missing values replaced by positive infinity
+	 */
+	private static ExpressionMatrix.Vectors rankMissingLast(final ExpressionMatrix.Vectors vectors) {
+		final ExpressionMatrix copy = new ExpressionMatrix(vectors.size(), vectors.length());
+
+		for (int i = 0; i < vectors.size(); i++) {
+			for (int k = 0; k < vectors.length(); k++) {
+				final double value = vectors.get(i, k);
+				copy.set(i, k, Double.isNaN(value) ? Double.POSITIVE_INFINITY : value);
+			}
+		}
+
+		return copy.getRowVectors();
+	}
+
+	private boolean isPresent(final int i, final int k) {
+		return presence == null || (presence[i * words + (k >>> 6)] & (1L << k)) != 0L;
+	}
+
+	/**
+	 * @return the number of pairs of tied values of vector i, among the values present in both i and other
+	 */
+	private long countTiedPairs(final int i, final int other) {
+		final int offset = i * length;
+		long tied = 0;
+		int run = 0;
+		int code = 0;
+
+		for (int p = 0; p < length; p++) {
+			final int k = order[offset + p];
+
+			if (!isPresent(i, k) || !isPresent(other, k))
+				continue;
+
+			if (run > 0 && codes[offset + k] == code) {
+				run++;
+			} else {
+				tied += (long) run * (run - 1) / 2;
+				run = 1;
+				code = codes[offset + k];
+			}
+		}
+
+		return tied + (long) run * (run - 1) / 2;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isValid(final int i) {
+		return valid[i];
+	}
+
+	@Override
+	public double similarity(final int i, final int j) {
+		int[][] scratch = SCRATCH.get();
+
+		if (scratch[0].length < length) {
+			scratch = new int[][] { new int[length], new int[length], new int[length] };
+			SCRATCH.set(scratch);
+		}
+
+		if (complete[i] && complete[j])
+			return tau(i, j, scratch[0], scratch[1]);
+
+		return tauOverlap(i, j, scratch[0], scratch[1], scratch[2]);
+	}
+
+	/**
+	 * @return Kendall's tau-b of vectors x and y
+	 */
+	private double tau(final int x, final int y, final int[] values, final int[] buffer) {
+		final int xOffset = x * length;
+		final int yOffset = y * length;
+
+		// The codes of y, in the sorted order of x
+		for (int p = 0; p < length; p++)
+			values[p] = codes[yOffset + order[xOffset + p]];
+
+		// Pairs tied in x must not count as discordant, so each run of tied x values is sorted by y
+		long jointTies = 0;
+
+		if (tiedPairs[x] > 0) {
+			int first = 0;
+
+			while (first < length) {
+				final int code = codes[xOffset + order[xOffset + first]];
+				int last = first + 1;
+
+				while (last < length && codes[xOffset + order[xOffset + last]] == code)
+					last++;
+
+				if (last - first > 1) {
+					Arrays.sort(values, first, last);
+					jointTies += countTiedPairs(values, first, last);
+				}
+
+				first = last;
+			}
+		}
+
+		return tauB(pairs, tiedPairs[x], tiedPairs[y], jointTies, countSwaps(values, buffer, length));
+	}
+
+	/**
+	 * Same as tau(), over the values present in both vectors.
+	 *
+	 * @return NaN if the vectors share fewer than minOverlap values, or all their shared values are tied
+	 */
+	private double tauOverlap(final int x, final int y, final int[] values, final int[] buffer,
+			final int[] xCodes) {
+		final int xOffset = x * length;
+		final int yOffset = y * length;
+		int n = 0;
+
+		for (int p = 0; p < length; p++) {
+			final int k = order[xOffset + p];
+
+			if (isPresent(x, k) && isPresent(y, k)) {
+				xCodes[n] = codes[xOffset + k];
+				values[n++] = codes[yOffset + k];
+			}
+		}
+
+		if (n < minOverlap)
+			return Double.NaN;
+
+		long jointTies = 0;
+		int first = 0;
+
+		while (first < n) {
+			int last = first + 1;
+
+			while (last < n && xCodes[last] == xCodes[first])
+				last++;
+
+			if (last - first > 1) {
+				Arrays.sort(values, first, last);
+				jointTies += countTiedPairs(values, first, last);
+			}
+
+			first = last;
+		}
+
+		final long swaps = countSwaps(values, buffer, n);
+
+		return tauB((long) n * (n - 1) / 2, countTiedPairs(x, y), countTiedPairs(y, x), jointTies, swaps);
+	}
+
+	/**
+	 * @return tau-b from the pair counts (see above), or NaN if all pairs are tied in x or in y
+	 */
+	private static double tauB(final long pairs, final long xTies, final long yTies, final long jointTies,
+			final long swaps) {
+		if (xTies >= pairs || yTies >= pairs)
+			return Double.NaN;
+
+		final double numerator = pairs - xTies - yTies + jointTies - 2.0 * swaps;
+		final double tau = numerator / Math.sqrt((double) (pairs - xTies) * (pairs - yTies));
+
+		return tau > 1.0 ? 1.0 : (tau < -1.0 ? -1.0 : tau);
+	}
+
+	/**
+	 * @return the number of pairs of equal values in the sorted range [from, to)
+	 */
+	private static long countTiedPairs(final int[] values, final int from, final int to) {
+		long tied = 0;
+		int first = from;
+
+		while (first < to) {
+			int last = first + 1;
+
+			while (last < to && values[last] == values[first])
+				last++;
+
+			tied += (long) (last - first) * (last - first - 1) / 2;
+			first = last;
+		}
+
+		return tied;
+	}
+
+	/**
+	 * Sorts the first length values (using buffer, which must be as long) and counts the swaps of
+	 * neighbouring values a bubble sort would need: the number of pairs a < b with values[a] > values[b].
+	 */
+	private static long countSwaps(int[] values, int[] buffer, final int length) {
+		long swaps = 0;
+
+		for (int start = 0; start < length; start += INSERTION_SORT_LENGTH) {
+			final int end = Math.min(start + INSERTION_SORT_LENGTH, length);
+
+			for (int k = start + 1; k < end; k++) {
+				final int value = values[k];
+				int p = k - 1;
+
+				while (p >= start && values[p] > value) {
+					values[p + 1] = values[p];
+					p--;
+				}
+
+				values[p + 1] = value;
+				swaps += k - 1 - p;
+			}
+		}
+
+		for (int width = INSERTION_SORT_LENGTH; width < length; width *= 2) {
+			for (int low = 0; low < length; low += 2 * width) {
+				final int mid = Math.min(low + width, length);
+				final int high = Math.min(low + 2 * width, length);
+				int a = low;
+				int b = mid;
+				int k = low;
+
+				while (a < mid && b < high) {
+					if (values[b] < values[a]) {
+						// Every value left in the first half is larger
+						buffer[k++] = values[b++];
+						swaps += mid - a;
+					} else {
+						buffer[k++] = values[a++];
+					}
+				}
+
+				while (a < mid)
+					buffer[k++] = values[a++];
+				while (b < high)
+					buffer[k++] = values[b++];
+			}
+
+			final int[] merged = buffer;
+			buffer = values;
+			values = merged;
+		}
+
+		return swaps;
+	}
+}
@@ -0,0 +1,345 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * A PackedTriangle kept in a file and accessed through memory mappings, so a similarity matrix only has to be
+ * calculated once and can be reread (also by later sessions) at the speed of the disk or the page cache.
+ * <p/>
+ * The file is big-endian: the int "ECTR" magic number, the int format version (3), the int encoding
+ * (0 = FLOAT32, 1 = INT16), the int number of vectors n, the settings the correlations were calculated with
+ * (see Settings: the int CorrelationMetric ordinal, the int missing-value mode (1 if on) and the int minimum
+ * overlap), the int "DONE" completion marker (0 until complete() is called), one byte per vector (1 if valid),
+ * zero padding to a multiple of 8 bytes, then the n * (n - 1) / 2 values in the order of PackedTriangle.index().
+ * Undefined correlations are NaN (FLOAT32) or CorrelationEncoding.UNDEFINED (INT16); create() writes them
+ * to every pair, so pairs that are never set stay undefined. open() rejects files without the completion marker,
+ * so a matrix whose calculation was cancelled or failed is never mistaken for one with undefined pairs.
+ * <p/>
+ * A single mapping cannot exceed 2 GB, so the values are mapped in chunks of 1 GB (a multiple of
+ * both value sizes, so no value spans two chunks).
+ */
+final class MappedTriangle extends PackedTriangle {
+
+	static final int MAGIC = 0x45435452; // "ECTR"
+	static final int COMPLETE = 0x444F4E45; // "DONE"
+	static final int VERSION = 3;
+
+	private static final int HEADER_SIZE = 32;
+	private static final int COMPLETE_OFFSET = 28;
+	private static final int CHUNK_BITS = 30;
+
+	private final CorrelationEncoding encoding;
+	private final Settings settings;
+	private final int shift;          // log2 of the value size
+	private final int chunkBits;
+	private final long chunkMask;
+	private final MappedByteBuffer[] chunks;
+	private final MappedByteBuffer header; // Only mapped for writing
+
+	private MappedTriangle(final FileChannel channel, final MapMode mode, final CorrelationEncoding encoding,
+			final Settings settings, final boolean[] valid, final int chunkBits) throws IOException {
+		super(valid);
+		this.encoding = encoding;
+		this.settings = settings;
+		this.shift = encoding == CorrelationEncoding.FLOAT32 ? 2 : 1;
+		this.chunkBits = chunkBits;
+		this.chunkMask = (1L << chunkBits) - 1;
+
+		final long dataStart = getDataStart(valid.length);
+		final long length = getPairCount(valid.length) << shift;
+		final int count = (int) ((length + chunkMask) >>> chunkBits);
+		this.chunks = new MappedByteBuffer[count];
+		this.header = mode == MapMode.READ_WRITE ? channel.map(mode, 0, HEADER_SIZE) : null;
+
+		for (int c = 0; c < count; c++) {
+			final long start = (long) c << chunkBits;
+			chunks[c] = channel.map(mode, dataStart + start, Math.min(length - start, 1L << chunkBits));
+		}
+	}
+
+	private static long getDataStart(final int size) {
+		return (HEADER_SIZE + size + 7) & ~7L;
+	}
+
+	/**
+	 * Creates (or replaces) the file with room for every pair of the given vectors.
+	 * The file cannot be opened until complete() is called.
+	 *
+	 * @param settings - how the correlations are calculated, checked by whoever opens the file
+	 * @param valid    - false for each vector whose correlations are undefined; its length is the number of vectors
+	 */
+	static MappedTriangle create(final File file, final CorrelationEncoding encoding, final Settings settings,
+			final boolean[] valid) throws IOException {
+		return create(file, encoding, settings, valid, CHUNK_BITS);
+	}
+
+	/**
+	 * Same as create(File, CorrelationEncoding, Settings, boolean[]), with mappings of 2^chunkBits bytes.
+	 */
+	static MappedTriangle create(final File file, final CorrelationEncoding encoding, final Settings settings,
+			final boolean[] valid, final int chunkBits) throws IOException {
+		if (file == null)
+			throw new IllegalArgumentException("'file' argument is null");
+		if (encoding == null)
+			throw new IllegalArgumentException("'encoding' argument is null");
+		if (settings == null)
+			throw new IllegalArgumentException("'settings' argument is null");
+		if (chunkBits < 2 || chunkBits > 30)
+			throw new IllegalArgumentException("'chunkBits' must be between 2 and 30");
+
+		final ByteBuffer header = ByteBuffer.allocate((int) getDataStart(valid.length));
+		header.putInt(MAGIC).putInt(VERSION).putInt(encoding.ordinal()).putInt(valid.length);
+		header.putInt(settings.metric.ordinal()).putInt(settings.missingValues ? 1 : 0).putInt(settings.minOverlap)
+				.putInt(0);
+
+		for (final boolean v : valid)
+			header.put((byte) (v ? 1 : 0));
+
+		header.clear();
+
+		// The mappings stay valid after the channel is closed
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (header.hasRemaining())
+				channel.write(header);
+
+			// Mapping past the end of the file extends it
+			final MappedTriangle triangle =
+					new MappedTriangle(channel, MapMode.READ_WRITE, encoding, settings, valid, chunkBits);
+			triangle.fillUndefined();
+
+			return triangle;
+		}
+	}
+
+	/**
+	 * Makes every pair undefined, copying a buffer of undefined values into the mappings.
+	 */
+	private void fillUndefined() {
+		final ByteBuffer undefined = ByteBuffer.allocate(1 << 16);
+
+		while (undefined.hasRemaining()) {
+			if (encoding == CorrelationEncoding.FLOAT32)
+				undefined.putFloat(Float.NaN);
+			else
+				undefined.putShort(CorrelationEncoding.UNDEFINED);
+		}
+
+		for (final MappedByteBuffer chunk : chunks) {
+			chunk.clear();
+
+			while (chunk.hasRemaining()) {
+				undefined.clear();
+				undefined.limit(Math.min(undefined.capacity(), chunk.remaining()));
+				chunk.put(undefined);
+			}
+
+			chunk.clear();
+		}
+	}
+
+	/**
+	 * Maps a file written by create() for reading.
+	 *
+	 * @throws IOException if the file cannot be read or is not a complete similarity matrix file
+	 */
+	static MappedTriangle open(final File file) throws IOException {
+		return open(file, CHUNK_BITS);
+	}
+
+	/**
+	 * Same as open(File), with mappings of 2^chunkBits bytes.
+	 */
+	static MappedTriangle open(final File file, final int chunkBits) throws IOException {
+		if (file == null)
+			throw new IllegalArgumentException("'file' argument is null");
+		if (chunkBits < 2 || chunkBits > 30)
+			throw new IllegalArgumentException("'chunkBits' must be between 2 and 30");
+
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			read(channel, header, 0);
+
+			if (header.getInt() != MAGIC)
+				throw new IOException(file.getName() + " is not a similarity matrix file");
+
+			final int version = header.getInt();
+			final int code = header.getInt();
+			final int size = header.getInt();
+			final int metric = header.getInt();
+			final int missingValues = header.getInt();
+			final int minOverlap = header.getInt();
+			final int complete = header.getInt();
+
+			if (version != VERSION)
+				throw new IOException(file.getName() + " has unsupported version " + version);
+			if (code < 0 || code >= CorrelationEncoding.values().length || size < 0)
+				throw new IOException(file.getName() + " has an invalid header");
+			if (metric < 0 || metric >= CorrelationMetric.values().length || (missingValues & ~1) != 0 || minOverlap < 0)
+				throw new IOException(file.getName() + " has an invalid header");
+
+			if (complete != COMPLETE)
+				throw new IOException(file.getName() + " is incomplete (its calculation was cancelled or failed)");
+
+			final CorrelationEncoding encoding = CorrelationEncoding.values()[code];
+			final Settings settings = new Settings(CorrelationMetric.values()[metric], missingValues == 1, minOverlap);
+			final long length = getDataStart(size) + (getPairCount(size) * encoding.getBytes());
+
+			if (channel.size() < length)
+				throw new IOException(file.getName() + " is incomplete (" + channel.size() + " of " + length + " bytes)");
+
+			final ByteBuffer flags = ByteBuffer.allocate(size);
+			read(channel, flags, HEADER_SIZE);
+
+			final boolean[] valid = new boolean[size];
+
+			for (int i = 0; i < size; i++)
+				valid[i] = flags.get(i) != 0;
+
+			return new MappedTriangle(channel, MapMode.READ_ONLY, encoding, settings, valid, chunkBits);
+		}
+	}
+
+	private static void read(final FileChannel channel, final ByteBuffer buffer, final long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of file");
+		}
+
+		buffer.flip();
+	}
+
+	@Override
+	CorrelationEncoding getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * @return how the correlations of the file were calculated
+	 */
+	Settings getSettings() {
+		return settings;
+	}
+
+	@Override
+	double get(final long index) {
+		final long offset = index << shift;
+		final MappedByteBuffer chunk = chunks[(int) (offset >>> chunkBits)];
+		final int position = (int) (offset & chunkMask);
+
+		if (encoding == CorrelationEncoding.FLOAT32)
+			return chunk.getFloat(position);
+		else
+			return CorrelationEncoding.dequantize(chunk.getShort(position));
+	}
+
+	@Override
+	void set(final long index, final double corr) {
+		final long offset = index << shift;
+		final MappedByteBuffer chunk = chunks[(int) (offset >>> chunkBits)];
+		final int position = (int) (offset & chunkMask);
+
+		if (encoding == CorrelationEncoding.FLOAT32)
+			chunk.putFloat(position, (float) corr);
+		else
+			chunk.putShort(position, CorrelationEncoding.quantize(corr));
+	}
+
+	/**
+	 * Writes the values to the file, then marks it complete so open() accepts it.
+	 * Only valid for triangles returned by create().
+	 */
+	void complete() {
+		for (final MappedByteBuffer chunk : chunks)
+			chunk.force();
+
+		header.putInt(COMPLETE_OFFSET, COMPLETE);
+		header.force();
+	}
+
+	/**
+	 * Drops the mappings of the triangle, which must not be used afterwards. The mappings are only released when
+	 * they are garbage collected, so some systems (Windows) may keep the file in use until then.
+	 */
+	void close() {
+		Arrays.fill(chunks, null);
+	}
+
+	/**
+	 * The settings that change the correlations of a similarity matrix, besides the expression data itself.
+	 * The minimum overlap only matters in missing-value mode, so it is 0 when the mode is off.
+	 */
+	static final class Settings {
+
+		final CorrelationMetric metric;
+		final boolean missingValues;
+		final int minOverlap;
+
+		Settings(final CorrelationMetric metric, final boolean missingValues, final int minOverlap) {
+			if (metric == null)
+				throw new IllegalArgumentException("'metric' argument is null");
+
+			this.metric = metric;
+			this.missingValues = missingValues;
+			this.minOverlap = missingValues ? minOverlap : 0;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Settings))
+				return false;
+
+			final Settings other = (Settings) obj;
+
+			return metric == other.metric && missingValues == other.missingValues && minOverlap == other.minOverlap;
+		}
+
+		@Override
+		public int hashCode() {
+			return (metric.hashCode() * 31 + (missingValues ? 1 : 0)) * 31 + minOverlap;
+		}
+
+		@Override
+		public String toString() {
+			return metric + (missingValues ? " with missing values (at least " + minOverlap + " shared)" : "");
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * Calculates the lower triangle of a similarity matrix with the kernel of any SimilarityMetric.
+ * Tiled kernels calculate each tile of the tile row at once; other kernels are called one pair at a time,
+ * and pairs whose similarity is undefined (NaN) are skipped.
+ */
+final class MetricCorrelation extends CorrelationSource {
+
+	private final SimilarityMetric.Kernel kernel;
+	private final SimilarityMetric.TiledKernel tiled;   // null if the kernel is only pairwise
+
+	/**
+	 * @param kernel   - prepared vectors of a SimilarityMetric
+	 * @param tileSize - number of vectors per tile side (values < 1 select the default)
+	 */
+	MetricCorrelation(final SimilarityMetric.Kernel kernel, final int tileSize) {
+		super(kernel.size(), tileSize);
+		this.kernel = kernel;
+		this.tiled = kernel instanceof SimilarityMetric.TiledKernel ? (SimilarityMetric.TiledKernel) kernel : null;
+	}
+
+	@Override
+	boolean isValid(final int i) {
+		return kernel.isValid(i);
+	}
+
+	@Override
+	void computeBlockRow(final int block, final PairVisitor visitor) {
+		final int iStart = getBlockStart(block);
+		final int iEnd = Math.min(iStart + tileSize, size);
+
+		if (tiled != null) {
+			for (int jStart = 0; jStart < iEnd; jStart += tileSize)
+				tiled.computeTile(iStart, iEnd, jStart, Math.min(jStart + tileSize, iEnd), visitor);
+
+			return;
+		}
+
+		for (int i = iStart; i < iEnd; i++) {
+			if (!kernel.isValid(i))
+				continue;
+
+			for (int j = 0; j < i; j++) {
+				if (!kernel.isValid(j))
+					continue;
+
+				final double corr = kernel.similarity(i, j);
+
+				if (!Double.isNaN(corr))
+					visitor.visit(i, j, corr);
+			}
+		}
+	}
+}
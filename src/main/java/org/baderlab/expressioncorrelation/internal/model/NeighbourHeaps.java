@@ -0,0 +1,206 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.util.Arrays;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * Keeps the k strongest correlations (largest |r|) of every vector, so that a nearest-neighbour
+ * network can be built in the same pass as the correlations, with O(n * k) memory.
+ * <p/>
+ * Each vector has a fixed-size min-heap in three flat arrays, with its weakest kept correlation at the root.
+ * Offers may come from several threads: the heaps are guarded by a fixed set of locks, and most offers are
+ * rejected before locking by comparing with the weakest correlation of a full heap, which only grows.
+ * Equally strong correlations are ordered by partner index, so the result does not depend on the order
+ * of the offers.
+ */
+final class NeighbourHeaps {
+
+	private static final int LOCK_STRIPES = 1024;
+
+	private final int size;
+	private final int k;
+	private final int[] partners;     // The heap of vector n is at [n * k, n * k + counts[n])
+	private final double[] values;
+	private final int[] counts;
+	private final double[] weakest;   // |correlation| at the root of each full heap, -1 while it is not full
+	private final Object[] locks;
+
+	/**
+	 * @param size - number of vectors
+	 * @param k    - number of correlations kept per vector
+	 */
+	NeighbourHeaps(final int size, final int k) {
+		if (k < 1)
+			throw new IllegalArgumentException("'k' must be at least 1");
+		if ((long) size * k > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Cannot keep " + k + " neighbours for " + size + " vectors");
+
+		this.size = size;
+		this.k = k;
+		this.partners = new int[size * k];
+		this.values = new double[size * k];
+		this.counts = new int[size];
+		this.weakest = new double[size];
+		this.locks = new Object[Math.min(LOCK_STRIPES, Math.max(1, size))];
+
+		Arrays.fill(weakest, -1.0);
+
+		for (int l = 0; l < locks.length; l++)
+			locks[l] = new Object();
+	}
+
+	/**
+	 * Offers the correlation of the pair (i, j) to the heaps of both vectors.
+	 */
+	void offer(final int i, final int j, final double corr) {
+		offerTo(i, j, corr);
+		offerTo(j, i, corr);
+	}
+
+	private void offerTo(final int node, final int partner, final double corr) {
+		final double strength = Math.abs(corr);
+
+		// A stale value is never too high, so this check can be done without the lock
+		if (strength < weakest[node])
+			return;
+
+		synchronized (locks[node % locks.length]) {
+			final int base = node * k;
+			final int count = counts[node];
+
+			if (count < k) {
+				// Adds the new correlation as a leaf and moves it up
+				int child = count;
+
+				while (child > 0) {
+					final int parent = (child - 1) >>> 1;
+
+					if (!isWeaker(strength, partner, strengthAt(base + parent), partners[base + parent]))
+						break;
+
+					move(base + parent, base + child);
+					child = parent;
+				}
+
+				partners[base + child] = partner;
+				values[base + child] = corr;
+				counts[node] = count + 1;
+
+				if (count + 1 == k)
+					weakest[node] = Math.abs(values[base]);
+			} else if (isWeaker(strengthAt(base), partners[base], strength, partner)) {
+				// Replaces the weakest correlation (the root) and moves the new one down
+				int parent = 0;
+
+				while (true) {
+					int child = 2 * parent + 1;
+
+					if (child >= k)
+						break;
+					if (child + 1 < k && isWeaker(strengthAt(base + child + 1), partners[base + child + 1],
+							strengthAt(base + child), partners[base + child]))
+						child++;
+					if (!isWeaker(strengthAt(base + child), partners[base + child], strength, partner))
+						break;
+
+					move(base + child, base + parent);
+					parent = child;
+				}
+
+				partners[base + parent] = partner;
+				values[base + parent] = corr;
+				weakest[node] = Math.abs(values[base]);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the first correlation is weaker than the second one (ties: the larger partner index is weaker)
+	 */
+	private static boolean isWeaker(final double strength, final int partner, final double otherStrength,
+			final int otherPartner) {
+		return strength < otherStrength || (strength == otherStrength && partner > otherPartner);
+	}
+
+	private double strengthAt(final int index) {
+		return Math.abs(values[index]);
+	}
+
+	private void move(final int from, final int to) {
+		partners[to] = partners[from];
+		values[to] = values[from];
+	}
+
+	/**
+	 * Builds the network edges: every pair kept by at least one of its two vectors, added once,
+	 * with the larger index as the source. The edges of each vector are in partner order.
+	 */
+	EdgeBuffer toEdges() {
+		// Sorts each heap by partner (the heap index is packed in the low bits), so pairs kept
+		// by both vectors can be found with a binary search
+		final int[] sortedPartners = new int[partners.length];
+		final double[] sortedValues = new double[values.length];
+		final long[] keys = new long[k];
+
+		for (int n = 0; n < size; n++) {
+			final int base = n * k;
+			final int count = counts[n];
+
+			for (int e = 0; e < count; e++)
+				keys[e] = ((long) partners[base + e] << 32) | e;
+
+			Arrays.sort(keys, 0, count);
+
+			for (int e = 0; e < count; e++) {
+				final int index = base + (int) keys[e];
+				sortedPartners[base + e] = partners[index];
+				sortedValues[base + e] = values[index];
+			}
+		}
+
+		final EdgeBuffer edges = new EdgeBuffer();
+
+		for (int n = 0; n < size; n++) {
+			final int base = n * k;
+
+			for (int e = base; e < base + counts[n]; e++) {
+				final int p = sortedPartners[e];
+
+				// A pair kept by both vectors is only added by the one with the larger index
+				if (n > p || Arrays.binarySearch(sortedPartners, p * k, p * k + counts[p], n) < 0)
+					edges.add(Math.max(n, p), Math.min(n, p), sortedValues[e]);
+			}
+		}
+
+		return edges;
+	}
+}
@@ -0,0 +1,165 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.util.List;
+
+import org.cytoscape.model.CyEdge;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.subnetwork.CyRootNetwork;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * Adds the edges collected by the correlation calculation to a CyNetwork.
+ * <p/>
+ * This is the second phase of building a similarity network. It is kept apart from the correlation loop so that
+ * both can be profiled and optimized on their own: all nodes are created first, then all edges,
+ * and then the node and edge columns are written, each column only once per row.
+ */
+final class NetworkMaterializer {
+
+	/** Name of the edge column that holds the correlation value */
+	static final String STRENGTH_COL_NAME = "Strength";
+	/** Name of the edge column that holds the p-value of the correlation (significance mode) */
+	static final String P_VALUE_COL_NAME = "P-value";
+	/** Name of the edge column that holds the q-value of the correlation (significance mode) */
+	static final String Q_VALUE_COL_NAME = "Q-value";
+
+	private final CyNetwork network;
+	private final String[] names;
+	private final Significance significance;
+
+	/**
+	 * @param network - the network that receives the nodes and edges
+	 * @param names   - node names, in the same order as the vectors of the similarity matrix
+	 */
+	NetworkMaterializer(final CyNetwork network, final String[] names) {
+		this(network, names, null);
+	}
+
+	/**
+	 * @param significance - p-values and q-values of the correlations, written to their own edge columns
+	 *                       (null to leave them out)
+	 */
+	NetworkMaterializer(final CyNetwork network, final String[] names, final Significance significance) {
+		this.network = network;
+		this.names = names;
+		this.significance = significance;
+	}
+
+	/**
+	 * Creates a node for every vector that has at least one edge, and an edge for every collected triple,
+	 * in the order of the buffers.
+	 */
+	void materialize(final List<EdgeBuffer> buffers) {
+		final CyNode[] nodes = createNodes(buffers);
+		final CyEdge[] edges = createEdges(buffers, nodes);
+		writeEdgeColumns(buffers, edges);
+	}
+
+	private CyNode[] createNodes(final List<EdgeBuffer> buffers) {
+		final boolean[] used = new boolean[names.length];
+
+		for (final EdgeBuffer buffer : buffers) {
+			for (int k = 0; k < buffer.size(); k++) {
+				used[buffer.getSource(k)] = true;
+				used[buffer.getTarget(k)] = true;
+			}
+		}
+
+		final CyNode[] nodes = new CyNode[names.length];
+
+		for (int i = 0; i < names.length; i++) {
+			if (used[i])
+				nodes[i] = network.addNode();
+		}
+
+		for (int i = 0; i < names.length; i++) {
+			if (nodes[i] != null) {
+				final CyRow row = network.getRow(nodes[i]);
+				row.set(CyNetwork.NAME, names[i]);
+				row.set(CyRootNetwork.SHARED_NAME, names[i]);
+			}
+		}
+
+		return nodes;
+	}
+
+	private CyEdge[] createEdges(final List<EdgeBuffer> buffers, final CyNode[] nodes) {
+		int total = 0;
+
+		for (final EdgeBuffer buffer : buffers)
+			total += buffer.size();
+
+		final CyEdge[] edges = new CyEdge[total];
+		int e = 0;
+
+		for (final EdgeBuffer buffer : buffers) {
+			for (int k = 0; k < buffer.size(); k++)
+				edges[e++] = network.addEdge(nodes[buffer.getSource(k)], nodes[buffer.getTarget(k)], true);
+		}
+
+		return edges;
+	}
+
+	private void writeEdgeColumns(final List<EdgeBuffer> buffers, final CyEdge[] edges) {
+		if (network.getDefaultEdgeTable().getColumn(STRENGTH_COL_NAME) == null)
+			network.getTable(CyEdge.class, CyNetwork.LOCAL_ATTRS).createColumn(STRENGTH_COL_NAME, Double.class, false);
+		
+		if (significance != null) {
+			if (network.getDefaultEdgeTable().getColumn(P_VALUE_COL_NAME) == null)
+				network.getTable(CyEdge.class, CyNetwork.LOCAL_ATTRS).createColumn(P_VALUE_COL_NAME, Double.class, false);
+			if (network.getDefaultEdgeTable().getColumn(Q_VALUE_COL_NAME) == null)
+				network.getTable(CyEdge.class, CyNetwork.LOCAL_ATTRS).createColumn(Q_VALUE_COL_NAME, Double.class, false);
+		}
+
+		int e = 0;
+
+		for (final EdgeBuffer buffer : buffers) {
+			for (int k = 0; k < buffer.size(); k++) {
+				final double corr = buffer.getValue(k);
+				final String edgeName = names[buffer.getSource(k)] + "_interaction_" + names[buffer.getTarget(k)];
+
+				final CyRow row = network.getRow(edges[e++]);
+				row.set(CyNetwork.NAME, edgeName);
+				row.set(CyRootNetwork.SHARED_NAME, edgeName);
+				row.set(CyEdge.INTERACTION, corr > 0 ? "pos_interaction" : "neg_interaction");
+				row.set(STRENGTH_COL_NAME, corr);
+				
+				if (significance != null) {
+					row.set(P_VALUE_COL_NAME, significance.getPValue(corr));
+					row.set(Q_VALUE_COL_NAME, significance.getQValue(corr));
+				}
+			}
+		}
+	}
+}
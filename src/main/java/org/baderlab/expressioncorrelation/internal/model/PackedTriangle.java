@@ -0,0 +1,90 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * The lower triangle of a similarity matrix, stored as one value per pair (i, j), j < i, in row order:
+ * pair (i, j) is at index i * (i - 1) / 2 + j, so the pairs of each row (and of each tile row) are contiguous.
+ * <p/>
+ * Correlations of invalid vectors (see CorrelationSource.isValid()) are never stored or read.
+ * Every pair starts undefined (get() returns NaN) until it is set, so pairs that the source leaves out
+ * (e.g. too few values in common, see SimilarityMetric.prepare()) stay out when they are read back.
+ * Values can be set from several threads, as long as each index is only set by one of them.
+ */
+abstract class PackedTriangle {
+
+	protected final boolean[] valid;
+
+	/**
+	 * @param valid - false for each vector whose correlations are undefined; its length is the number of vectors
+	 */
+	protected PackedTriangle(final boolean[] valid) {
+		this.valid = valid.clone();
+	}
+
+	/**
+	 * @return the position of pair (i, j), j < i
+	 */
+	static long index(final int i, final int j) {
+		return (long) i * (i - 1) / 2 + j;
+	}
+
+	/**
+	 * @return the number of pairs (i, j), j < i, among the given number of vectors
+	 */
+	static long getPairCount(final int size) {
+		return (long) size * (size - 1) / 2;
+	}
+
+	/**
+	 * @return the number of vectors
+	 */
+	int size() {
+		return valid.length;
+	}
+
+	boolean isValid(final int i) {
+		return valid[i];
+	}
+
+	abstract CorrelationEncoding getEncoding();
+
+	/**
+	 * @return the correlation at the given index (see index()), NaN if it is undefined
+	 */
+	abstract double get(long index);
+
+	/**
+	 * Stores the correlation at the given index (see index()), rounded as the encoding requires
+	 * (NaN to make it undefined).
+	 */
+	abstract void set(long index, double corr);
+}
@@ -0,0 +1,202 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * The kernel of the dot product metrics (see DotProductMetric) for vectors with missing values: each pair is
+ * compared over the values present in both vectors (pairwise-complete observations).
+ * <p/>
+ * Every vector keeps a bitmask of its present values. The sums, sums of squares and the dot product of a pair
+ * are taken over the AND of the two masks, 64 values at a time: words where both vectors have every value are
+ * added up without looking at the bits, and the shared values are counted with popcounts.
+ * Pairs of complete vectors skip all that: their sums of squares are calculated once, so they only need a dot
+ * product. Pairs that share fewer than minOverlap values are skipped.
+ * <p/>
+ * For Pearson each vector is centered once on the mean of its present values. This does not change the
+ * pairwise-complete correlations, but keeps the sums small. Missing values are stored as 0.
+ */
+final class PairwiseCompleteCorrelation implements SimilarityMetric.Kernel {
+
+	private final int size;               // Number of vectors
+	private final int length;             // Number of values in each vector
+	private final int words;              // Number of mask words per vector
+	private final boolean centered;
+	private final int minOverlap;
+	private final double[] x;             // Vector i at i * length, missing values are 0
+	private final long[] presence;        // Present values of vector i at i * words (see Vectors.getPresence())
+	private final boolean[] complete;     // true if no value of the vector is missing
+	private final double[] sumOfSquares;  // Of the (centered) present values of each vector
+	private final boolean[] valid;        // false if the vector has too few values or no variance
+
+	/**
+	 * @param vectors    - expression data, as gene or condition vectors (missing values are NaN)
+	 * @param centered   - true for Pearson correlation, false for cosine similarity
+	 * @param minOverlap - pairs that share fewer values are skipped
+	 */
+	PairwiseCompleteCorrelation(final ExpressionMatrix.Vectors vectors, final boolean centered,
+			final int minOverlap) {
+		this.size = vectors.size();
+		this.length = vectors.length();
+		this.words = ExpressionMatrix.getMaskWords(length);
+		this.centered = centered;
+		this.minOverlap = minOverlap;
+		this.x = new double[size * length];
+		this.presence = vectors.getPresence();
+		this.complete = new boolean[size];
+		this.sumOfSquares = new double[size];
+		this.valid = new boolean[size];
+
+		vectors.copyTo(x);
+
+		for (int i = 0; i < size; i++) {
+			final int offset = i * length;
+			int count = 0;
+
+			for (int w = i * words; w < (i + 1) * words; w++)
+				count += Long.bitCount(presence[w]);
+
+			double sum = 0.0;
+
+			for (int k = offset; k < offset + length; k++) {
+				if (Double.isNaN(x[k]))
+					x[k] = 0.0;
+				else
+					sum += x[k];
+			}
+
+			final double mean = centered && count > 0 ? sum / count : 0.0;
+			double squares = 0.0;
+
+			for (int k = 0; k < length; k++) {
+				if (isPresent(i, k)) {
+					final double value = x[offset + k] - mean;
+					x[offset + k] = value;
+					squares += value * value;
+				}
+			}
+
+			complete[i] = count == length;
+			sumOfSquares[i] = squares;
+			valid[i] = count >= minOverlap && squares > 0.0;
+		}
+	}
+
+	private boolean isPresent(final int i, final int k) {
+		return (presence[i * words + (k >>> 6)] & (1L << k)) != 0L;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isValid(final int i) {
+		return valid[i];
+	}
+
+	@Override
+	public double similarity(final int i, final int j) {
+		final int a = i * length;
+		final int b = j * length;
+
+		if (complete[i] && complete[j]) {
+			double dot = 0.0;
+
+			for (int k = 0; k < length; k++)
+				dot += x[a + k] * x[b + k];
+
+			return clamp(dot / Math.sqrt(sumOfSquares[i] * sumOfSquares[j]));
+		}
+
+		int n = 0;
+		double sx = 0.0, sy = 0.0, sxx = 0.0, syy = 0.0, sxy = 0.0;
+
+		for (int w = 0; w < words; w++) {
+			long shared = presence[i * words + w] & presence[j * words + w];
+
+			if (shared == 0L)
+				continue;
+
+			final int base = w << 6;
+
+			if (shared == -1L) {
+				n += 64;
+
+				for (int k = base; k < base + 64; k++) {
+					final double u = x[a + k];
+					final double v = x[b + k];
+					sx += u;
+					sy += v;
+					sxx += u * u;
+					syy += v * v;
+					sxy += u * v;
+				}
+			} else {
+				n += Long.bitCount(shared);
+
+				while (shared != 0L) {
+					final int k = base + Long.numberOfTrailingZeros(shared);
+					final double u = x[a + k];
+					final double v = x[b + k];
+					sx += u;
+					sy += v;
+					sxx += u * u;
+					syy += v * v;
+					sxy += u * v;
+					shared &= shared - 1;
+				}
+			}
+		}
+
+		if (n < minOverlap)
+			return Double.NaN;
+
+		if (centered) {
+			// The vectors were centered on all their values, so they are centered again on the shared ones
+			sxy -= sx * sy / n;
+			sxx -= sx * sx / n;
+			syy -= sy * sy / n;
+		}
+
+		if (sxx <= 0.0 || syy <= 0.0)
+			return Double.NaN;
+
+		return clamp(sxy / Math.sqrt(sxx * syy));
+	}
+
+	/**
+	 * Rounding can push the correlation of (anti)identical vectors just past +/-1.
+	 */
+	private static double clamp(final double corr) {
+		return corr > 1.0 ? 1.0 : (corr < -1.0 ? -1.0 : corr);
+	}
+}
@@ -0,0 +1,174 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.util.Random;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * Estimates the distribution of the correlations of unrelated vectors by permutation: the values of every
+ * vector are shuffled independently, which destroys the correlations between vectors but keeps the number
+ * of values, their distribution and the missing values of each vector.
+ * <p/>
+ * The null distribution only depends on the vectors one at a time, so a random sample of the vectors is enough,
+ * and every permutation calculates all pairs of the sample. Each Worker keeps its own copy of the sample,
+ * prepared by the metric once. Kernels that can be shuffled (see SimilarityMetric.ShuffledKernel, e.g. the
+ * standardized vectors of Pearson) are then restored and shuffled in place for every permutation; otherwise
+ * a fresh copy of the expression values is shuffled and prepared again. Every permutation starts from the
+ * sample in its original order, so it only depends on its own seed, not on the worker that runs it.
+ */
+final class PermutationNull {
+
+	private final SimilarityMetric metric;
+	private final int minOverlap;
+	private final int tileSize;
+	private final long seed;
+	private final ExpressionMatrix sample;   // The sampled vectors, one per row
+
+	/**
+	 * @param vectors    - expression data, as gene or condition vectors
+	 * @param metric     - similarity measure whose null distribution is estimated
+	 * @param minOverlap - see SimilarityMetric.prepare()
+	 * @param sampleSize - maximum number of vectors that are permuted
+	 * @param tileSize   - number of vectors per tile side
+	 * @param seed       - seed of the random sample and of the permutations
+	 */
+	PermutationNull(final ExpressionMatrix.Vectors vectors, final SimilarityMetric metric, final int minOverlap,
+			final int sampleSize, final int tileSize, final long seed) {
+		this.metric = metric;
+		this.minOverlap = minOverlap;
+		this.tileSize = tileSize;
+		this.seed = seed;
+
+		final int[] indices = sample(vectors.size(), sampleSize, new Random(seed));
+		final int length = vectors.length();
+		sample = new ExpressionMatrix(indices.length, length, vectors.isSinglePrecision());
+
+		for (int s = 0; s < indices.length; s++) {
+			for (int k = 0; k < length; k++)
+				sample.set(s, k, vectors.get(indices[s], k));
+		}
+	}
+
+	/**
+	 * @return count distinct indices between 0 and size - 1 (all of them if count >= size), in ascending order
+	 */
+	static int[] sample(final int size, final int count, final Random random) {
+		if (count >= size) {
+			final int[] all = new int[size];
+
+			for (int i = 0; i < size; i++)
+				all[i] = i;
+
+			return all;
+		}
+
+		// Floyd's algorithm: one random number per sampled index
+		final boolean[] chosen = new boolean[size];
+
+		for (int j = size - count; j < size; j++) {
+			final int t = random.nextInt(j + 1);
+			chosen[chosen[t] ? j : t] = true;
+		}
+
+		final int[] indices = new int[count];
+		int n = 0;
+
+		for (int i = 0; i < size && n < count; i++) {
+			if (chosen[i])
+				indices[n++] = i;
+		}
+
+		return indices;
+	}
+
+	/**
+	 * @return the number of vectors that are permuted
+	 */
+	int getSampleSize() {
+		return sample.getRows();
+	}
+
+	/**
+	 * @return the number of pairs calculated per permutation
+	 */
+	long getPairsPerPermutation() {
+		return PackedTriangle.getPairCount(sample.getRows());
+	}
+
+	/**
+	 * @return a new worker, with its own copy of the sample; workers can run on different threads
+	 */
+	Worker createWorker() {
+		return new Worker();
+	}
+
+	/**
+	 * Calculates permutations one after the other, on one thread.
+	 */
+	final class Worker {
+
+		private final SimilarityMetric.Kernel prepared = metric.prepare(sample.getRowVectors(), minOverlap, 1);
+
+		/**
+		 * Shuffles the sample and adds the correlations of all its pairs to the histogram.
+		 *
+		 * @param permutation - number of the permutation, which seeds its random order
+		 * @param histo       - number of correlation values in each bin, -1.0 = first bin to 1.0 = last bin
+		 */
+		void count(final int permutation, final long[] histo) {
+			final Random random = new Random(seed + 1 + permutation);
+			final SimilarityMetric.Kernel kernel;
+
+			if (prepared instanceof SimilarityMetric.ShuffledKernel) {
+				final SimilarityMetric.ShuffledKernel shuffled = (SimilarityMetric.ShuffledKernel) prepared;
+				shuffled.restore();
+				shuffled.shuffle(random);
+				kernel = shuffled;
+			} else {
+				final ExpressionMatrix values = sample.copy();
+				values.shuffleRows(random);
+				kernel = metric.prepare(values.getRowVectors(), minOverlap, 1);
+			}
+
+			final int bins = histo.length;
+			final MetricCorrelation correlation = new MetricCorrelation(kernel, tileSize);
+
+			for (int b = 0; b < correlation.getBlockCount(); b++) {
+				correlation.computeBlockRow(b, new CorrelationSource.PairVisitor() {
+					@Override
+					public void visit(int i, int j, double corr) {
+						histo[SimilarityHistogram.getBin(corr, bins)]++;
+					}
+				});
+			}
+		}
+	}
+}
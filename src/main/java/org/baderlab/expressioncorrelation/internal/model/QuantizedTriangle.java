@@ -0,0 +1,78 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.util.Arrays;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * A PackedTriangle kept in memory, with each correlation rounded to a short (see CorrelationEncoding.INT16).
+ * That is a quarter of the size of the doubles: the similarity matrix of 10000 genes takes 100 MB.
+ * <p/>
+ * The values are split over arrays of 2^24 shorts, so more pairs can be stored than fit in one array.
+ */
+final class QuantizedTriangle extends PackedTriangle {
+
+	private static final int CHUNK_BITS = 24;
+	private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+	private final short[][] chunks;
+
+	/**
+	 * @param valid - false for each vector whose correlations are undefined; its length is the number of vectors
+	 */
+	QuantizedTriangle(final boolean[] valid) {
+		super(valid);
+
+		final long pairs = getPairCount(valid.length);
+		final int count = (int) ((pairs + CHUNK_MASK) >>> CHUNK_BITS);
+		this.chunks = new short[count][];
+
+		for (int c = 0; c < count; c++) {
+			chunks[c] = new short[(int) Math.min(pairs - ((long) c << CHUNK_BITS), 1L << CHUNK_BITS)];
+			Arrays.fill(chunks[c], CorrelationEncoding.UNDEFINED);
+		}
+	}
+
+	@Override
+	CorrelationEncoding getEncoding() {
+		return CorrelationEncoding.INT16;
+	}
+
+	@Override
+	double get(final long index) {
+		return CorrelationEncoding.dequantize(chunks[(int) (index >>> CHUNK_BITS)][(int) (index & CHUNK_MASK)]);
+	}
+
+	@Override
+	void set(final long index, final double corr) {
+		chunks[(int) (index >>> CHUNK_BITS)][(int) (index & CHUNK_MASK)] = CorrelationEncoding.quantize(corr);
+	}
+}
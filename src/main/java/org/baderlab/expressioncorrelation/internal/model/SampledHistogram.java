@@ -0,0 +1,173 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.util.Random;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * A similarity histogram estimated from a uniform random sample of the pairs, for a quick preview of
+ * large data sets: a sample of a million pairs takes a fraction of a second, however many pairs there are.
+ * <p/>
+ * Every pair of the sample is drawn independently of the others (with replacement), so the number of sampled
+ * correlations beyond any cutoffs is binomial, and getBounds() gives the Wilson score interval of the number
+ * of correlations of all the pairs. The pairs are drawn in chunks, each with its own seed, so chunks can be
+ * drawn on any number of threads with the same result.
+ */
+final class SampledHistogram {
+
+	/** Number of pairs drawn per chunk */
+	static final int CHUNK_SIZE = 1 << 16;
+	/** Standard normal quantile of the 95% confidence bounds */
+	private static final double Z = 1.959964;
+
+	private final SimilarityHistogram sample;  // Counts of the sampled correlations
+	private final long sampleSize;             // Number of pairs drawn, including those without a correlation
+	private final long pairCount;              // Number of pairs of the similarity matrix
+
+	/**
+	 * @param counts     - number of sampled correlation values in each bin, -1.0 = first bin to 1.0 = last bin
+	 * @param sampleSize - number of pairs drawn
+	 * @param pairCount  - number of pairs of the similarity matrix
+	 */
+	SampledHistogram(final long[] counts, final long sampleSize, final long pairCount) {
+		if (sampleSize < 1)
+			throw new IllegalArgumentException("'sampleSize' must be at least 1");
+
+		this.sample = new SimilarityHistogram(counts);
+		this.sampleSize = sampleSize;
+		this.pairCount = pairCount;
+	}
+
+	/**
+	 * @return the number of chunks of a sample of the given size
+	 */
+	static int getChunkCount(final long sampleSize) {
+		return (int) ((sampleSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+	}
+
+	/**
+	 * Draws the pairs of one chunk of the sample and adds their correlations to the histogram
+	 * (pairs without a correlation are drawn but not counted).
+	 *
+	 * @param kernel     - prepared vectors of the metric
+	 * @param sampleSize - number of pairs of the whole sample
+	 * @param seed       - seed of the sample
+	 * @param histo      - number of correlation values in each bin, -1.0 = first bin to 1.0 = last bin
+	 */
+	static void draw(final SimilarityMetric.Kernel kernel, final int chunk, final long sampleSize, final long seed,
+			final long[] histo) {
+		final Random random = new Random(seed + chunk);
+		final long pairs = PackedTriangle.getPairCount(kernel.size());
+		final long count = Math.min(CHUNK_SIZE, sampleSize - (long) chunk * CHUNK_SIZE);
+		final int bins = histo.length;
+
+		for (long n = 0; n < count; n++) {
+			final long index = (long) (random.nextDouble() * pairs);
+			final int i = getRow(index);
+			final int j = (int) (index - PackedTriangle.index(i, 0));
+
+			if (kernel.isValid(i) && kernel.isValid(j)) {
+				final double corr = kernel.similarity(i, j);
+
+				if (!Double.isNaN(corr))
+					histo[SimilarityHistogram.getBin(corr, bins)]++;
+			}
+		}
+	}
+
+	/**
+	 * @return the row i of the pair at the given position of the packed triangle (see PackedTriangle.index())
+	 */
+	static int getRow(final long index) {
+		// i * (i - 1) / 2 <= index < (i + 1) * i / 2; the square root can be one off for large indices
+		int i = (int) ((1.0 + Math.sqrt(1.0 + 8.0 * index)) / 2.0);
+
+		while (PackedTriangle.index(i, 0) > index)
+			i--;
+		while (PackedTriangle.index(i + 1, 0) <= index)
+			i++;
+
+		return i;
+	}
+
+	/**
+	 * @return the histogram of all the pairs estimated from the sample: each sampled count multiplied by
+	 *         the number of pairs per sampled pair
+	 */
+	SimilarityHistogram getEstimate() {
+		final int bins = sample.getBinCount();
+		final double scale = (double) pairCount / sampleSize;
+		final long[] counts = new long[bins];
+
+		for (int bin = 0; bin < bins; bin++)
+			counts[bin] = Math.round(sample.getCount(bin) * scale);
+
+		return new SimilarityHistogram(counts);
+	}
+
+	long getSampleSize() {
+		return sampleSize;
+	}
+
+	/**
+	 * @param cutoffs  - [negativeCutoffValue, positiveCutoffValue]
+	 * @param negative - true if the correlations below the negative cutoff are counted
+	 * @param positive - true if the correlations above the positive cutoff are counted
+	 * @return the 95% confidence bounds [lowest, highest] of the number of correlations beyond the cutoffs
+	 */
+	long[] getBounds(final double[] cutoffs, final boolean negative, final boolean positive) {
+		long count = 0;
+
+		if (negative)
+			count += sample.countNegative(cutoffs[0]);
+		if (positive)
+			count += sample.countPositive(cutoffs[1]);
+
+		return getBounds(count);
+	}
+
+	/**
+	 * @return the 95% confidence bounds [lowest, highest] of the number of pairs with a property that
+	 *         the given number of sampled pairs have (Wilson score interval)
+	 */
+	long[] getBounds(final long sampleCount) {
+		final double n = sampleSize;
+		final double p = sampleCount / n;
+		final double z2 = Z * Z;
+		final double center = (p + z2 / (2 * n)) / (1 + z2 / n);
+		final double half = Z * Math.sqrt(p * (1 - p) / n + z2 / (4 * n * n)) / (1 + z2 / n);
+
+		return new long[] {
+				Math.max(0, (long) Math.floor((center - half) * pairCount)),
+				Math.min(pairCount, (long) Math.ceil((center + half) * pairCount))
+		};
+	}
+}
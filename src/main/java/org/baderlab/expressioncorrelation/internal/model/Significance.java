@@ -0,0 +1,184 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import cern.jet.stat.Gamma;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * The significance of the correlations of a similarity histogram: p-values from a null distribution (permuted
+ * vectors or the t-distribution), and Benjamini-Hochberg q-values, both calculated per histogram bin.
+ * <p/>
+ * Correlations are ranked by their position, the number of bins from their bin to the end of its tail (1 for the
+ * most extreme bins). Cutoffs k bins from each end keep the correlations at positions 1 to k
+ * (see SimilarityHistogram.getPosition()), so the p-value of position k is the probability of the same tails under
+ * the null distribution, and the false discovery rate of these cutoffs is
+ * <pre>
+ * FDR(k) = p(k) * total / count(k)
+ * </pre>
+ * where total is the number of correlations (those of a tail that is not tested count as p = 1) and count(k)
+ * the number kept. The q-value of position k is the lowest
+ * FDR of the cutoffs that keep it, the minimum of FDR(k') over k' >= k. This is the Benjamini-Hochberg procedure
+ * on p-values grouped by bin: nothing is sorted, and it needs O(bins) memory however many correlations there are.
+ */
+final class Significance {
+
+	private final int bins;
+	private final long[] counts;     // counts[k] = number of correlations at positions 1 to k
+	private final double[] pValues;  // pValues[k] = p-value of position k (index 0 is unused)
+	private final double[] qValues;  // Same for the q-values
+
+	/**
+	 * @param observed - histogram of the correlations that are tested
+	 * @param pValues  - p-value of each position, from 1 to observed.getBinCount() / 2 (index 0 is unused)
+	 * @param negative - true if the negative tail is tested
+	 * @param positive - true if the positive tail is tested
+	 */
+	Significance(final SimilarityHistogram observed, final double[] pValues, final boolean negative,
+			final boolean positive) {
+		final int half = observed.getBinCount() / 2;
+		final double total = observed.getTotal();
+
+		this.bins = observed.getBinCount();
+		this.counts = new long[half + 1];
+		this.pValues = pValues;
+		this.qValues = new double[half + 1];
+
+		double min = 1.0;
+
+		for (int k = half; k > 0; k--) {
+			counts[k] = observed.getTailCount(k, negative, positive);
+
+			if (counts[k] > 0)
+				min = Math.min(min, pValues[k] * total / counts[k]);
+
+			qValues[k] = min;
+		}
+	}
+
+	/**
+	 * Takes the p-values from the correlations of permuted vectors (see PermutationNull). Each p-value counts the
+	 * observed correlation itself as one of the permuted ones, so it is never 0.
+	 *
+	 * @param permuted - histogram of the correlations of the permuted vectors, with as many bins as observed
+	 */
+	static Significance fromPermutations(final SimilarityHistogram observed, final SimilarityHistogram permuted,
+			final boolean negative, final boolean positive) {
+		final int half = observed.getBinCount() / 2;
+		final double[] pValues = new double[half + 1];
+		final double total = permuted.getTotal();
+
+		for (int k = 1; k <= half; k++)
+			pValues[k] = (1.0 + permuted.getTailCount(k, negative, positive)) / (1.0 + total);
+
+		return new Significance(observed, pValues, negative, positive);
+	}
+
+	/**
+	 * Takes the p-values from the distribution of the Pearson correlation r of unrelated normally distributed
+	 * vectors: t = r * sqrt((n - 2) / (1 - r^2)) follows Student's t-distribution with n - 2 degrees of freedom.
+	 * Nothing is permuted, so this is much cheaper than fromPermutations(), but it only holds for Pearson
+	 * correlations over the same n values.
+	 *
+	 * @param length - number of values n of each vector, at least 3
+	 */
+	static Significance fromTDistribution(final SimilarityHistogram observed, final int length,
+			final boolean negative, final boolean positive) {
+		if (length < 3)
+			throw new IllegalArgumentException("'length' must be at least 3");
+		
+		final int bins = observed.getBinCount();
+		final int half = bins / 2;
+		final double[] pValues = new double[half + 1];
+		final double scale = 2.0 / (bins - 1); // Width of a bin (see SimilarityHistogram.getBin())
+		
+		for (int k = 1; k <= half; k++) {
+			// Positions 1 to k hold the correlations below -(1 - k * scale) and from 1 - (k - 1) * scale up
+			double p = 0.0;
+			
+			if (negative)
+				p += getUpperTail(1.0 - k * scale, length - 2);
+			if (positive)
+				p += getUpperTail(1.0 - (k - 1) * scale, length - 2);
+			
+			pValues[k] = Math.min(1.0, p);
+		}
+		
+		return new Significance(observed, pValues, negative, positive);
+	}
+	
+	/**
+	 * @return the probability that the Pearson correlation of unrelated vectors is at least r,
+	 *         with the given degrees of freedom (number of values - 2)
+	 */
+	static double getUpperTail(final double r, final int degrees) {
+		if (r >= 1.0)
+			return 0.0;
+		if (r <= -1.0)
+			return 1.0;
+		
+		// P(|R| >= |r|) = I(1 - r^2; degrees / 2, 1 / 2), the regularized incomplete beta function
+		final double both = Gamma.incompleteBeta(0.5 * degrees, 0.5, 1.0 - r * r);
+		
+		return r >= 0 ? 0.5 * both : 1.0 - 0.5 * both;
+	}
+
+	/**
+	 * @return the position of the correlation, between 1 and getBinCount() / 2
+	 */
+	private int getPosition(final double corr) {
+		// Counted from the end of the half of the histogram that holds the bin, like the tail counts
+		final int bin = SimilarityHistogram.getBin(corr, bins);
+		final int position = bin < bins / 2 ? bin + 1 : bins - bin;
+
+		return Math.max(1, Math.min(bins / 2, position));
+	}
+
+	double getPValue(final double corr) {
+		return pValues[getPosition(corr)];
+	}
+
+	double getQValue(final double corr) {
+		return qValues[getPosition(corr)];
+	}
+
+	/**
+	 * @return the largest number of correlations whose false discovery rate is at most fdr (0 if there are none);
+	 *         these are the strongest ones, so SimilarityHistogram.getPosition() gives their cutoffs
+	 */
+	long getEdgeCount(final double fdr) {
+		for (int k = counts.length - 1; k > 0; k--) {
+			if (qValues[k] <= fdr)
+				return counts[k];
+		}
+
+		return 0;
+	}
+}
@@ -0,0 +1,161 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * A similarity histogram (counts of correlation values in equal bins between -1 and 1), together with
+ * the cumulative counts from both tails.
+ * <p/>
+ * The number of correlations beyond a pair of cutoffs is then a lookup, and the cutoffs that give a
+ * number of correlations a binary search, so the histogram dialog stays fast even with many bins.
+ */
+final class SimilarityHistogram {
+
+	private final long[] counts;
+	private final long[] low;     // low[k] = number of correlations in the k lowest bins
+	private final long[] high;    // high[k] = number of correlations in the k highest bins
+
+	/**
+	 * @param counts - number of correlation values in each bin, -1.0 = first bin to 1.0 = last bin
+	 */
+	SimilarityHistogram(final long[] counts) {
+		final int bins = counts.length;
+
+		this.counts = counts;
+		this.low = new long[bins + 1];
+		this.high = new long[bins + 1];
+
+		for (int k = 0; k < bins; k++) {
+			low[k + 1] = low[k] + counts[k];
+			high[k + 1] = high[k] + counts[bins - k - 1];
+		}
+	}
+
+	/**
+	 * @return the bin of the given correlation value in a histogram with the given number of bins
+	 */
+	static int getBin(final double corr, final int bins) {
+		return (int) ((corr + 1) * (((double) bins - 1) / 2));
+	}
+
+	int getBinCount() {
+		return counts.length;
+	}
+
+	long getCount(final int bin) {
+		return counts[bin];
+	}
+
+	/**
+	 * @return the lowest correlation value of the given bin
+	 */
+	double getLowerBound(final int bin) {
+		return -1 + ((double) bin) / (((double) counts.length) / 2);
+	}
+
+	/**
+	 * @return the number of correlation values in all the bins
+	 */
+	long getTotal() {
+		return low[counts.length];
+	}
+
+	/**
+	 * @return the number of correlations in the bins that start below the negative cutoff
+	 */
+	long countNegative(final double cutoff) {
+		final int bins = counts.length;
+		int k = clamp((int) Math.ceil((cutoff + 1) * bins / 2));
+
+		// The estimate can be one bin off because of rounding, so settle it with the exact bin bounds
+		while (k > 0 && !(-1.0 + ((double) (k - 1) * 2) / bins < cutoff))
+			k--;
+		while (k < bins && (-1.0 + ((double) k * 2) / bins < cutoff))
+			k++;
+
+		return low[k];
+	}
+
+	/**
+	 * @return the number of correlations in the bins that end at or above the positive cutoff
+	 */
+	long countPositive(final double cutoff) {
+		final int bins = counts.length;
+		int k = clamp((int) Math.floor((1 - cutoff) * bins / 2) + 1);
+
+		while (k > 0 && !(1.0 - ((double) (k - 1) * 2) / bins >= cutoff))
+			k--;
+		while (k < bins && (1.0 - ((double) k * 2) / bins >= cutoff))
+			k++;
+
+		return high[k];
+	}
+
+	/**
+	 * Finds the fewest bins, taken from the tails inwards, that hold at least the given number of
+	 * correlations.
+	 *
+	 * @param numberOfEdges - number of correlations wanted
+	 * @param negative      - true if the bins of the negative tail are counted
+	 * @param positive      - true if the bins of the positive tail are counted
+	 * @return the (0-based) position of the innermost bin, counted from each tail;
+	 *         -1 if no correlations are wanted and getBinCount() / 2 - 1 if there are not enough
+	 */
+	int getPosition(final long numberOfEdges, final boolean negative, final boolean positive) {
+		if (numberOfEdges <= 0)
+			return -1;
+
+		int from = 1;
+		int to = counts.length / 2;
+
+		while (from < to) {
+			final int middle = (from + to) >>> 1;
+
+			if (getTailCount(middle, negative, positive) >= numberOfEdges)
+				to = middle;
+			else
+				from = middle + 1;
+		}
+
+		return from - 1;
+	}
+
+	/**
+	 * @return the number of correlations in the k outermost bins of the selected tails
+	 */
+	long getTailCount(final int k, final boolean negative, final boolean positive) {
+		return (negative ? low[k] : 0) + (positive ? high[k] : 0);
+	}
+
+	private int clamp(final int k) {
+		return Math.max(0, Math.min(counts.length, k));
+	}
+}
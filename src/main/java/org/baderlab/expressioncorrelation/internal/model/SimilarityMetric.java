@@ -0,0 +1,106 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.util.Random;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * A measure of similarity between two vectors, calculated in two phases so that every metric runs on the same
+ * tiled, parallel and cached engine (see MetricCorrelation):
+ * <ol>
+ * <li>prepare() goes over every vector once, e.g. to standardize or rank it;</li>
+ * <li>the Kernel it returns gives the similarity of any pair of prepared vectors.</li>
+ * </ol>
+ * Kernels that can calculate a whole tile of pairs faster than one pair at a time (e.g. as a blocked matrix
+ * multiply) also implement TiledKernel.
+ */
+interface SimilarityMetric {
+
+	/**
+	 * Prepares the vectors for the pairwise phase.
+	 *
+	 * @param vectors     - expression data, as gene or condition vectors (missing values are NaN)
+	 * @param minOverlap  - if values are missing, the number of values two vectors must share to be compared
+	 * @param parallelism - number of threads that may be used
+	 * @return the kernel that calculates the similarity of the prepared vectors
+	 */
+	Kernel prepare(ExpressionMatrix.Vectors vectors, int minOverlap, int parallelism);
+
+	/**
+	 * The pairwise phase. Must be safe to call from several threads at once.
+	 */
+	interface Kernel {
+		/**
+		 * @return the number of vectors
+		 */
+		int size();
+
+		/**
+		 * @return false if the similarities of vector i are undefined (e.g. it has no variance)
+		 */
+		boolean isValid(int i);
+
+		/**
+		 * @return the similarity of the valid vectors i and j, between -1 and 1, or NaN if it is undefined
+		 *         for this pair (e.g. they share too few values)
+		 */
+		double similarity(int i, int j);
+	}
+
+	/**
+	 * A kernel with a faster way to calculate many pairs at once.
+	 */
+	interface TiledKernel extends Kernel {
+		/**
+		 * Passes the similarity of every pair (i, j) in the tile [iStart, iEnd) x [jStart, jEnd), restricted to
+		 * j < i, to the visitor, one tile row i after the other. Pairs that involve an invalid vector, or whose
+		 * similarity is undefined, are skipped.
+		 */
+		void computeTile(int iStart, int iEnd, int jStart, int jEnd, CorrelationSource.PairVisitor visitor);
+	}
+
+	/**
+	 * A kernel whose prepared vectors can be shuffled in place. This must give the same kernel as preparing
+	 * shuffled vectors, so the per-vector phase cannot depend on the order of the values (e.g. standardizing or
+	 * ranking do not). Permutation nulls then need no per-vector phase per permutation.
+	 */
+	interface ShuffledKernel extends Kernel {
+		/**
+		 * Puts the prepared values of every vector in a new random order.
+		 */
+		void shuffle(Random random);
+
+		/**
+		 * Puts the prepared values of every vector back in the order they were prepared in.
+		 */
+		void restore();
+	}
+}
@@ -2,12 +2,9 @@ package org.baderlab.expressioncorrelation.internal.model;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RecursiveAction;
 
-import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
-import cern.colt.matrix.doublealgo.Sorting;
-import cern.colt.matrix.impl.DenseDoubleMatrix2D;
-import cern.colt.matrix.linalg.Algebra;
 
 /*
  * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
@@ -39,167 +36,318 @@ import cern.colt.matrix.linalg.Algebra;
  * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
  */
 
+/**
+ * Spearman rank correlation: the Pearson correlation of the ranks of the values, where tied values
+ * all get the average of the ranks they span.
+ * <p/>
+ * rankVectors() ranks every vector of the expression data once, so the similarity networks can correlate
+ * the ranks with the same kernel as Pearson (see CorrelationMetric.SPEARMAN).
+ * corr() calculates single pairs of rows of a matrix.
+ * <p/>
+ * Ranking sorts an index array by value in per-thread scratch arrays, so no memory is allocated per vector.
+ * The ranks of all rows are kept in one flat float array (ranks are multiples of 0.5, so floats hold them exactly
+ * up to 2^23 values per row), next to the sorted order of each row.
+ */
 public class SpearmanRank {
 
-	private List<RankInfo> rankInfoList;
-//    private DoubleMatrix2D distanceMatrix;
+	/** Runs shorter than this are sorted by insertion */
+	private static final int INSERTION_SORT_LENGTH = 16;
+
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private final int rows;
+	private final int length;
+	private final float[] ranks;   // Ranks of row i, in the original order, at [i * length, (i + 1) * length)
+	private final int[] order;     // Indices of the values of row i sorted by value, same layout
+	private final double[] ties;   // Tie correction of each row
 
     public SpearmanRank(final DoubleMatrix2D data) {
-        init(data);
+        this(data.rows(), data.columns());
+        
+        final double[] values = new double[length];
+        
+        for (int i = 0; i < rows; i++) {
+        	for (int k = 0; k < length; k++)
+        		values[k] = data.getQuick(i, k);
+        	
+        	init(i, values);
+        }
 	}
 	
 	/**
-	 * Perform quicksort on 2 d matrix v1, but sort wrt to first column.
+	 * Ranks each of the given vectors (rows or columns of an expression matrix).
 	 */
-	private DoubleMatrix2D sort(DoubleMatrix2D v1) {
-		DoubleMatrix2D view = Sorting.quickSort.sort(v1,0);
-		return view;
+	SpearmanRank(final ExpressionMatrix.Vectors vectors) {
+		this(vectors.size(), vectors.length());
+		
+		final double[] values = new double[length];
+		
+		for (int i = 0; i < rows; i++) {
+			for (int k = 0; k < length; k++)
+				values[k] = vectors.get(i, k);
+			
+			init(i, values);
+		}
 	}
-
-	private RankInfo rank(double[] x) {
-		int j = 0;
-		int ji;
-		int jt;
-		double t;
-		int n = x.length;
-		double r;
+	
+	private SpearmanRank(final int rows, final int length) {
+		this.rows = rows;
+		this.length = length;
+		this.ranks = new float[rows * length];
+		this.order = new int[rows * length];
+		this.ties = new double[rows];
+	}
+	
+	private void init(final int i, final double[] values) {
+		final int offset = i * length;
+		final Scratch scratch = SCRATCH.get().ensure(length);
+		
+		ties[i] = rank(values, 0, length, scratch);
+		
+		for (int k = 0; k < length; k++)
+			ranks[offset + k] = (float) values[k];
+		
+		System.arraycopy(scratch.index, 0, order, offset, length);
+	}
+	
+	/**
+	 * Replaces values[offset, offset + length) by their ranks (1 to length, ties get the average of their ranks).
+	 *
+	 * @return the tie correction: the sum of t^3 - t over all groups of t tied values
+	 */
+	static double rank(final double[] values, final int offset, final int length) {
+		return rank(values, offset, length, SCRATCH.get().ensure(length));
+	}
+	
+	/**
+	 * Same as rank(double[], int, int). Leaves the indices (0 to length - 1) of the values,
+	 * sorted by value, in scratch.index.
+	 */
+	private static double rank(final double[] values, final int offset, final int length, final Scratch scratch) {
+		final double[] keys = scratch.keys;
+		final int[] index = scratch.index;
+		
+		System.arraycopy(values, offset, keys, 0, length);
+		
+		for (int k = 0; k < length; k++)
+			index[k] = k;
+		
+		sort(keys, index, 0, length - 1);
+		
+		// Every run of tied values shares the average of the ranks of its sorted positions
 		double s = 0.0;
-		double[] w = new double[n];
+		int first = 0;
 		
-		for (int i = 0;i < n;i++) {
-			w[i] = x[i];
+		while (first < length) {
+			int last = first + 1;
+			
+			while (last < length && !(keys[first] < keys[last]))
+				last++;
+			
+			final double rank = 0.5 * (first + 1 + last);
+			
+			for (int p = first; p < last; p++)
+				values[offset + index[p]] = rank;
+			
+			final double t = last - first;
+			s += t * t * t - t;
+			first = last;
 		}
 		
-		while (j < n) {
-			if (j == n - 1)
-				break;
+		return s;
+	}
+	
+	/**
+	 * Sorts keys[low..high] in ascending order, and moves the entries of index along with them.
+	 */
+	private static void sort(final double[] keys, final int[] index, int low, int high) {
+		while (high - low >= INSERTION_SORT_LENGTH) {
+			// Median of three as pivot
+			final int mid = (low + high) >>> 1;
 			
-			// not a tie
-			if (w[j + 1] != w[j] && j < n) {
-				w[j] = j;
-				j = j + 1;
-			} else {
-				for (jt = j + 1; jt < n && w[jt] == w[j]; jt++)
-					;
-				
-				r = 0.5 * (j + jt - 1);
-				
-				for (ji = j; ji <= (jt - 1); ji++)
-					w[ji] = r;
+			if (keys[mid] < keys[low])
+				swap(keys, index, low, mid);
+			if (keys[high] < keys[low])
+				swap(keys, index, low, high);
+			if (keys[high] < keys[mid])
+				swap(keys, index, mid, high);
+			
+			final double pivot = keys[mid];
+			int i = low;
+			int j = high;
+			
+			while (i <= j) {
+				while (keys[i] < pivot)
+					i++;
+				while (pivot < keys[j])
+					j--;
 				
-				t = jt - j;
-				s = s + t * t * t - 1;
-				j = jt;
+				if (i <= j)
+					swap(keys, index, i++, j--);
+			}
+			
+			// Recurses into the smaller part, so the stack stays O(log n) deep
+			if (j - low < high - i) {
+				sort(keys, index, low, j);
+				low = i;
+			} else {
+				sort(keys, index, i, high);
+				high = j;
 			}
 		}
 		
-		if (j==n-1) w[n-1] = n-1;
-		
-		return new RankInfo(w,s);
+		for (int i = low + 1; i <= high; i++) {
+			final double key = keys[i];
+			final int position = index[i];
+			int j = i - 1;
+			
+			while (j >= low && key < keys[j]) {
+				keys[j + 1] = keys[j];
+				index[j + 1] = index[j];
+				j--;
+			}
+			
+			keys[j + 1] = key;
+			index[j + 1] = position;
+		}
 	}
 	
-	private static DoubleMatrix2D addIndices(DoubleMatrix1D x) {
-		int n = x.size();
+	private static void swap(final double[] keys, final int[] index, final int a, final int b) {
+		final double key = keys[a];
+		keys[a] = keys[b];
+		keys[b] = key;
 		
-		// Create a 2D matrix. The first column is v1, the second column is [1..v1.length]
-		DenseDoubleMatrix2D v = new DenseDoubleMatrix2D(n, 2);
-
-		for (int i = 0; i < n; i++) {
-			for (int j = 0; j < 2; j++) {
-				double xValue = x.get(i);
-
-				if (j == 0)
-					v.setQuick(i, j, xValue);
-				else
-					v.setQuick(i, j, i);
-			}
-		}
-
-		return v;
+		final int position = index[a];
+		index[a] = index[b];
+		index[b] = position;
 	}
 	
-	private void init(DoubleMatrix2D rdata) {
-		int n = rdata.rows();
-		rankInfoList = new ArrayList<>();
-		
-		for (int i = 0; i < n;i++) {
-			DoubleMatrix1D x = rdata.viewRow(i);
-			DoubleMatrix2D v1 = addIndices(x);
-			// Sort v1 wrt to first column 
-			DoubleMatrix2D sortedV1 = sort(v1);
-			// v1 first column are the sorted data values
-			DoubleMatrix1D sortedColV1 = sortedV1.viewColumn(0);
-			// v1 second column are the original indices sorted according to first column
-			DoubleMatrix1D sortedIndicesV1 = sortedV1.viewColumn(1);
-			
-			double[] vv2 = sortedColV1.toArray();
-			RankInfo rr1 = rank(vv2);
-			rr1.setIndices(sortedIndicesV1.toArray());
+	/**
+	 * Ranks every vector, on the given number of threads. Missing values (NaN) are not ranked.
+	 *
+	 * @return a matrix whose row i holds the ranks of vector i (in single precision if the vectors are)
+	 */
+	static ExpressionMatrix rankVectors(final ExpressionMatrix.Vectors vectors, final int parallelism) {
+		final int size = vectors.size();
+		final int length = vectors.length();
+		final ExpressionMatrix ranked = new ExpressionMatrix(size, length, vectors.isSinglePrecision());
+		// A few ranges per thread, so threads that finish early can take over the remaining ones
+		final int units = Math.max(1, Math.min(size, parallelism > 1 ? parallelism * 4 : 1));
+		final List<RecursiveAction> tasks = new ArrayList<>(units);
+		
+		for (int u = 0; u < units; u++) {
+			final int from = (int) ((long) size * u / units);
+			final int to = (int) ((long) size * (u + 1) / units);
 			
-			rankInfoList.add(rr1);
+			tasks.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					final Scratch scratch = SCRATCH.get().ensure(length);
+					final double[] values = scratch.values;
+					
+					for (int i = from; i < to; i++) {
+						// Missing values are left out of the ranking, and stay missing
+						int present = 0;
+						
+						for (int k = 0; k < length; k++) {
+							final double value = vectors.get(i, k);
+							
+							if (!Double.isNaN(value))
+								values[present++] = value;
+						}
+						
+						rank(values, 0, present, scratch);
+						present = 0;
+						
+						for (int k = 0; k < length; k++)
+							ranked.set(i, k, Double.isNaN(vectors.get(i, k)) ? Double.NaN : values[present++]);
+					}
+				}
+			});
 		}
-
-        Algebra A = new Algebra();
-//        distanceMatrix = Statistic.distance(A.transpose(rdata),Statistic.EUCLID);
-    }
+		
+		ParallelTasks.invoke(tasks, parallelism);
+		
+		return ranked;
+	}
+	
+	/**
+	 * @return the number of values in each row
+	 */
+	int length() {
+		return length;
+	}
+	
+	/**
+	 * @return the rank of value k of the given row
+	 */
+	float getRank(final int row, final int k) {
+		return ranks[row * length + k];
+	}
+	
+	/**
+	 * @return the index of the value at the given sorted position of the row
+	 */
+	int getSortedIndex(final int row, final int position) {
+		return order[row * length + position];
+	}
 	
 	/**
-	 * calculate the spearman correlation for two vectors d and d2
+	 * calculate the spearman correlation of rows xindex and yindex
 	 */
 	public double corr(int xindex, int yindex) {
-		if (rankInfoList.size()==0)
+		if (rows == 0)
 			return -2.0;
 			
-		RankInfo xrank = rankInfoList.get(xindex);
-		RankInfo yrank = rankInfoList.get(yindex);
-		
-		double[] r1 = xrank.ranking;
-		double sf = xrank.s;
-		double[] r1index = xrank.sortedIndices;
-		
-		double[] r2 = yrank.ranking;
-		double sg = yrank.s;
-		double[] r2index = yrank.sortedIndices;
-
-        // compute sum of square diffs
-        //DoubleMatrix1D d1 = new DenseDoubleMatrix1D(r1);
-        //DoubleMatrix1D d2 = new DenseDoubleMatrix1D(r2);
-
-        //double sumOfDiffSquared = d1.aggregate(d2, Functions.plus, Functions.chain(Functions.square,Functions.minus));
+		final int x = xindex * length;
+		final int y = yindex * length;
+		final double sf = ties[xindex];
+		final double sg = ties[yindex];
 
-        int n = r1.length;
+        // compute sum of square diffs (exact: the ranks are multiples of 0.5)
         double d1 = 0.0;
-        /*
-		for (int j = 0; j <n;j++)
-		{
-            double diff = r1[(int)r1index[j]]-r2[(int)r2index[j]];
-            //double diff = 0.0;
-            double diffSquared = diff*diff;
-            d1 = d1 + diffSquared; //Math.pow(r1[(int)r1index[j]]-r2[(int)r2index[j]],2);
-		} */
-		double en = (double)n;
+        
+		for (int k = 0; k < length; k++) {
+            final double diff = ranks[x + k] - ranks[y + k];
+            d1 += diff * diff;
+		}
+		
+		double en = (double) length;
 		double en3n = en*en*en-en;
-		/*double fac = (1.0-sf/en3n)*(1.0-sg/en3n);
+		// Corrected for ties (Numerical Recipes, 14.6); equals the Pearson correlation of the ranks
+		double fac = (1.0-sf/en3n)*(1.0-sg/en3n);
+		
+		if (fac <= 0.0)
+			return Double.NaN; // All values of a vector are tied
+		
 		double p = (1.0 - (6.0/en3n)*(d1+(sf+sg)/12.0))/Math.sqrt(fac);
-		*/
-        double p = 1.0 - (6.0 * d1)/(en3n-n);
         
         return p;
 	}
 	
-	private class RankInfo {
+	/**
+	 * Reusable arrays of one thread, grown to the longest vector ranked so far.
+	 */
+	private static class Scratch {
 		
-		double[] ranking;
-		double s = 0.0;
-		double[] sortedIndices;
-
-		public RankInfo(double[] ranking, double s) {
-			this.ranking = ranking;
-			this.s = s;
-		}
-
-		public void setIndices(double[] sortedIndices) {
-			this.sortedIndices = sortedIndices;
+		double[] values = new double[0];
+		double[] keys = new double[0];
+		int[] index = new int[0];
+		
+		Scratch ensure(final int length) {
+			if (keys.length < length) {
+				values = new double[length];
+				keys = new double[length];
+				index = new int[length];
+			}
+			
+			return this;
 		}
 	}
 }
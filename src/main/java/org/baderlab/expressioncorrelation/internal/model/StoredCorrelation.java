@@ -0,0 +1,77 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * Reads the correlations of a tile row back from a PackedTriangle instead of calculating them.
+ * The pairs of a tile row are contiguous in the triangle, so they are read in order.
+ */
+final class StoredCorrelation extends CorrelationSource {
+
+	private final PackedTriangle triangle;
+
+	/**
+	 * @param tileSize - number of vectors per tile row (values < 1 select the default)
+	 */
+	StoredCorrelation(final PackedTriangle triangle, final int tileSize) {
+		super(triangle.size(), tileSize);
+		this.triangle = triangle;
+	}
+
+	@Override
+	boolean isValid(final int i) {
+		return triangle.isValid(i);
+	}
+
+	@Override
+	void computeBlockRow(final int block, final PairVisitor visitor) {
+		final int iStart = getBlockStart(block);
+		final int iEnd = Math.min(iStart + tileSize, size);
+
+		for (int i = iStart; i < iEnd; i++) {
+			if (!triangle.isValid(i))
+				continue;
+
+			final long row = PackedTriangle.index(i, 0);
+
+			for (int j = 0; j < i; j++) {
+				if (!triangle.isValid(j))
+					continue;
+
+				final double corr = triangle.get(row + j);
+
+				// Pairs the source left undefined are skipped, as the source skipped them
+				if (!Double.isNaN(corr))
+					visitor.visit(i, j, corr);
+			}
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import java.util.Arrays;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+/**
+ * Keeps the strongest correlations (largest |r|) seen so far, up to a fixed number, in a min-heap
+ * stored in three flat arrays. The weakest kept correlation is at the root, so a new correlation only
+ * has to be compared with it. Equally strong correlations are ordered by (source, target), so the
+ * result does not depend on the order of the offers.
+ * <p/>
+ * Not thread-safe: threads either share one instance under a lock, or keep their own and merge them with addAll().
+ */
+final class StrongestEdges {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final int capacity;
+	private int count;
+	private int[] sources;
+	private int[] targets;
+	private double[] values;
+
+	/**
+	 * @param capacity - maximum number of correlations kept
+	 */
+	StrongestEdges(final int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("'capacity' must not be negative");
+
+		this.capacity = capacity;
+
+		// The arrays grow as needed, so a heap that only gets a few correlations stays small
+		final int initial = Math.min(capacity, INITIAL_CAPACITY);
+		sources = new int[initial];
+		targets = new int[initial];
+		values = new double[initial];
+	}
+
+	int size() {
+		return count;
+	}
+
+	boolean isFull() {
+		return count == capacity;
+	}
+
+	/**
+	 * @return |correlation| of the weakest kept correlation if the heap is full, -1 otherwise;
+	 *         weaker correlations cannot be kept any more
+	 */
+	double getThreshold() {
+		if (count < capacity)
+			return -1.0;
+
+		return capacity > 0 ? Math.abs(values[0]) : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Keeps the correlation of the pair (i, j) if it is among the strongest ones seen so far.
+	 */
+	void offer(final int i, final int j, final double corr) {
+		final double strength = Math.abs(corr);
+
+		if (count < capacity) {
+			if (count == sources.length)
+				grow();
+
+			// Adds the new correlation as a leaf and moves it up
+			int child = count++;
+
+			while (child > 0) {
+				final int parent = (child - 1) >>> 1;
+
+				if (!isWeaker(strength, i, j, parent))
+					break;
+
+				move(parent, child);
+				child = parent;
+			}
+
+			set(child, i, j, corr);
+		} else if (capacity > 0 && isWeaker(0, strength, i, j)) {
+			// Replaces the weakest correlation (the root) and moves the new one down
+			siftDown(0, i, j, corr);
+		}
+	}
+
+	/**
+	 * Offers all the correlations kept by another instance.
+	 */
+	void addAll(final StrongestEdges other) {
+		for (int e = 0; e < other.count; e++)
+			offer(other.sources[e], other.targets[e], other.values[e]);
+	}
+
+	/**
+	 * Offers all the correlations of an edge buffer.
+	 */
+	void addAll(final EdgeBuffer edges) {
+		for (int e = 0; e < edges.size(); e++)
+			offer(edges.getSource(e), edges.getTarget(e), edges.getValue(e));
+	}
+
+	/**
+	 * Empties the heap into an edge buffer, strongest correlation first.
+	 */
+	EdgeBuffer toEdges() {
+		final int total = count;
+		final int[] s = new int[total];
+		final int[] t = new int[total];
+		final double[] v = new double[total];
+
+		// Takes the weakest one out until the heap is empty, filling the arrays from the end
+		for (int e = total - 1; e >= 0; e--) {
+			s[e] = sources[0];
+			t[e] = targets[0];
+			v[e] = values[0];
+
+			count--;
+
+			if (count > 0)
+				siftDown(0, sources[count], targets[count], values[count]);
+		}
+
+		final EdgeBuffer edges = new EdgeBuffer();
+
+		for (int e = 0; e < total; e++)
+			edges.add(s[e], t[e], v[e]);
+
+		return edges;
+	}
+
+	private void siftDown(int parent, final int i, final int j, final double corr) {
+		final double strength = Math.abs(corr);
+
+		while (true) {
+			int child = 2 * parent + 1;
+
+			if (child >= count)
+				break;
+			if (child + 1 < count && isWeaker(child + 1, Math.abs(values[child]), sources[child], targets[child]))
+				child++;
+			if (!isWeaker(child, strength, i, j))
+				break;
+
+			move(child, parent);
+			parent = child;
+		}
+
+		set(parent, i, j, corr);
+	}
+
+	/**
+	 * @return true if the correlation (strength, i, j) is weaker than the one at the given index
+	 */
+	private boolean isWeaker(final double strength, final int i, final int j, final int index) {
+		final double other = Math.abs(values[index]);
+
+		if (strength != other)
+			return strength < other;
+
+		return i != sources[index] ? i > sources[index] : j > targets[index];
+	}
+
+	/**
+	 * @return true if the correlation at the given index is weaker than (strength, i, j)
+	 */
+	private boolean isWeaker(final int index, final double strength, final int i, final int j) {
+		final double other = Math.abs(values[index]);
+
+		if (strength != other)
+			return other < strength;
+
+		return sources[index] != i ? sources[index] > i : targets[index] > j;
+	}
+
+	private void set(final int index, final int i, final int j, final double corr) {
+		sources[index] = i;
+		targets[index] = j;
+		values[index] = corr;
+	}
+
+	private void move(final int from, final int to) {
+		set(to, sources[from], targets[from], values[from]);
+	}
+
+	private void grow() {
+		final int length = (int) Math.min(capacity, Math.max(16L, 2L * sources.length));
+		sources = Arrays.copyOf(sources, length);
+		targets = Arrays.copyOf(targets, length);
+		values = Arrays.copyOf(values, length);
+	}
+}
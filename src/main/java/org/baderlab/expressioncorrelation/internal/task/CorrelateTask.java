@@ -2,6 +2,7 @@ package org.baderlab.expressioncorrelation.internal.task;
 
 import org.baderlab.expressioncorrelation.internal.model.CorrelateActionType;
 import org.baderlab.expressioncorrelation.internal.model.CorrelateSimilarityNetwork;
+import org.baderlab.expressioncorrelation.internal.model.CorrelationMetric;
 import org.cytoscape.model.CyNetwork;
 import org.cytoscape.model.CyNetworkManager;
 import org.cytoscape.service.util.CyServiceRegistrar;
@@ -55,6 +56,27 @@ public class CorrelateTask implements Task {
     private final CorrelateActionType type;
     private final CorrelateSimilarityNetwork csNetwork;
 	private final CyServiceRegistrar serviceRegistrar;
+	
+	/** Number of threads for the correlation calculations (0 = keep the csNetwork setting) */
+	private int parallelism;
+	/** Similarity measure (null = keep the csNetwork setting) */
+	private CorrelationMetric metric;
+	/** true to correlate in single precision (null = keep the csNetwork setting) */
+	private Boolean singlePrecision;
+	/** true to keep empty cells as missing values (null = keep the csNetwork setting) */
+	private Boolean missingValues;
+	/** Number of values two vectors must share in missing-value mode (0 = keep the csNetwork setting) */
+	private int minOverlap;
+	/** true to estimate the significance of the correlations (null = keep the csNetwork setting) */
+	private Boolean significance;
+	/** true to take the significance of Pearson correlations from the t-distribution (null = keep the csNetwork setting) */
+	private Boolean analyticSignificance;
+	/** Number of neighbours kept per node by the nearest-neighbour networks (0 = keep the csNetwork setting) */
+	private int neighbourCount;
+	/** Number of edges of the strongest-edges networks (-1 = keep the csNetwork setting) */
+	private int edgeBudget = -1;
+	/** true to estimate the histograms of the previews from a sample of the pairs */
+	private boolean estimate;
 
     /**
      * Constructor.
@@ -69,6 +91,99 @@ public class CorrelateTask implements Task {
         this.serviceRegistrar = serviceRegistrar;
     }
 
+    /**
+     * Sets the number of threads used to calculate the similarity matrices.
+     *
+     * @param parallelism 1 to use a single thread, 0 to keep the current csNetwork setting
+     *                    (by default one thread per available processor)
+     */
+    public void setParallelism(final int parallelism) {
+    	if (parallelism < 0)
+    		throw new IllegalArgumentException("'parallelism' must not be negative");
+    	
+    	this.parallelism = parallelism;
+    }
+    
+    /**
+     * Sets the similarity measure of the networks and histograms (e.g. Pearson or Spearman rank correlation).
+     */
+    public void setMetric(final CorrelationMetric metric) {
+    	this.metric = metric;
+    }
+    
+    /**
+     * Sets whether the expression values are stored and correlated as floats (single precision) instead of doubles.
+     */
+    public void setSinglePrecision(final boolean singlePrecision) {
+    	this.singlePrecision = singlePrecision;
+    }
+    
+    /**
+     * Sets whether empty cells are missing values, so each pair of vectors is correlated over the values both have.
+     */
+    public void setMissingValues(final boolean missingValues) {
+    	this.missingValues = missingValues;
+    }
+    
+    /**
+     * Sets the number of values two vectors must share to be correlated in missing-value mode.
+     *
+     * @param minOverlap 0 to keep the current csNetwork setting
+     */
+    public void setMinOverlap(final int minOverlap) {
+    	if (minOverlap != 0 && minOverlap < 2)
+    		throw new IllegalArgumentException("'minOverlap' must be 0 or at least 2");
+    	
+    	this.minOverlap = minOverlap;
+    }
+    
+    /**
+     * Sets whether the histograms also estimate the null distribution of the correlations by permutation,
+     * which adds p-values and q-values to the edges of the networks.
+     */
+    public void setSignificance(final boolean significance) {
+    	this.significance = significance;
+    }
+    
+    /**
+     * Sets whether the significance of Pearson correlations comes from the t-distribution instead of permutations.
+     */
+    public void setAnalyticSignificance(final boolean analyticSignificance) {
+    	this.analyticSignificance = analyticSignificance;
+    }
+    
+    /**
+     * Sets the number of strongest correlations kept per node by COND_NET_KNN and GENE_NET_KNN.
+     *
+     * @param neighbourCount 0 to keep the current csNetwork setting
+     */
+    public void setNeighbourCount(final int neighbourCount) {
+    	if (neighbourCount < 0)
+    		throw new IllegalArgumentException("'neighbourCount' must not be negative");
+    	
+    	this.neighbourCount = neighbourCount;
+    }
+    
+    /**
+     * Sets the exact number of edges (the strongest correlations) of COND_NET_TOP and GENE_NET_TOP networks.
+     *
+     * @param edgeBudget -1 to keep the current csNetwork setting
+     */
+    public void setEdgeBudget(final int edgeBudget) {
+    	if (edgeBudget < -1)
+    		throw new IllegalArgumentException("'edgeBudget' must be -1 or more");
+    	
+    	this.edgeBudget = edgeBudget;
+    }
+    
+    /**
+     * Sets whether COND_NET_PREVIEW and GENE_NET_PREVIEW estimate the histogram from a random sample of the pairs,
+     * which is much faster on large data sets (see CorrelateSimilarityNetwork.rowHistogramEstimate()).
+     */
+    public void setEstimate(final boolean estimate) {
+    	this.estimate = estimate;
+    }
+    
     /**
      * Perform the correlation calculations on the csNetwork.
      */
@@ -76,6 +191,25 @@ public class CorrelateTask implements Task {
 	public void run(final TaskMonitor tm) throws Exception {
     	tm.setTitle("Performing Correlation Calculations");
     	
+    	if (parallelism > 0)
+    		csNetwork.setParallelism(parallelism);
+    	if (metric != null)
+    		csNetwork.setMetric(metric);
+    	if (singlePrecision != null)
+    		csNetwork.setSinglePrecision(singlePrecision);
+    	if (missingValues != null)
+    		csNetwork.setMissingValues(missingValues);
+    	if (minOverlap > 0)
+    		csNetwork.setMinOverlap(minOverlap);
+    	if (significance != null)
+    		csNetwork.setSignificance(significance);
+    	if (analyticSignificance != null)
+    		csNetwork.setAnalyticSignificance(analyticSignificance);
+    	if (neighbourCount > 0)
+    		csNetwork.setNeighbourCount(neighbourCount);
+    	if (edgeBudget >= 0)
+    		csNetwork.setEdgeBudget(edgeBudget);
+    	
         switch (type) {
             case BUILD_NETWORK:
                 colRun(tm);
@@ -89,11 +223,34 @@ public class CorrelateTask implements Task {
                 break;
             case COND_NET_PREVIEW:
             	csNetwork.loadColCutoffs(); // Loads previously saved user column cutoffs from the singleton class
-            	csNetwork.colHistogram(tm);
+            	
+            	if (estimate)
+            		csNetwork.colHistogramEstimate(tm);
+            	else
+            		csNetwork.colHistogram(tm);
+            	
             	break;
             case GENE_NET_PREVIEW:
             	csNetwork.loadRowCutoffs(); // Loads previously saved user row cutoffs from the singleton class
-            	csNetwork.rowHistogram(tm);
+            	
+            	if (estimate)
+            		csNetwork.rowHistogramEstimate(tm);
+            	else
+            		csNetwork.rowHistogram(tm);
+            	
+            	break;
+            case COND_NET_KNN:
+            	destroyIfCancelled(csNetwork.calcColsNeighbours(tm));
+            	break;
+            case GENE_NET_KNN:
+            	destroyIfCancelled(csNetwork.calcRowsNeighbours(tm));
+            	break;
+            case COND_NET_TOP:
+            	destroyIfCancelled(csNetwork.calcColsStrongest(tm));
+            	break;
+            case GENE_NET_TOP:
+            	destroyIfCancelled(csNetwork.calcRowsStrongest(tm));
+            	break;
 			default:
 				break;
         }
@@ -114,18 +271,20 @@ public class CorrelateTask implements Task {
      * The condition matrix calculation
      */
 	private void colRun(final TaskMonitor tm) {
-		final CyNetwork net = csNetwork.calcCols(tm);
-
-		if (csNetwork.cancelled())
-			destroy(net);
+		destroyIfCancelled(csNetwork.calcCols(tm));
 	}
 
 	/**
 	 * The gene matrix calculation
 	 */
 	private void rowRun(final TaskMonitor tm) {
-		final CyNetwork net = csNetwork.calcRows(tm);
+		destroyIfCancelled(csNetwork.calcRows(tm));
+	}
 
+	/**
+	 * Destroys the new network if the calculation was cancelled
+	 */
+	private void destroyIfCancelled(final CyNetwork net) {
 		if (csNetwork.cancelled())
 			destroy(net);
 	}
@@ -23,6 +23,7 @@ import javax.swing.JDialog;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 import org.baderlab.expressioncorrelation.internal.model.CorrelateActionType;
 import org.baderlab.expressioncorrelation.internal.model.CorrelateSimilarityNetwork;
@@ -75,6 +76,10 @@ import org.jmathplot.gui.Plot2DPanel;
  * The user can choose to use only one set of cutoffs by deselecting the "low" or "high" checkbox.
  * The user can select the number or percent of interactions to be displayed
  * by typing into the "Enter" text box and choosing "Number of Interactions" or "Percent of Interactions".
+ * If the histogram was estimated from a sample of the pairs, the confidence bounds of the number of interactions
+ * are shown, and the exact histogram is calculated in the background while the dialog stays open. The histogram
+ * and the number of interactions are redrawn every few percent of the pairs (without bounds, and with the share
+ * of the pairs done instead), so the cutoffs can be chosen and the network created before the calculation is done.
  */
 public class CorrelateHistogramDialog extends JDialog {
 
@@ -88,6 +93,10 @@ public class CorrelateHistogramDialog extends JDialog {
     private JCheckBox lowCutoffCkb;				//Allows the user to select to use low cutoffs or not
     private JCheckBox highCutoffCkb;			//Allows the user to select to use high cutoffs or not
     private JComboBox<String> interactionsCmb; //combo box for choosing either interaction number or percent
+    private Plot2DPanel plotPnl;				//Histogram of the similarity matrix
+    private JLabel estimateLbl;					//Confidence bounds of the number of interactions of an estimated histogram
+    private Thread refiner;						//Calculates the exact histogram in the background (null if not running)
+    private double refined;						//Fraction of the pairs in the current histogram, while refiner runs
 
     boolean isRow = false; 			//set to false to display column histogram, set to true to display row histogram
     double[] cutoffs = new double[2]; // first element is negative cutoff; 2nd element is positive cutoff
@@ -127,7 +136,7 @@ public class CorrelateHistogramDialog extends JDialog {
         final JLabel interactionsLbl = new JLabel("Interactions:", JLabel.RIGHT);
 
         // Histogram Panel
-        final Plot2DPanel plotPnl = new Plot2DPanel(network.getHistogram(isRow), "Similarity  Histogram", "HISTOGRAM");
+        plotPnl = new Plot2DPanel(network.getHistogram(isRow), "Similarity  Histogram", "HISTOGRAM");
         plotPnl.setActionMode(Plot2DPanel.NO_ACTION_MODE);
         plotPnl.setToolBarVisible(false);
         
@@ -174,6 +183,7 @@ public class CorrelateHistogramDialog extends JDialog {
 						)
 				)
 				.addComponent(plotPnl)
+				.addComponent(getEstimateLbl(), DEFAULT_SIZE, DEFAULT_SIZE, Short.MAX_VALUE)
 				.addComponent(buttonPnl)
 		);
 		layout.setVerticalGroup(layout.createSequentialGroup()
@@ -193,10 +203,15 @@ public class CorrelateHistogramDialog extends JDialog {
 						.addComponent(getInteractionsCmb())
 				)
 				.addComponent(plotPnl)
+				.addComponent(getEstimateLbl())
 				.addComponent(buttonPnl)
 		);
         
         setContentPane(contentPane);
+        updateEstimate();
+        
+        if (network.isHistogramEstimated(isRow))
+        	refine();
         
         LookAndFeelUtil.setDefaultOkCancelKeyStrokes(getRootPane(), okBtn.getAction(), cancelBtn.getAction());
         getRootPane().setDefaultButton(okBtn);
@@ -260,10 +275,153 @@ public class CorrelateHistogramDialog extends JDialog {
         selectedString = (String) getInteractionsCmb().getSelectedItem();
         
         if (selectedString.equals("Number of Interactions")) {
-            getInteractionsTxt().setText(Integer.toString(network.getNumberOfInteractions(isRow, cutoffs)));
+            getInteractionsTxt().setText(Long.toString(network.getNumberOfInteractions(isRow, cutoffs)));
         } else if (selectedString.equals("Percent of Interactions")) {
             getInteractionsTxt().setText(Double.toString(network.getPercentOfInteractions(isRow, cutoffs)));
         }
+        
+        updateEstimate();
+    }
+
+    /**
+     * Shows the confidence bounds of the number of interactions if the histogram is estimated from a sample,
+     * or the progress of the exact histogram while it is calculated, and hides them otherwise
+     */
+    private void updateEstimate() {
+    	final long[] bounds = network.getInteractionBounds(isRow, network.getCutoffs(isRow));
+    	
+    	getEstimateLbl().setVisible(bounds != null || refiner != null);
+    	
+    	// Snapshots of the exact histogram have no confidence bounds, only the share of the pairs done
+    	if (bounds != null) {
+    		getEstimateLbl().setText("Estimated from a sample: 95% between " + bounds[0] + " and " + bounds[1]
+    				+ " interactions");
+    		getEstimateLbl().setToolTipText(
+    				"<html>The histogram was estimated from a random sample of the pairs, so the number<br />" +
+    				"of interactions is an estimate too: the exact number is between these bounds 95% of the time</html>"
+    		);
+    	} else {
+    		getEstimateLbl().setText(refined > 0
+    				? "Estimated from " + Math.round(refined * 100) + "% of the pairs, calculating the exact histogram..."
+    				: "Calculating the exact histogram...");
+    		getEstimateLbl().setToolTipText(
+    				"<html>The histogram and the number of interactions are updated as more of the correlations<br />" +
+    				"are calculated, and are exact when the calculation is done</html>"
+    		);
+    	}
+    }
+
+    /**
+     * Calculates the exact histogram on another thread. The histogram and the number of interactions are
+     * redrawn at every snapshot of the calculation, and when it is done.
+     */
+    private void refine() {
+    	final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final Thread worker = Thread.currentThread();
+				
+				if (isRow)
+					network.rowHistogram(null);
+				else
+					network.colHistogram(null);
+				
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						// Stopped by the OK or Cancel buttons?
+						if (refiner != worker)
+							return;
+						
+						refiner = null;
+						network.setHistogramListener(null);
+						updatePlot();
+						getSet();
+					}
+				});
+			}
+		}, "Exact similarity histogram");
+    	
+    	network.setHistogramListener(new CorrelateSimilarityNetwork.HistogramListener() {
+			@Override
+			public void histogramUpdated(final boolean isRowNetwork, final double fraction) {
+				// The exact histogram is drawn when the thread is done
+				if (isRowNetwork != isRow || fraction >= 1.0)
+					return;
+				
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						if (refiner != thread)
+							return;
+						
+						// Snapshots are published in order, but their calls can arrive out of order
+						refined = Math.max(refined, fraction);
+						updatePlot();
+						getSet();
+					}
+				});
+			}
+		});
+    	
+    	refined = 0;
+    	refiner = thread;
+    	thread.setDaemon(true);
+    	thread.start();
+    }
+
+    /**
+     * Stops the calculation of the exact histogram, if it is running. The event dispatch thread does not wait
+     * for it: another thread does, and then runs the given action (if not null) on the event dispatch thread.
+     * If the calculation is not running, the action is run after the events already queued.
+     */
+    private void stopRefining(final Runnable then) {
+    	final Thread thread = refiner;
+    	refiner = null;
+    	
+    	if (thread == null) {
+    		if (then != null)
+    			SwingUtilities.invokeLater(then);
+    		
+    		return;
+    	}
+    	
+    	network.setHistogramListener(null);
+    	network.cancel();
+    	
+    	final Thread waiter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				
+				// The histogram may have finished before it could see the cancel
+				network.clearCancel();
+				
+				if (then != null)
+					SwingUtilities.invokeLater(then);
+			}
+		}, "Stop similarity histogram");
+    	
+    	waiter.setDaemon(true);
+    	waiter.start();
+    }
+
+    /**
+     * Draws the current histogram of the network
+     */
+    private void updatePlot() {
+    	plotPnl.removeAllPlots();
+    	plotPnl.addPlot(network.getHistogram(isRow), "Similarity  Histogram", "HISTOGRAM");
+    }
+
+    @Override
+    public void dispose() {
+    	stopRefining(null);
+    	super.dispose();
     }
 
     /**
@@ -273,15 +431,15 @@ public class CorrelateHistogramDialog extends JDialog {
      */
     public void interactionsGetSet() {
         double doubleValue;
-        int intValue;
+        long longValue;
         valueInteractions = (Number) getInteractionsTxt().getValue();
         selectedString = (String) getInteractionsCmb().getSelectedItem();
         
         if (selectedString.equals("Number of Interactions") && (valueInteractions != null)) {
-            intValue = valueInteractions.intValue();
+            longValue = valueInteractions.longValue();
             
-            if (intValue >= 0) {
-                network.setCutoffsInteractions(isRow, intValue);
+            if (longValue >= 0) {
+                network.setCutoffsInteractions(isRow, longValue);
                 cutoffs = network.getCutoffs(isRow);
                 getLowCutoffTxt().setText(Double.toString(cutoffs[0]));
                 getHighCutoffTxt().setText(Double.toString(cutoffs[1]));
@@ -334,7 +492,7 @@ public class CorrelateHistogramDialog extends JDialog {
     
     private JFormattedTextField getLowCutoffTxt() {
 		if (lowCutoffTxt == null) {
-			lowCutoffTxt = new JFormattedTextField(new DecimalFormat("-0.000"));
+			lowCutoffTxt = new JFormattedTextField(new DecimalFormat("-" + getCutoffPattern()));
 	        lowCutoffTxt.setColumns(6);
 	        lowCutoffTxt.setHorizontalAlignment(JFormattedTextField.RIGHT);
 	        lowCutoffTxt.addPropertyChangeListener("value", new CorrelateHistogramDialog.FormattedTextFieldAction());
@@ -350,7 +508,7 @@ public class CorrelateHistogramDialog extends JDialog {
     
     private JFormattedTextField getHighCutoffTxt() {
 		if (highCutoffTxt == null) {
-			highCutoffTxt = new JFormattedTextField(new DecimalFormat("0.000"));
+			highCutoffTxt = new JFormattedTextField(new DecimalFormat(getCutoffPattern()));
 	        highCutoffTxt.setColumns(6);
 	        highCutoffTxt.setHorizontalAlignment(JFormattedTextField.RIGHT);
 	        highCutoffTxt.addPropertyChangeListener("value", new CorrelateHistogramDialog.FormattedTextFieldAction());
@@ -374,12 +532,20 @@ public class CorrelateHistogramDialog extends JDialog {
 	        		"<html>Select either the number of interactions you want displayed<br />" +
 	                "or the percent of interactions you want diplayed</html>";
 	        interactionsTxt.setToolTipText(tipSize);
-	        interactionsTxt.setText(Integer.toString(network.getNumberOfInteractions(isRow, cutoffs)));
+	        interactionsTxt.setText(Long.toString(network.getNumberOfInteractions(isRow, cutoffs)));
 		}
 		
 		return interactionsTxt;
 	}
     
+    private JLabel getEstimateLbl() {
+    	if (estimateLbl == null) {
+    		estimateLbl = new JLabel();
+    	}
+    	
+    	return estimateLbl;
+    }
+    
     private JComboBox<String> getInteractionsCmb() {
 		if (interactionsCmb == null) {
 	        interactionsCmb = new JComboBox<>();
@@ -395,6 +561,18 @@ public class CorrelateHistogramDialog extends JDialog {
 		return interactionsCmb;
 	}
     
+    /**
+     * @return a number pattern with three decimals, plus optional ones up to the precision of the cutoffs
+     */
+    private String getCutoffPattern() {
+    	final StringBuilder pattern = new StringBuilder("0.000");
+    	
+    	for (int i = 3; i < network.getCutoffDecimals(); i++)
+    		pattern.append('#');
+    	
+    	return pattern.toString();
+    }
+    
     /**
      * Listens to changes in any of the windows
      * redirects action depending on change
@@ -486,7 +664,7 @@ public class CorrelateHistogramDialog extends JDialog {
             String selectedString = (String) getInteractionsCmb().getSelectedItem();
             
             if (selectedString.equals("Number of Interactions")) {
-                getInteractionsTxt().setText(Integer.toString(network.getNumberOfInteractions(isRow, cutoffs)));
+                getInteractionsTxt().setText(Long.toString(network.getNumberOfInteractions(isRow, cutoffs)));
             } else if (selectedString.equals("Percent of Interactions")) {
                 getInteractionsTxt().setText(Double.toString(network.getPercentOfInteractions(isRow, cutoffs)));
             }
@@ -508,8 +686,6 @@ public class CorrelateHistogramDialog extends JDialog {
 
 		@Override
         public void actionPerformed(ActionEvent e) {
-            dispose();
-            
             CorrelateActionType type = COND_NET_DEF;
             
             if (isRow) {
@@ -523,6 +699,19 @@ public class CorrelateHistogramDialog extends JDialog {
 
             cutoffs = network.getCutoffs(isRow);
             
+            // The network is only calculated once the exact histogram has stopped
+            final CorrelateActionType networkType = type;
+            
+            stopRefining(new Runnable() {
+				@Override
+				public void run() {
+					createNetwork(networkType);
+				}
+			});
+            dispose();
+        }
+        
+        private void createNetwork(final CorrelateActionType type) {
             // Create a Correlate Task
             final Task task = new CorrelateTask(type, network, serviceRegistrar);
 
@@ -0,0 +1,142 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+public class BiweightMidcorrelationTest {
+
+	@Test
+	public void testMatchesDefinition() {
+		final int genes = 12;
+		final int conditions = 15;
+		final ExpressionMatrix matrix = new ExpressionMatrix(genes, conditions);
+		final Random random = new Random(6);
+		
+		for (int i = 0; i < genes; i++) {
+			for (int k = 0; k < conditions; k++)
+				matrix.set(i, k, k == 4 ? 50.0 * random.nextDouble() : random.nextGaussian()); // Condition 4 is an outlier
+		}
+		
+		final MetricCorrelation bicor = new MetricCorrelation(
+				CorrelationMetric.BIWEIGHT.getSimilarity().prepare(matrix.getRowVectors(), 2, 2), 4);
+		final int[] visits = new int[1];
+		
+		for (int b = 0; b < bicor.getBlockCount(); b++) {
+			bicor.computeBlockRow(b, new CorrelationSource.PairVisitor() {
+				@Override
+				public void visit(int i, int j, double corr) {
+					assertEquals(bicor(matrix, i, j), corr, 1e-12);
+					visits[0]++;
+				}
+			});
+		}
+		
+		assertEquals(genes * (genes - 1) / 2, visits[0]);
+	}
+
+	@Test
+	public void testIgnoresOutlier() {
+		// Unrelated noise, except for one huge shared value
+		final double[] x = { 0.3, -1.2, 0.8, 0.1, -0.5, 1.1, -0.9, 0.4, 20.0 };
+		final double[] y = { -0.7, 0.2, 0.9, -1.1, 0.6, -0.3, 0.1, -0.8, 25.0 };
+		final double[] scratch = new double[x.length];
+		
+		BiweightMidcorrelation.weight(x, 0, x.length, scratch);
+		BiweightMidcorrelation.weight(y, 0, y.length, scratch);
+		
+		// The outliers get no weight
+		assertEquals(0.0, x[8], 0.0);
+		assertEquals(0.0, y[8], 0.0);
+	}
+
+	@Test
+	public void testConstantMajorityFallsBackToMean() {
+		final double[] x = { 2.0, 2.0, 2.0, 5.0, 1.0 };
+		BiweightMidcorrelation.weight(x, 0, x.length, new double[x.length]);
+		assertArrayEquals(new double[] { -0.4, -0.4, -0.4, 2.6, -1.4 }, x, 1e-12);
+	}
+
+	/**
+	 * The usual definition, weighting each pair of vectors from scratch
+	 */
+	private static double bicor(final ExpressionMatrix matrix, final int x, final int y) {
+		final double[] a = weighted(matrix, x);
+		final double[] b = weighted(matrix, y);
+		double ab = 0.0, aa = 0.0, bb = 0.0;
+		
+		for (int k = 0; k < a.length; k++) {
+			ab += a[k] * b[k];
+			aa += a[k] * a[k];
+			bb += b[k] * b[k];
+		}
+		
+		return ab / Math.sqrt(aa * bb);
+	}
+
+	private static double[] weighted(final ExpressionMatrix matrix, final int row) {
+		final int m = matrix.getColumns();
+		final double[] values = new double[m];
+		
+		for (int k = 0; k < m; k++)
+			values[k] = matrix.get(row, k);
+		
+		final double median = median(values);
+		final double[] deviations = new double[m];
+		
+		for (int k = 0; k < m; k++)
+			deviations[k] = Math.abs(values[k] - median);
+		
+		final double mad = median(deviations);
+		final double[] result = new double[m];
+		
+		for (int k = 0; k < m; k++) {
+			final double u = (values[k] - median) / (9 * mad);
+			result[k] = Math.abs(u) < 1 ? (values[k] - median) * (1 - u * u) * (1 - u * u) : 0.0;
+		}
+		
+		return result;
+	}
+
+	private static double median(final double[] values) {
+		final double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		
+		return sorted.length % 2 == 1 ? sorted[sorted.length / 2]
+				: (sorted[sorted.length / 2 - 1] + sorted[sorted.length / 2]) / 2;
+	}
+}
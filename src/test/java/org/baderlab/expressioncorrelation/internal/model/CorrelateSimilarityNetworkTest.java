@@ -214,6 +214,71 @@ public class CorrelateSimilarityNetworkTest {
 		assertEquals(net.getEdgeCount(), count);
 	}
 	
+	@Test
+	public void testCalcRowsWithSmallTiles() {
+		// Tiles that do not divide the number of genes must still cover the whole similarity matrix
+		csNetwork.setTileSize(7);
+		final CyNetwork net = csNetwork.calcRows(tm);
+		
+		assertEquals("Node count", 29, net.getNodeCount());
+		assertEquals("Edge count", 37, net.getEdgeCount());
+		assertEdgeValues(0.974244687485713, "YFL020C_interaction_YBR301W", net);
+		assertEdgeValues(0.9500346789714313, "YPR044C_interaction_YJL177W", net);
+	}
+	
+	@Test
+	public void testCalcRowsInParallel() {
+		csNetwork.setParallelism(4);
+		final CyNetwork net = csNetwork.calcRows(tm);
+		
+		assertEquals("Node count", 29, net.getNodeCount());
+		assertEquals("Edge count", 37, net.getEdgeCount());
+		assertNodeDegree(8, "YJL223C", net);
+		assertEdgeValues(0.9646826673056724, "YOL161C_interaction_YLL064C", net);
+	}
+	
+	@Test
+	public void testHistogramInParallel() {
+		csNetwork.setParallelism(1);
+		csNetwork.rowHistogram(tm);
+		final double[][] serial = csNetwork.getHistogram(true);
+		
+		csNetwork.setParallelism(4);
+		csNetwork.rowHistogram(tm);
+		final double[][] parallel = csNetwork.getHistogram(true);
+		
+		assertEquals(serial.length, parallel.length);
+		
+		for (int i = 0; i < serial.length; i++)
+			assertEquals("Bin " + i, serial[i][1], parallel[i][1], 0.0);
+	}
+	
+	@Test
+	public void testCalcRowsFromHistogramCandidates() {
+		// Fused mode: the histogram keeps the strongest pairs, so the network is built from them
+		csNetwork.setFused(true);
+		csNetwork.rowHistogram(tm);
+		final CyNetwork net = csNetwork.calcRows(tm);
+		
+		assertEquals("Node count", 29, net.getNodeCount());
+		assertEquals("Edge count", 37, net.getEdgeCount());
+		assertNodeDegree(6, "YOL161C", net);
+		assertEdgeValues(0.9504455312129428, "YER138C_interaction_YCL019W", net);
+	}
+	
+	@Test
+	public void testCalcRowsSinglePrecision() {
+		csNetwork.setSinglePrecision(true);
+		final CyNetwork net = csNetwork.calcRows(tm);
+		
+		assertEquals("Node count", 29, net.getNodeCount());
+		assertEquals("Edge count", 37, net.getEdgeCount());
+		assertNodeDegree(8, "YJL223C", net);
+		
+		final CyEdge edge = getEdgeByName(net, "YFL020C_interaction_YBR301W");
+		assertEquals("Edge strength", 0.974244687485713, net.getRow(edge).get("Strength", Double.class), 1e-5);
+	}
+	
 	private void assertNodeDegree(final int degree, final String nodeName, final CyNetwork net) {
 		final CyNode node = getNodeByName(net, nodeName);
 		final int actual = net.getAdjacentEdgeList(node, CyEdge.Type.ANY).size();
@@ -223,7 +288,8 @@ public class CorrelateSimilarityNetworkTest {
 	private void assertEdgeValues(final double strength, final String edgeName, final CyNetwork net) {
 		final CyEdge edge = getEdgeByName(net, edgeName);
 		final double actual = net.getRow(edge).get("Strength", Double.class);
-		assertEquals("Edge strength for " + edgeName, strength, actual, 1e-16);
+		// Correlations are calculated from standardized vectors, so only the last few bits may differ
+		assertEquals("Edge strength for " + edgeName, strength, actual, 1e-12);
 	}
 	
 	protected CyNode getNodeByName(final CyNetwork net, final String name) {
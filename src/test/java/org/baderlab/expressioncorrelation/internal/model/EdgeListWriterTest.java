@@ -0,0 +1,121 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+public class EdgeListWriterTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Test
+	public void testTsv() throws IOException {
+		final char[] longName = new char[70000]; // Longer than the buffer of a sink
+		Arrays.fill(longName, 'x');
+		final String[] names = { "A", "B", "C", new String(longName) };
+		final File file = File.createTempFile("edges", ".tsv");
+		
+		try {
+			try (final EdgeListWriter writer = new EdgeListWriter(file, EdgeListFormat.TSV, names)) {
+				final EdgeListWriter.Sink first = writer.newSink();
+				final EdgeListWriter.Sink second = writer.newSink();
+				first.add(1, 0, 0.5);
+				second.add(3, 2, -0.25);
+				first.add(2, 1, 0.75);
+				first.flush();
+				second.flush();
+				
+				assertEquals(3, writer.getEdgeCount());
+			}
+			
+			final List<String> lines = Files.readAllLines(file.toPath(), UTF8);
+			assertEquals(4, lines.size());
+			assertEquals("source\ttarget\tcorrelation", lines.get(0));
+			// The long line does not fit in the buffer, so it is written before the buffered lines of its sink
+			assertEquals(names[3] + "\tC\t-0.25", lines.get(1));
+			assertEquals("B\tA\t0.5", lines.get(2));
+			assertEquals("C\tB\t0.75", lines.get(3));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testBinary() throws IOException {
+		final String[] names = { "A", "\u00C9B" };
+		final File file = File.createTempFile("edges", ".bin");
+		final int edges = 10000; // More than fit in the buffer of a sink
+		
+		try {
+			try (final EdgeListWriter writer = new EdgeListWriter(file, EdgeListFormat.BINARY, names)) {
+				final EdgeListWriter.Sink sink = writer.newSink();
+				
+				for (int e = 0; e < edges; e++)
+					sink.add(1, 0, e / (double) edges);
+				
+				sink.flush();
+			}
+			
+			final ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			assertEquals(EdgeListWriter.MAGIC, in.getInt());
+			assertEquals(EdgeListWriter.VERSION, in.getInt());
+			assertEquals(edges, in.getLong());
+			assertEquals(names.length, in.getInt());
+			
+			for (final String name : names) {
+				final byte[] bytes = new byte[in.getInt()];
+				in.get(bytes);
+				assertArrayEquals(name.getBytes(UTF8), bytes);
+			}
+			
+			for (int e = 0; e < edges; e++) {
+				assertEquals(1, in.getInt());
+				assertEquals(0, in.getInt());
+				assertEquals((float) (e / (double) edges), in.getFloat(), 0.0);
+			}
+			
+			assertEquals(0, in.remaining());
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+public class KendallCorrelationTest {
+
+	@Test
+	public void testMatchesPairCounting() {
+		final int genes = 30;
+		final int conditions = 40;
+		final ExpressionMatrix matrix = new ExpressionMatrix(genes, conditions);
+		final Random random = new Random(4);
+		
+		for (int i = 0; i < genes; i++) {
+			for (int k = 0; k < conditions; k++) {
+				// Some genes have many ties, gene 5 is constant
+				final double value = i == 5 ? 2.0 : random.nextGaussian();
+				matrix.set(i, k, i % 3 == 0 ? Math.round(value) : value);
+			}
+		}
+		
+		final MetricCorrelation kendall = new MetricCorrelation(new KendallCorrelation(matrix.getRowVectors(), 2), 8);
+		final int[] visits = new int[1];
+		assertFalse(kendall.isValid(5));
+		
+		for (int b = 0; b < kendall.getBlockCount(); b++) {
+			kendall.computeBlockRow(b, new CorrelationSource.PairVisitor() {
+				@Override
+				public void visit(int i, int j, double corr) {
+					assertTrue(j < i && i != 5 && j != 5);
+					assertEquals(tauB(matrix, i, j), corr, 1e-12);
+					visits[0]++;
+				}
+			});
+		}
+		
+		assertEquals(28 * 29 / 2, visits[0]);
+	}
+
+	@Test
+	public void testMissingValues() {
+		final int genes = 20;
+		final int conditions = 30;
+		final ExpressionMatrix matrix = new ExpressionMatrix(genes, conditions);
+		final Random random = new Random(9);
+		
+		for (int i = 0; i < genes; i++) {
+			for (int k = 0; k < conditions; k++) {
+				// Genes 0 to 4 are complete, gene 6 only has 3 values
+				final boolean missing = i >= 5 && (i == 6 ? k >= 3 : random.nextInt(5) == 0);
+				final double value = i % 2 == 0 ? Math.round(random.nextGaussian()) : random.nextGaussian();
+				matrix.set(i, k, missing ? Double.NaN : value);
+			}
+		}
+		
+		final MetricCorrelation kendall = new MetricCorrelation(new KendallCorrelation(matrix.getRowVectors(), 8), 8);
+		final int[] visits = new int[1];
+		assertFalse(kendall.isValid(6));
+		
+		for (int b = 0; b < kendall.getBlockCount(); b++) {
+			kendall.computeBlockRow(b, new CorrelationSource.PairVisitor() {
+				@Override
+				public void visit(int i, int j, double corr) {
+					assertEquals(tauB(matrix, i, j), corr, 1e-12);
+					visits[0]++;
+				}
+			});
+		}
+		
+		assertEquals(19 * 18 / 2, visits[0]);
+	}
+
+	/**
+	 * The O(m^2) definition: (concordant - discordant) / sqrt((pairs not tied in x) * (pairs not tied in y)),
+	 * over the values present in both vectors
+	 */
+	private static double tauB(final ExpressionMatrix matrix, final int x, final int y) {
+		long concordant = 0;
+		long discordant = 0;
+		long tiedX = 0;
+		long tiedY = 0;
+		
+		for (int a = 0; a < matrix.getColumns(); a++) {
+			for (int b = a + 1; b < matrix.getColumns(); b++) {
+				final double dx = Math.signum(matrix.get(x, a) - matrix.get(x, b));
+				final double dy = Math.signum(matrix.get(y, a) - matrix.get(y, b));
+				
+				if (Double.isNaN(dx) || Double.isNaN(dy) || (dx == 0 && dy == 0))
+					continue; // Missing in either vector, or tied in both
+				else if (dx == 0)
+					tiedX++;
+				else if (dy == 0)
+					tiedY++;
+				else if (dx == dy)
+					concordant++;
+				else
+					discordant++;
+			}
+		}
+		
+		final long pairs = concordant + discordant;
+		
+		return (concordant - discordant) / Math.sqrt((double) (pairs + tiedX) * (pairs + tiedY));
+	}
+}
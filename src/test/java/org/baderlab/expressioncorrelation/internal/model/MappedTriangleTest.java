@@ -0,0 +1,190 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+public class MappedTriangleTest {
+
+	private static final MappedTriangle.Settings SETTINGS =
+			new MappedTriangle.Settings(CorrelationMetric.SPEARMAN, true, 5);
+
+	@Test
+	public void testFloatAcrossMappings() throws IOException {
+		roundTrip(CorrelationEncoding.FLOAT32, 1e-7);
+	}
+
+	@Test
+	public void testQuantized() throws IOException {
+		roundTrip(CorrelationEncoding.INT16, 0.5 / CorrelationEncoding.SCALE);
+	}
+
+	@Test
+	public void testSettings() {
+		// The minimum overlap does not matter without missing values
+		assertEquals(new MappedTriangle.Settings(CorrelationMetric.PEARSON, false, 3),
+				new MappedTriangle.Settings(CorrelationMetric.PEARSON, false, 7));
+		assertFalse(SETTINGS.equals(new MappedTriangle.Settings(CorrelationMetric.SPEARMAN, true, 4)));
+		assertFalse(SETTINGS.equals(new MappedTriangle.Settings(CorrelationMetric.SPEARMAN, false, 5)));
+		assertFalse(SETTINGS.equals(new MappedTriangle.Settings(CorrelationMetric.PEARSON, true, 5)));
+	}
+
+	private void roundTrip(final CorrelationEncoding encoding, final double tolerance) throws IOException {
+		final int size = 37;
+		final boolean[] valid = new boolean[size];
+		
+		for (int i = 0; i < size; i++)
+			valid[i] = i % 5 != 3;
+		
+		final File file = File.createTempFile("matrix", ".ectr");
+		
+		try {
+			// 16 byte mappings, so the values are spread over many of them
+			final MappedTriangle written = MappedTriangle.create(file, encoding, SETTINGS, valid, 4);
+			
+			// Some pairs are never set, and stay undefined
+			for (int i = 0; i < size; i++) {
+				for (int j = 0; j < i; j++) {
+					if (isDefined(i, j))
+						written.set(PackedTriangle.index(i, j), value(i, j));
+				}
+			}
+			
+			written.complete();
+			
+			final MappedTriangle read = MappedTriangle.open(file, 5);
+			assertEquals(size, read.size());
+			assertEquals(encoding, read.getEncoding());
+			assertEquals(SETTINGS, read.getSettings());
+			
+			for (int i = 0; i < size; i++) {
+				assertEquals(valid[i], read.isValid(i));
+				
+				for (int j = 0; j < i; j++) {
+					final double corr = read.get(PackedTriangle.index(i, j));
+					
+					if (isDefined(i, j))
+						assertEquals(value(i, j), corr, tolerance);
+					else
+						assertTrue(Double.isNaN(corr));
+				}
+			}
+			
+			// The tile rows of the stored triangle give every defined pair of valid vectors once
+			final StoredCorrelation stored = new StoredCorrelation(read, 8);
+			final int[] visits = new int[1];
+			int defined = 0;
+			
+			for (int i = 0; i < size; i++) {
+				for (int j = 0; j < i; j++) {
+					if (valid[i] && valid[j] && isDefined(i, j))
+						defined++;
+				}
+			}
+			
+			for (int b = 0; b < stored.getBlockCount(); b++) {
+				stored.computeBlockRow(b, new CorrelationSource.PairVisitor() {
+					@Override
+					public void visit(int i, int j, double corr) {
+						assertTrue(j < i && valid[i] && valid[j] && isDefined(i, j));
+						assertEquals(value(i, j), corr, tolerance);
+						visits[0]++;
+					}
+				});
+			}
+			
+			assertEquals(defined, visits[0]);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static boolean isDefined(final int i, final int j) {
+		return (i + j) % 11 != 0;
+	}
+
+	private static double value(final int i, final int j) {
+		return Math.sin(i * 31 + j * 7);
+	}
+
+	@Test
+	public void testUncompletedFile() throws IOException {
+		final File file = File.createTempFile("matrix", ".ectr");
+		
+		try {
+			// Created with its full length, as a save that was cancelled or failed leaves it
+			final MappedTriangle written =
+					MappedTriangle.create(file, CorrelationEncoding.INT16, SETTINGS, new boolean[] { true, true, true });
+			written.set(PackedTriangle.index(1, 0), 0.5);
+			written.close();
+			
+			try {
+				MappedTriangle.open(file);
+				fail("A file that was never completed must be rejected");
+			} catch (IOException e) {
+				// Expected
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testIncompleteFile() throws IOException {
+		final File file = File.createTempFile("matrix", ".ectr");
+		
+		try {
+			MappedTriangle.create(file, CorrelationEncoding.FLOAT32, SETTINGS, new boolean[] { true, true, true }).complete();
+			
+			try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(raf.length() - 1);
+			}
+			
+			try {
+				MappedTriangle.open(file);
+				fail("An incomplete file must be rejected");
+			} catch (IOException e) {
+				// Expected
+			}
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+public class MetricCorrelationTest {
+
+	@Test
+	public void testCosine() {
+		for (final boolean singlePrecision : new boolean[] { false, true }) {
+			final ExpressionMatrix matrix = createMatrix(singlePrecision);
+			final MetricCorrelation cosine = new MetricCorrelation(
+					CorrelationMetric.COSINE.getSimilarity().prepare(matrix.getRowVectors(), 2, 1), 4);
+			final int[] visits = new int[1];
+			assertFalse(cosine.isValid(3));
+			
+			for (int b = 0; b < cosine.getBlockCount(); b++) {
+				cosine.computeBlockRow(b, new CorrelationSource.PairVisitor() {
+					@Override
+					public void visit(int i, int j, double corr) {
+						assertTrue(j < i && i != 3 && j != 3);
+						assertEquals(cosine(matrix, i, j), corr, 1e-6);
+						visits[0]++;
+					}
+				});
+			}
+			
+			assertEquals(18 * 19 / 2, visits[0]);
+		}
+	}
+
+	@Test
+	public void testTilesMatchPairs() {
+		final ExpressionMatrix matrix = createMatrix(false);
+		final SimilarityMetric.Kernel kernel =
+				CorrelationMetric.PEARSON.getSimilarity().prepare(matrix.getRowVectors(), 2, 1);
+		final MetricCorrelation tiled = new MetricCorrelation(kernel, 4);
+		assertTrue(kernel instanceof SimilarityMetric.TiledKernel);
+		
+		for (int b = 0; b < tiled.getBlockCount(); b++) {
+			tiled.computeBlockRow(b, new CorrelationSource.PairVisitor() {
+				@Override
+				public void visit(int i, int j, double corr) {
+					assertEquals(kernel.similarity(i, j), corr, 1e-12);
+				}
+			});
+		}
+	}
+
+	@Test
+	public void testSplitOrder() {
+		final ExpressionMatrix matrix = createMatrix(false);
+		final MetricCorrelation tiled = new MetricCorrelation(
+				CorrelationMetric.PEARSON.getSimilarity().prepare(matrix.getRowVectors(), 2, 1), 2);
+		final int[] order = { 7, 2, 9, 0, 5, 1, 8, 3, 6, 4 };
+		final int[] bounds = tiled.split(order, 3);
+		assertEquals(10, tiled.getBlockCount());
+		assertEquals(4, bounds.length);
+		assertEquals(0, bounds[0]);
+		assertEquals(order.length, bounds[3]);
+		
+		// Every range holds about a third of the 190 pairs
+		for (int u = 0; u < 3; u++) {
+			long pairs = 0;
+			
+			for (int k = bounds[u]; k < bounds[u + 1]; k++)
+				pairs += tiled.getPairCount(order[k], order[k] + 1);
+			
+			assertTrue(pairs >= 50 && pairs <= 80);
+		}
+	}
+
+	/**
+	 * 20 genes with 9 conditions each; gene 3 is all zeros
+	 */
+	private static ExpressionMatrix createMatrix(final boolean singlePrecision) {
+		final ExpressionMatrix matrix = new ExpressionMatrix(20, 9, singlePrecision);
+		final Random random = new Random(8);
+		
+		for (int i = 0; i < 20; i++) {
+			for (int k = 0; k < 9; k++)
+				matrix.set(i, k, i == 3 ? 0.0 : 1.0 + random.nextGaussian());
+		}
+		
+		return matrix;
+	}
+
+	private static double cosine(final ExpressionMatrix matrix, final int x, final int y) {
+		double xy = 0.0, xx = 0.0, yy = 0.0;
+		
+		for (int k = 0; k < matrix.getColumns(); k++) {
+			xy += matrix.get(x, k) * matrix.get(y, k);
+			xx += matrix.get(x, k) * matrix.get(x, k);
+			yy += matrix.get(y, k) * matrix.get(y, k);
+		}
+		
+		return xy / Math.sqrt(xx * yy);
+	}
+}
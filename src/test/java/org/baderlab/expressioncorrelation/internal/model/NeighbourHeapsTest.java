@@ -0,0 +1,135 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+public class NeighbourHeapsTest {
+
+	@Test
+	public void testKeepsStrongestPartners() {
+		final int size = 60;
+		final int k = 4;
+		final double[][] corr = randomCorrelations(size, new Random(7));
+		final NeighbourHeaps heaps = new NeighbourHeaps(size, k);
+		
+		// Offers the pairs in random order, as parallel work units would
+		final List<int[]> pairs = new ArrayList<>();
+		
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < i; j++)
+				pairs.add(new int[] { i, j });
+		}
+		
+		Collections.shuffle(pairs, new Random(11));
+		
+		for (final int[] p : pairs)
+			heaps.offer(p[0], p[1], corr[p[0]][p[1]]);
+		
+		final EdgeBuffer edges = heaps.toEdges();
+		final Set<String> actual = new TreeSet<>();
+		
+		for (int e = 0; e < edges.size(); e++) {
+			assertTrue("Source > target", edges.getSource(e) > edges.getTarget(e));
+			assertEquals(corr[edges.getSource(e)][edges.getTarget(e)], edges.getValue(e), 0.0);
+			actual.add(edges.getSource(e) + "-" + edges.getTarget(e));
+		}
+		
+		assertEquals("Each pair once", edges.size(), actual.size());
+		assertEquals(expectedEdges(corr, k), actual);
+	}
+	
+	@Test
+	public void testKeepsAllPartnersOfSmallSets() {
+		final NeighbourHeaps heaps = new NeighbourHeaps(3, 5);
+		heaps.offer(1, 0, 0.5);
+		heaps.offer(2, 0, -0.25);
+		heaps.offer(2, 1, 0.75);
+		
+		assertEquals(3, heaps.toEdges().size());
+	}
+	
+	private static double[][] randomCorrelations(final int size, final Random random) {
+		final double[][] corr = new double[size][size];
+		
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < i; j++) {
+				// Rounded, so that some correlations are equally strong
+				corr[i][j] = corr[j][i] = Math.round((random.nextDouble() * 2 - 1) * 50) / 50.0;
+			}
+		}
+		
+		return corr;
+	}
+	
+	/**
+	 * Sorts all partners of each vector, strongest first (ties: smaller partner index first)
+	 */
+	private static Set<String> expectedEdges(final double[][] corr, final int k) {
+		final Set<String> edges = new TreeSet<>();
+		
+		for (int i = 0; i < corr.length; i++) {
+			final List<Integer> partners = new ArrayList<>();
+			
+			for (int j = 0; j < corr.length; j++) {
+				if (j != i)
+					partners.add(j);
+			}
+			
+			final int node = i;
+			
+			Collections.sort(partners, new Comparator<Integer>() {
+				@Override
+				public int compare(final Integer a, final Integer b) {
+					final int c = Double.compare(Math.abs(corr[node][b]), Math.abs(corr[node][a]));
+					
+					return c != 0 ? c : a.compareTo(b);
+				}
+			});
+			
+			for (final int j : partners.subList(0, k))
+				edges.add(Math.max(i, j) + "-" + Math.min(i, j));
+		}
+		
+		return edges;
+	}
+}
@@ -0,0 +1,137 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+public class PairwiseCompleteCorrelationTest {
+
+	private static final int GENES = 25;
+	private static final int CONDITIONS = 70; // More than one mask word
+	
+	@Test
+	public void testMatchesCompleteCases() {
+		final ExpressionMatrix matrix = createMatrix();
+		
+		for (final boolean centered : new boolean[] { true, false }) {
+			final PairwiseCompleteCorrelation kernel =
+					new PairwiseCompleteCorrelation(matrix.getRowVectors(), centered, 5);
+			final MetricCorrelation correlation = new MetricCorrelation(kernel, 8);
+			final int[] visits = new int[1];
+			assertFalse(kernel.isValid(12));
+			
+			for (int b = 0; b < correlation.getBlockCount(); b++) {
+				correlation.computeBlockRow(b, new CorrelationSource.PairVisitor() {
+					@Override
+					public void visit(int i, int j, double corr) {
+						assertEquals(completeCases(matrix, i, j, centered), corr, 1e-12);
+						visits[0]++;
+					}
+				});
+			}
+			
+			// Gene 12 only has 2 values
+			assertEquals((GENES - 1) * (GENES - 2) / 2, visits[0]);
+		}
+	}
+	
+	@Test
+	public void testMinOverlap() {
+		final ExpressionMatrix matrix = new ExpressionMatrix(2, 6);
+		final double[][] values = { { 1, 2, 3, Double.NaN, Double.NaN, 4 }, { Double.NaN, 1, 5, 2, 3, 0 } };
+		
+		for (int i = 0; i < 2; i++) {
+			for (int k = 0; k < 6; k++)
+				matrix.set(i, k, values[i][k]);
+		}
+		
+		assertTrue(matrix.hasMissingValues());
+		assertEquals(completeCases(matrix, 1, 0, true),
+				new PairwiseCompleteCorrelation(matrix.getRowVectors(), true, 3).similarity(1, 0), 1e-12);
+		assertTrue(Double.isNaN(new PairwiseCompleteCorrelation(matrix.getRowVectors(), true, 4).similarity(1, 0)));
+	}
+	
+	/**
+	 * Genes 0 to 9 are complete, the others miss about one value in ten (genes 10 to 14 only past the first
+	 * mask word); gene 12 only has 2 values
+	 */
+	private static ExpressionMatrix createMatrix() {
+		final ExpressionMatrix matrix = new ExpressionMatrix(GENES, CONDITIONS);
+		final Random random = new Random(3);
+		
+		for (int i = 0; i < GENES; i++) {
+			for (int k = 0; k < CONDITIONS; k++) {
+				final boolean missing = i == 12 ? k >= 2 : i >= 10 && (i >= 15 || k >= 64) && random.nextInt(10) == 0;
+				matrix.set(i, k, missing ? Double.NaN : 2.0 + random.nextGaussian());
+			}
+		}
+		
+		return matrix;
+	}
+	
+	/**
+	 * The Pearson correlation (or cosine similarity) of the values present in both vectors
+	 */
+	private static double completeCases(final ExpressionMatrix matrix, final int x, final int y,
+			final boolean centered) {
+		double n = 0.0, sx = 0.0, sy = 0.0;
+		
+		for (int k = 0; k < matrix.getColumns(); k++) {
+			if (!Double.isNaN(matrix.get(x, k)) && !Double.isNaN(matrix.get(y, k))) {
+				n++;
+				sx += matrix.get(x, k);
+				sy += matrix.get(y, k);
+			}
+		}
+		
+		final double mx = centered ? sx / n : 0.0;
+		final double my = centered ? sy / n : 0.0;
+		double xy = 0.0, xx = 0.0, yy = 0.0;
+		
+		for (int k = 0; k < matrix.getColumns(); k++) {
+			if (!Double.isNaN(matrix.get(x, k)) && !Double.isNaN(matrix.get(y, k))) {
+				final double u = matrix.get(x, k) - mx;
+				final double v = matrix.get(y, k) - my;
+				xy += u * v;
+				xx += u * u;
+				yy += v * v;
+			}
+		}
+		
+		return xy / Math.sqrt(xx * yy);
+	}
+}
@@ -0,0 +1,136 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+public class QuantizedTriangleTest {
+
+	@Test
+	public void testCachedCorrelationsAreReadBack() {
+		final int genes = 45;
+		final int conditions = 12;
+		final ExpressionMatrix matrix = new ExpressionMatrix(genes, conditions);
+		final Random random = new Random(11);
+		
+		for (int i = 0; i < genes; i++) {
+			for (int k = 0; k < conditions; k++)
+				matrix.set(i, k, i == 7 ? 1.0 : random.nextGaussian()); // Gene 7 has no variance
+		}
+		
+		final MetricCorrelation exact = new MetricCorrelation(new BlockedCorrelation(matrix.getRowVectors(), true), 8);
+		final QuantizedTriangle triangle = new QuantizedTriangle(exact.getValidity());
+		final CachingCorrelation caching = new CachingCorrelation(exact, triangle);
+		final double[][] first = new double[genes][genes];
+		final double[][] second = new double[genes][genes];
+		
+		collect(caching, first);
+		collect(new StoredCorrelation(triangle, 16), second);
+		
+		for (int i = 0; i < genes; i++) {
+			for (int j = 0; j < i; j++) {
+				// Both passes see the same rounded values
+				assertEquals(first[i][j], second[i][j], 0.0);
+				
+				if (i != 7 && j != 7) {
+					final double corr = triangle.get(PackedTriangle.index(i, j));
+					assertEquals(first[i][j], corr, 0.0);
+					assertEquals(Math.round(corr * CorrelationEncoding.SCALE), corr * CorrelationEncoding.SCALE, 1e-9);
+				} else {
+					assertEquals(Double.NaN, second[i][j], 0.0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCachedHistogramWithMissingValues() {
+		final int genes = 40;
+		final int conditions = 10;
+		final ExpressionMatrix matrix = new ExpressionMatrix(genes, conditions);
+		final Random random = new Random(23);
+		
+		// Many pairs share fewer than 6 values, so their correlations are undefined
+		for (int i = 0; i < genes; i++) {
+			for (int k = 0; k < conditions; k++)
+				matrix.set(i, k, random.nextInt(3) == 0 ? Double.NaN : random.nextGaussian());
+		}
+		
+		final int bins = 200;
+		final MetricCorrelation exact = new MetricCorrelation(
+				CorrelationMetric.PEARSON.getSimilarity().prepare(matrix.getRowVectors(), 6, 1), 8);
+		final QuantizedTriangle triangle = new QuantizedTriangle(exact.getValidity());
+		final long[] calculated = histogram(exact, bins);
+		final long[] cached = histogram(new CachingCorrelation(exact, triangle), bins);
+		final long[] stored = histogram(new StoredCorrelation(triangle, 16), bins);
+		
+		final long total = new SimilarityHistogram(calculated).getTotal();
+		assertTrue(total > 0 && total < PackedTriangle.getPairCount(genes));
+		assertEquals(total, new SimilarityHistogram(cached).getTotal());
+		assertArrayEquals(cached, stored);
+	}
+
+	private static long[] histogram(final CorrelationSource source, final int bins) {
+		final long[] histo = new long[bins];
+		
+		for (int b = 0; b < source.getBlockCount(); b++) {
+			source.computeBlockRow(b, new CorrelationSource.PairVisitor() {
+				@Override
+				public void visit(int i, int j, double corr) {
+					histo[SimilarityHistogram.getBin(corr, bins)]++;
+				}
+			});
+		}
+		
+		return histo;
+	}
+
+	private static void collect(final CorrelationSource source, final double[][] values) {
+		for (final double[] row : values)
+			Arrays.fill(row, Double.NaN);
+		
+		for (int b = 0; b < source.getBlockCount(); b++) {
+			source.computeBlockRow(b, new CorrelationSource.PairVisitor() {
+				@Override
+				public void visit(int i, int j, double corr) {
+					values[i][j] = corr;
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+public class SampledHistogramTest {
+
+	private static final int BINS = 200;
+	
+	@Test
+	public void testGetRow() {
+		for (int i = 1; i < 2000; i++) {
+			assertEquals(i, SampledHistogram.getRow(PackedTriangle.index(i, 0)));
+			assertEquals(i, SampledHistogram.getRow(PackedTriangle.index(i, i - 1)));
+		}
+		
+		// Large enough for the square root to be rounded
+		final int i = 3000000;
+		assertEquals(i, SampledHistogram.getRow(PackedTriangle.index(i, 0)));
+		assertEquals(i - 1, SampledHistogram.getRow(PackedTriangle.index(i, 0) - 1));
+	}
+	
+	@Test
+	public void testBoundsHoldExactCount() {
+		final ExpressionMatrix matrix = new ExpressionMatrix(400, 20);
+		final Random random = new Random(13);
+		
+		for (int i = 0; i < matrix.getRows(); i++) {
+			for (int k = 0; k < matrix.getColumns(); k++)
+				matrix.set(i, k, (i % 5) * Math.sin(k) + random.nextGaussian());
+		}
+		
+		final SimilarityMetric.Kernel kernel = DotProductMetric.PEARSON.prepare(matrix.getRowVectors(), 3, 1);
+		final long pairs = PackedTriangle.getPairCount(kernel.size());
+		final long[] exact = new long[BINS];
+		
+		for (int i = 0; i < kernel.size(); i++) {
+			for (int j = 0; j < i; j++)
+				exact[SimilarityHistogram.getBin(kernel.similarity(i, j), BINS)]++;
+		}
+		
+		final long sampleSize = 3 * SampledHistogram.CHUNK_SIZE / 2;
+		final long[] counts = new long[BINS];
+		
+		for (int c = 0; c < SampledHistogram.getChunkCount(sampleSize); c++)
+			SampledHistogram.draw(kernel, c, sampleSize, 17, counts);
+		
+		final SampledHistogram sample = new SampledHistogram(counts, sampleSize, pairs);
+		final SimilarityHistogram histogram = new SimilarityHistogram(exact);
+		assertEquals(pairs, sample.getEstimate().getTotal(), BINS);
+		
+		for (final double cutoff : new double[] { 0.2, 0.5, 0.8 }) {
+			final double[] cutoffs = { -cutoff, cutoff };
+			final long count = histogram.countNegative(-cutoff) + histogram.countPositive(cutoff);
+			final long[] bounds = sample.getBounds(cutoffs, true, true);
+			assertTrue(bounds[0] <= count && count <= bounds[1]);
+		}
+		
+		// The chunks are the same on any thread
+		final long[] again = new long[BINS];
+		
+		for (int c = SampledHistogram.getChunkCount(sampleSize) - 1; c >= 0; c--)
+			SampledHistogram.draw(kernel, c, sampleSize, 17, again);
+		
+		assertArrayEquals(counts, again);
+	}
+	
+	@Test
+	public void testWilsonBounds() {
+		final SampledHistogram sample = new SampledHistogram(new long[BINS], 100, 1000);
+		
+		// 0 of 100: [0, 3.70%]; 50 of 100: [40.4%, 59.6%]
+		assertArrayEquals(new long[] { 0, 37 }, sample.getBounds(0));
+		assertArrayEquals(new long[] { 403, 597 }, sample.getBounds(50));
+	}
+}
@@ -0,0 +1,221 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+public class SignificanceTest {
+
+	private static final int BINS = 40;
+	
+	@Test
+	public void testBenjaminiHochberg() {
+		final Random random = new Random(5);
+		final long[] counts = new long[BINS];
+		
+		for (int bin = 0; bin < BINS; bin++)
+			counts[bin] = random.nextInt(4) == 0 ? 0 : random.nextInt(50);
+		
+		// Lower p-values towards the tails, as from any null distribution
+		final double[] pValues = new double[BINS / 2 + 1];
+		
+		for (int k = 1; k <= BINS / 2; k++)
+			pValues[k] = Math.min(1.0, pValues[k - 1] + 0.1 * random.nextDouble());
+		
+		final SimilarityHistogram observed = new SimilarityHistogram(counts);
+		
+		for (final boolean[] uses : new boolean[][] { { true, true }, { false, true }, { true, false } }) {
+			final Significance significance = new Significance(observed, pValues, uses[0], uses[1]);
+			
+			// Brute force: one p-value per correlation (1 in the tail that is not tested), sorted,
+			//  q(i) = min over j >= i of p(j) * total / j
+			final List<Double> sorted = new ArrayList<>();
+			
+			for (int bin = 0; bin < BINS; bin++) {
+				final boolean tested = bin >= BINS / 2 ? uses[1] : uses[0];
+				
+				for (long c = 0; c < counts[bin]; c++)
+					sorted.add(tested ? pValues[getPosition(bin)] : 1.0);
+			}
+			
+			Collections.sort(sorted);
+			final int total = sorted.size();
+			final double[] q = new double[total];
+			double min = 1.0;
+			
+			for (int i = total - 1; i >= 0; i--) {
+				min = Math.min(min, sorted.get(i) * total / (i + 1));
+				q[i] = min;
+			}
+			
+			for (int bin = 0; bin < BINS; bin++) {
+				final double corr = getCorrelation(bin);
+				final boolean tested = bin >= BINS / 2 ? uses[1] : uses[0];
+				final double p = pValues[getPosition(bin)];
+				
+				if (counts[bin] > 0 && tested) {
+					assertEquals(p, significance.getPValue(corr), 0.0);
+					assertEquals(q[sorted.lastIndexOf(p)], significance.getQValue(corr), 1e-12);
+				}
+			}
+			
+			for (final double fdr : new double[] { 0.01, 0.1, 0.3, 0.6, 1.0 }) {
+				long expected = 0;
+				
+				for (int bin = 0; bin < BINS; bin++) {
+					final double corr = getCorrelation(bin);
+					
+					if ((bin >= BINS / 2 ? uses[1] : uses[0]) && significance.getQValue(corr) <= fdr)
+						expected += counts[bin];
+				}
+				
+				assertEquals(expected, significance.getEdgeCount(fdr));
+			}
+		}
+	}
+	
+	@Test
+	public void testTDistribution() {
+		// With 4 values, P(R >= r) = (1 - r) / 2; with 3 values, P(|R| >= |r|) = 2 / pi * arcsin(sqrt(1 - r^2))
+		for (final double r : new double[] { -0.9, -0.3, 0.0, 0.25, 0.8, 0.999 }) {
+			assertEquals((1.0 - r) / 2.0, Significance.getUpperTail(r, 2), 1e-9);
+			assertEquals(Math.asin(Math.sqrt(1.0 - r * r)) / Math.PI, Significance.getUpperTail(Math.abs(r), 1), 1e-9);
+		}
+		
+		assertEquals(0.0, Significance.getUpperTail(1.0, 10), 0.0);
+		assertEquals(1.0, Significance.getUpperTail(-1.0, 10), 0.0);
+		
+		final long[] counts = new long[BINS];
+		counts[0] = 3;
+		counts[BINS / 2] = 10;
+		counts[BINS - 2] = 2;
+		final SimilarityHistogram observed = new SimilarityHistogram(counts);
+		final Significance significance = Significance.fromTDistribution(observed, 4, true, true);
+		final double width = 2.0 / (BINS - 1);
+		
+		// Position k covers |r| >= 1 - k * width in the negative tail and r >= 1 - (k - 1) * width in the positive one
+		for (final int bin : new int[] { 0, BINS / 2, BINS - 2 }) {
+			final int k = getPosition(bin);
+			assertEquals((2 * k - 1) * width / 2.0, significance.getPValue(getCorrelation(bin)), 1e-9);
+		}
+	}
+	
+	@Test
+	public void testShuffledKernelMatchesShuffledValues() {
+		final ExpressionMatrix matrix = new ExpressionMatrix(30, 12);
+		final Random random = new Random(7);
+		
+		for (int i = 0; i < matrix.getRows(); i++) {
+			for (int k = 0; k < matrix.getColumns(); k++)
+				matrix.set(i, k, i % 3 + k + random.nextGaussian());
+		}
+		
+		final long seed = 11;
+		final PermutationNull permutationNull =
+				new PermutationNull(matrix.getRowVectors(), DotProductMetric.PEARSON, 3, 100, 8, seed);
+		final PermutationNull.Worker worker = permutationNull.createWorker();
+		
+		for (int permutation = 0; permutation < 3; permutation++) {
+			final long[] histo = new long[BINS];
+			worker.count(permutation, histo);
+			
+			// The same permutation of the expression values, correlated from scratch
+			final ExpressionMatrix shuffled = matrix.copy();
+			final long[] expected = new long[BINS];
+			shuffled.shuffleRows(new Random(seed + 1 + permutation));
+			final SimilarityMetric.Kernel kernel = DotProductMetric.PEARSON.prepare(shuffled.getRowVectors(), 3, 1);
+			
+			for (int i = 0; i < kernel.size(); i++) {
+				for (int j = 0; j < i; j++)
+					expected[SimilarityHistogram.getBin(kernel.similarity(i, j), BINS)]++;
+			}
+			
+			assertArrayEquals(expected, histo);
+			assertEquals(permutationNull.getPairsPerPermutation(), new SimilarityHistogram(histo).getTotal());
+		}
+	}
+	
+	@Test
+	public void testPermutationsDoNotDependOnWorkers() {
+		final ExpressionMatrix matrix = new ExpressionMatrix(25, 10);
+		final Random random = new Random(13);
+		
+		for (int i = 0; i < matrix.getRows(); i++) {
+			for (int k = 0; k < matrix.getColumns(); k++)
+				matrix.set(i, k, i % 4 + k + random.nextGaussian());
+		}
+		
+		// Shuffled kernel (Pearson) and values shuffled and prepared again (Kendall)
+		for (final SimilarityMetric metric : new SimilarityMetric[] { DotProductMetric.PEARSON, KendallCorrelation.METRIC }) {
+			final PermutationNull permutationNull = new PermutationNull(matrix.getRowVectors(), metric, 3, 20, 8, 17);
+			final long[] single = count(permutationNull, 10, 1);
+			
+			assertArrayEquals(single, count(permutationNull, 10, 4));
+			assertArrayEquals(single, count(permutationNull, 10, 3));
+		}
+	}
+	
+	/**
+	 * Runs the permutations the way CorrelateSimilarityNetwork does on the given number of threads:
+	 * worker w runs the permutations w, w + workers, w + 2 * workers...
+	 */
+	private static long[] count(final PermutationNull permutationNull, final int permutations, final int workers) {
+		final long[] histo = new long[BINS];
+		
+		for (int w = 0; w < workers; w++) {
+			final PermutationNull.Worker worker = permutationNull.createWorker();
+			
+			for (int p = w; p < permutations; p += workers)
+				worker.count(p, histo);
+		}
+		
+		return histo;
+	}
+	
+	/**
+	 * @return a correlation in the given bin
+	 */
+	private static double getCorrelation(final int bin) {
+		return (bin + 0.5) / ((BINS - 1) / 2.0) - 1.0;
+	}
+	
+	private static int getPosition(final int bin) {
+		return bin < BINS / 2 ? bin + 1 : BINS - bin;
+	}
+}
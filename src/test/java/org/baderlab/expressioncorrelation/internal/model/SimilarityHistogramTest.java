@@ -0,0 +1,135 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+public class SimilarityHistogramTest {
+
+	private long[] counts;
+	private SimilarityHistogram histogram;
+	
+	@Before
+	public void setUp() {
+		final Random random = new Random(42);
+		counts = new long[2000];
+		
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = random.nextInt(5) == 0 ? 0 : random.nextInt(1000);
+		
+		histogram = new SimilarityHistogram(counts);
+	}
+	
+	@Test
+	public void testTotal() {
+		long total = 0;
+		
+		for (final long c : counts)
+			total += c;
+		
+		assertEquals(total, histogram.getTotal());
+	}
+	
+	@Test
+	public void testCountsMatchBinScan() {
+		for (int c = -1000; c <= 1000; c++) {
+			final double cutoff = c / 1000.0;
+			
+			assertEquals("Negative " + cutoff, scanNegative(cutoff), histogram.countNegative(cutoff));
+			assertEquals("Positive " + cutoff, scanPositive(cutoff), histogram.countPositive(cutoff));
+		}
+	}
+	
+	@Test
+	public void testPositionMatchesBinScan() {
+		for (long n = 0; n <= histogram.getTotal() + 1000; n += 997) {
+			assertEquals("Both " + n, scanPosition(n, true, true), histogram.getPosition(n, true, true));
+			assertEquals("Negative " + n, scanPosition(n, true, false), histogram.getPosition(n, true, false));
+			assertEquals("Positive " + n, scanPosition(n, false, true), histogram.getPosition(n, false, true));
+		}
+		
+		assertEquals("Neither", scanPosition(10, false, false), histogram.getPosition(10, false, false));
+	}
+	
+	@Test
+	public void testCountsBeyondIntegerRange() {
+		// About 2.4 billion pairs, as in a 70,000 gene similarity matrix
+		final long[] large = new long[2000];
+		java.util.Arrays.fill(large, 1200000L);
+		final SimilarityHistogram big = new SimilarityHistogram(large);
+		
+		assertEquals(2400000000L, big.getTotal());
+		assertEquals(1200000000L, big.countNegative(0.0));
+		assertEquals(1200000000L, big.countPositive(0.001));
+		assertEquals(999, big.getPosition(2400000000L, true, true));
+		assertEquals(624, big.getPosition(1500000000L, true, true));
+	}
+	
+	/** Counts the bins one at a time, the way the histogram dialog used to */
+	private long scanNegative(final double cutoff) {
+		long count = 0;
+		
+		for (int i = 0; i < counts.length && (-1.0 + ((double) i * 2) / counts.length) < cutoff; i++)
+			count += counts[i];
+		
+		return count;
+	}
+	
+	private long scanPositive(final double cutoff) {
+		long count = 0;
+		
+		for (int j = 0; j < counts.length && (1.0 - ((double) j * 2) / counts.length) >= cutoff; j++)
+			count += counts[counts.length - j - 1];
+		
+		return count;
+	}
+	
+	private int scanPosition(final long numberOfEdges, final boolean negative, final boolean positive) {
+		int position = -1;
+		long count = 0;
+		
+		while (count < numberOfEdges && position < (counts.length / 2 - 1)) {
+			position++;
+			
+			if (negative)
+				count += counts[position];
+			if (positive)
+				count += counts[counts.length - position - 1];
+		}
+		
+		return position;
+	}
+}
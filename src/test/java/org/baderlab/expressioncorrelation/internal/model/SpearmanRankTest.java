@@ -0,0 +1,162 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+public class SpearmanRankTest {
+
+	@Test
+	public void testAverageRanksOfTies() {
+		final double[] values = { 0.0, 3.5, 2.0, 3.5, -1.0, 3.5, 2.0 };
+		final double s = SpearmanRank.rank(values, 0, values.length);
+		
+		assertArrayEquals(new double[] { 2.0, 6.0, 3.5, 6.0, 1.0, 6.0, 3.5 }, values, 0.0);
+		assertEquals((2 * 2 * 2 - 2) + (3 * 3 * 3 - 3), s, 0.0);
+	}
+
+	@Test
+	public void testLongVectors() {
+		final Random random = new Random(2);
+		final int length = 1000;
+		final double[][] data = new double[3][length];
+		
+		for (final double[] row : data) {
+			for (int k = 0; k < length; k++)
+				row[k] = random.nextInt(50); // Long runs of ties
+		}
+		
+		final SpearmanRank spearman = new SpearmanRank(new DenseDoubleMatrix2D(data));
+		
+		for (int i = 0; i < data.length; i++) {
+			for (int k = 0; k < length; k++) {
+				// Rank = number of smaller values + (number of equal values + 1) / 2
+				int less = 0;
+				int equal = 0;
+				
+				for (final double v : data[i]) {
+					if (v < data[i][k])
+						less++;
+					else if (v == data[i][k])
+						equal++;
+				}
+				
+				assertEquals(less + (equal + 1) / 2.0, spearman.getRank(i, k), 0.0);
+			}
+			
+			for (int p = 1; p < length; p++)
+				assertTrue(data[i][spearman.getSortedIndex(i, p - 1)] <= data[i][spearman.getSortedIndex(i, p)]);
+		}
+	}
+
+	@Test
+	public void testCorrIsPearsonOfRanks() {
+		final Random random = new Random(5);
+		final double[][] data = new double[6][25];
+		
+		for (final double[] row : data) {
+			for (int k = 0; k < row.length; k++)
+				row[k] = Math.round(random.nextGaussian() * 2) / 2.0; // Many ties
+		}
+		
+		final SpearmanRank spearman = new SpearmanRank(new DenseDoubleMatrix2D(data));
+		final double[][] ranks = new double[data.length][];
+		
+		for (int i = 0; i < data.length; i++) {
+			ranks[i] = data[i].clone();
+			SpearmanRank.rank(ranks[i], 0, ranks[i].length);
+		}
+		
+		for (int i = 0; i < data.length; i++) {
+			assertEquals(1.0, spearman.corr(i, i), 1e-12);
+			
+			for (int j = 0; j < i; j++)
+				assertEquals(pearson(ranks[i], ranks[j]), spearman.corr(i, j), 1e-12);
+		}
+	}
+
+	@Test
+	public void testRankVectorsInParallel() {
+		final ExpressionMatrix matrix = new ExpressionMatrix(40, 9);
+		final Random random = new Random(8);
+		
+		for (int i = 0; i < 40; i++) {
+			for (int k = 0; k < 9; k++)
+				matrix.set(i, k, random.nextInt(4));
+		}
+		
+		final ExpressionMatrix ranked = SpearmanRank.rankVectors(matrix.getColumnVectors(), 3);
+		assertEquals(9, ranked.getRows());
+		assertEquals(40, ranked.getColumns());
+		
+		final double[] column = new double[40];
+		
+		for (int k = 0; k < 9; k++) {
+			for (int i = 0; i < 40; i++)
+				column[i] = matrix.get(i, k);
+			
+			SpearmanRank.rank(column, 0, 40);
+			
+			for (int i = 0; i < 40; i++)
+				assertEquals(column[i], ranked.get(k, i), 0.0);
+		}
+	}
+
+	private static double pearson(final double[] x, final double[] y) {
+		double mx = 0.0;
+		double my = 0.0;
+		
+		for (int k = 0; k < x.length; k++) {
+			mx += x[k] / x.length;
+			my += y[k] / y.length;
+		}
+		
+		double sxy = 0.0;
+		double sxx = 0.0;
+		double syy = 0.0;
+		
+		for (int k = 0; k < x.length; k++) {
+			sxy += (x[k] - mx) * (y[k] - my);
+			sxx += (x[k] - mx) * (x[k] - mx);
+			syy += (y[k] - my) * (y[k] - my);
+		}
+		
+		return sxy / Math.sqrt(sxx * syy);
+	}
+}
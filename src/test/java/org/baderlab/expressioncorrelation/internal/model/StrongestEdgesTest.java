@@ -0,0 +1,117 @@
+package org.baderlab.expressioncorrelation.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2015 Memorial Sloan-Kettering Cancer Center
+ * *
+ * * Authors: Gary Bader, Elena Potylitsine, Chris Sander, Weston Whitaker
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published
+ * * by the Free Software Foundation; either version 2.1 of the License, or
+ * * any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF
+ * * MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.  The software and
+ * * documentation provided hereunder is on an "as is" basis, and
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has no obligations to provide maintenance, support,
+ * * updates, enhancements or modifications.  In no type shall the
+ * * Memorial Sloan-Kettering Cancer Center
+ * * be liable to any party for direct, indirect, special,
+ * * incidental or consequential damages, including lost profits, arising
+ * * out of the use of this software and its documentation, even if
+ * * Memorial Sloan-Kettering Cancer Center
+ * * has been advised of the possibility of such damage.  See
+ * * the GNU Lesser General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+public class StrongestEdgesTest {
+
+	@Test
+	public void testKeepsStrongestInOrder() {
+		final int size = 50;
+		final double[][] corr = new double[size][size];
+		final Random random = new Random(3);
+		final StrongestEdges first = new StrongestEdges(100);
+		final StrongestEdges second = new StrongestEdges(100);
+		
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < i; j++) {
+				corr[i][j] = Math.round((random.nextDouble() * 2 - 1) * 100) / 100.0;
+				// Splits the offers between two heaps, as two threads would
+				(random.nextBoolean() ? first : second).offer(i, j, corr[i][j]);
+			}
+		}
+		
+		final StrongestEdges merged = new StrongestEdges(100);
+		merged.addAll(first);
+		merged.addAll(second);
+		
+		final EdgeBuffer edges = merged.toEdges();
+		assertEquals(100, edges.size());
+		
+		// Strongest first; no pair that was left out is stronger than the last one kept
+		for (int e = 1; e < edges.size(); e++)
+			assertTrue(Math.abs(edges.getValue(e - 1)) >= Math.abs(edges.getValue(e)));
+		
+		final double weakest = Math.abs(edges.getValue(edges.size() - 1));
+		int stronger = 0;
+		
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < i; j++) {
+				if (Math.abs(corr[i][j]) > weakest)
+					stronger++;
+			}
+		}
+		
+		assertTrue(stronger <= 100);
+		
+		for (int e = 0; e < edges.size(); e++)
+			assertEquals(corr[edges.getSource(e)][edges.getTarget(e)], edges.getValue(e), 0.0);
+	}
+	
+	@Test
+	public void testOffersBatches() {
+		final StrongestEdges heap = new StrongestEdges(2);
+		final EdgeBuffer batch = new EdgeBuffer();
+		batch.add(1, 0, 0.3);
+		batch.add(2, 0, -0.8);
+		heap.addAll(batch);
+		
+		// A batch is emptied after it is offered, as the threads sharing a heap do
+		batch.clear();
+		assertEquals(0, batch.size());
+		assertEquals(0.3, heap.getThreshold(), 0.0);
+		
+		batch.add(2, 1, 0.5);
+		batch.add(3, 0, 0.1);
+		heap.addAll(batch);
+		
+		final EdgeBuffer edges = heap.toEdges();
+		assertEquals(2, edges.size());
+		assertEquals(-0.8, edges.getValue(0), 0.0);
+		assertEquals(0.5, edges.getValue(1), 0.0);
+		assertEquals(2, edges.getSource(1));
+		assertEquals(1, edges.getTarget(1));
+	}
+	
+	@Test
+	public void testEmptyBudget() {
+		final StrongestEdges heap = new StrongestEdges(0);
+		heap.offer(1, 0, 0.9);
+		
+		assertEquals(0, heap.toEdges().size());
+	}
+}